@@ -1,5 +1,3 @@
-import jdbm.htree.HTree;
-
 import java.io.IOException;
 import java.util.*;
 import java.lang.Math;
@@ -34,20 +32,22 @@ class TermData {
 public class CosSim {
 
     /**
-     * Calculates term weights for the given query.
+     * Scores the documents containing a query term, without collecting any
+     * term details, so that only the documents that are returned need them.
      *
      * @param query List of tokens in the search query.
      * @param termToTermId Mapping of term to TermInfo (containing termID and df).
-     * @param titleIndex Title inverted index.
-     * @param bodyIndex Body inverted index.
+     * @param titleIndex Cached postings of the title inverted index.
+     * @param bodyIndex Cached postings of the body inverted index.
      * @param documentSize Number of documents.
+     * @return the weighted cosine similarity of every document with a non-zero score
      */
-    public static Map<Integer, Object[]> calculateCosSim(
+    public static Map<Integer, Double> score(
             List<String> query,
             Map<String, TermInfo> termToTermId,
-            HTree titleIndex,
-            HTree bodyIndex,
-            Integer documentSize) {
+            PostingListCache titleIndex,
+            PostingListCache bodyIndex,
+            int documentSize) {
 
         int L = query.size();
         if (L == 0) {
@@ -59,37 +59,26 @@ public class CosSim {
         Arrays.fill(Q, 1);
         int N = documentSize;
 
+        // Term weights of the documents containing a query term only
         Map<Integer, double[]> titleSimilarityTable = new HashMap<>();
         Map<Integer, double[]> bodySimilarityTable = new HashMap<>();
-        Map<Integer, Map<String, TermData>> queryTermDataTitle = new HashMap<>();
-        Map<Integer, Map<String, TermData>> queryTermDataBody = new HashMap<>();
-
-        for (int i = 1; i <= N; i++) {
-            titleSimilarityTable.put(i, new double[L]);
-            bodySimilarityTable.put(i, new double[L]);
-            queryTermDataTitle.put(i, new HashMap<>());
-            queryTermDataBody.put(i, new HashMap<>());
-        }
+        processIndex(query, termToTermId, titleIndex, titleSimilarityTable, N);
+        processIndex(query, termToTermId, bodyIndex, bodySimilarityTable, N);
 
-        processIndex(query, termToTermId, titleIndex, titleSimilarityTable, queryTermDataTitle, N);
-        processIndex(query, termToTermId, bodyIndex, bodySimilarityTable, queryTermDataBody, N);
+        Set<Integer> docIds = new HashSet<>(titleSimilarityTable.keySet());
+        docIds.addAll(bodySimilarityTable.keySet());
+        double[] noWeights = new double[L];
 
-        // Compute cosine similarity for each document
-        Map<Integer, Object[]> similarityScores = new HashMap<>();
-        for (int docId = 1; docId <= N; docId++) {
-            double titleCosSim = computeCosineSimilarity(Q, titleSimilarityTable.get(docId));
-            double bodyCosSim = computeCosineSimilarity(Q, bodySimilarityTable.get(docId));
+        Map<Integer, Double> similarityScores = new HashMap<>();
+        for (int docId : docIds) {
+            double titleCosSim = computeCosineSimilarity(Q, titleSimilarityTable.getOrDefault(docId, noWeights));
+            double bodyCosSim = computeCosineSimilarity(Q, bodySimilarityTable.getOrDefault(docId, noWeights));
 
             // Weighted final score: 60% from title, 40% from body
             double finalScore = (0.6 * titleCosSim) + (0.4 * bodyCosSim);
-
-            // Merge term data while keeping separate positions
-            Map<String, TermData> mergedTermData = mergeTermData(queryTermDataTitle.get(docId), queryTermDataBody.get(docId));
-
-            List<TermData> topTermsWithDetails = getTop5TermsWithDetails(mergedTermData);
-
-            similarityScores.put(docId, new Object[]{finalScore, topTermsWithDetails});
-
+            if (finalScore != 0.0) {
+                similarityScores.put(docId, finalScore);
+            }
         }
 
         return similarityScores;
@@ -98,9 +87,8 @@ public class CosSim {
     private static void processIndex(
             List<String> query,
             Map<String, TermInfo> termToTermId,
-            HTree index,
+            PostingListCache index,
             Map<Integer, double[]> similarityTable,
-            Map<Integer, Map<String, TermData>> queryTermData,
             int N) {
 
         for (int j = 0; j < query.size(); j++) {
@@ -115,18 +103,13 @@ public class CosSim {
             double idf = Math.log((double) N / df) / Math.log(2);
 
             try {
-                List<Posting> postings = (List<Posting>) index.get(term);
-                if (postings == null || postings.isEmpty()) continue;
-
-                int maxTF = getMaxFrequency(postings);
-                for (Posting posting : postings) {
-                    double weight = posting.freq * idf / maxTF;
-                    similarityTable.get(posting.doc)[j] = weight;
-
-                    queryTermData.get(posting.doc).put(
-                            term,
-                            new TermData(term, posting.freq, posting.position, new ArrayList<>())
-                    );
+                DecodedPostings postings = index.get(term);
+                if (postings.size() == 0) continue;
+
+                int maxTF = postings.maxFreq;
+                for (int i = 0; i < postings.size(); i++) {
+                    double weight = postings.freqs[i] * idf / maxTF;
+                    similarityTable.computeIfAbsent(postings.docs[i], doc -> new double[query.size()])[j] = weight;
                 }
             } catch (IOException e) {
                 System.err.println("Error: " + e.getMessage());
@@ -134,6 +117,41 @@ public class CosSim {
         }
     }
 
+    /**
+     * The query terms of one document with their frequencies and title and
+     * body positions, most frequent first.
+     */
+    public static List<TermData> getTopTerms(
+            List<String> query,
+            Map<String, TermInfo> termToTermId,
+            PostingListCache titleIndex,
+            PostingListCache bodyIndex,
+            int docId) {
+
+        Map<String, TermData> titleData = new HashMap<>();
+        Map<String, TermData> bodyData = new HashMap<>();
+        for (String term : query) {
+            TermInfo termInfo = termToTermId.get(term);
+            if (termInfo == null || termInfo.frequency == 0) continue;
+
+            try {
+                putTermData(term, titleIndex.get(term), docId, titleData);
+                putTermData(term, bodyIndex.get(term), docId, bodyData);
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+        }
+
+        return getTop5TermsWithDetails(mergeTermData(titleData, bodyData));
+    }
+
+    private static void putTermData(String term, DecodedPostings postings, int docId, Map<String, TermData> termData) {
+        int i = postings.indexOf(docId);
+        if (i >= 0) {
+            termData.put(term, new TermData(term, postings.freqs[i], postings.positionList(i), new ArrayList<>()));
+        }
+    }
+
     public static int getMaxFrequency(List<Posting> postings) {
         if (postings == null || postings.isEmpty()) return 1;
         return postings.stream().mapToInt(posting -> posting.freq).max().orElse(1);
@@ -114,8 +114,9 @@ public class Main {
                     break;
                 }
 
-                // Perform cosine similarity search
-                Map<Integer, Object[]> cosineResults = searchEngine.searchCosSim(userQuery, crawler);
+                // Rank by cosine similarity and by the combined score in one pass
+                SearchEngine.RankedResults results = searchEngine.search(userQuery, crawler);
+                Map<Integer, Object[]> cosineResults = results.cosine();
 
 
                 if (cosineResults.isEmpty()) {
@@ -125,8 +126,8 @@ public class Main {
                     printResults(cosineResults);
                 }
 
-                // Perform combined search (CosSim * PageRank)
-                Map<Integer, Object[]> combinedResults = searchEngine.searchCombined(userQuery, crawler);
+                // Combined ranking (CosSim * PageRank)
+                Map<Integer, Object[]> combinedResults = results.combined();
                 if (!combinedResults.isEmpty()) {
                     System.out.println("\nTop 50 Results (Based on Combined Score - CosSim * PageRank):");
                     printResults(combinedResults);
@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A quoted phrase of the query, matched on the term positions stored in the
+ * inverted index instead of on the document text.
+ *
+ * Phrase words are stopped and stemmed like the indexed words. A stop word
+ * still takes its place in the phrase, so "university of science" matches
+ * "university" and "science" two positions apart. A phrase may be followed by
+ * ~slop, e.g. "hong kong"~2, to let every word be up to slop positions off
+ * its place in the phrase.
+ */
+public class PhraseQuery {
+    private static final Pattern PHRASE = Pattern.compile("\"([^\"]+)\"(?:~(\\d+))?");
+
+    private final List<String> terms = new ArrayList<>();
+    // Position of each term in the phrase
+    private final List<Integer> offsets = new ArrayList<>();
+    private final int slop;
+
+    private PhraseQuery(String phrase, int slop, StopStem stopStem) {
+        String[] words = phrase.trim().split("\\s+");
+        for (int i = 0; i < words.length; i++) {
+            if (!words[i].isEmpty() && !stopStem.isStopWord(words[i])) {
+                terms.add(stopStem.stem(words[i].toLowerCase()));
+                offsets.add(i);
+            }
+        }
+        this.slop = slop;
+    }
+
+    /**
+     * Extract every quoted phrase of the query. Phrases made only of stop
+     * words are left out.
+     */
+    public static List<PhraseQuery> parse(String userQuery, StopStem stopStem) {
+        List<PhraseQuery> phrases = new ArrayList<>();
+        if (userQuery == null) {
+            return phrases;
+        }
+
+        Matcher matcher = PHRASE.matcher(userQuery);
+        while (matcher.find()) {
+            int slop = matcher.group(2) == null ? 0 : Integer.parseInt(matcher.group(2));
+            PhraseQuery phrase = new PhraseQuery(matcher.group(1), slop, stopStem);
+            if (!phrase.terms.isEmpty()) {
+                phrases.add(phrase);
+            }
+        }
+        return phrases;
+    }
+
+    /**
+     * The query with the phrase syntax removed, leaving the phrase words as
+     * plain words.
+     */
+    public static String stripPhrases(String userQuery) {
+        return PHRASE.matcher(userQuery).replaceAll(" $1 ");
+    }
+
+    /**
+     * Find the documents of an index that contain the phrase. The posting
+     * lists of the words are intersected first, rarest first, and positions
+     * are only compared for the documents that contain every word.
+     */
+    public Set<Integer> matchingDocs(PostingListCache index) throws IOException {
+        int n = terms.size();
+        DecodedPostings[] lists = new DecodedPostings[n];
+        for (int i = 0; i < n; i++) {
+            lists[i] = index.get(terms.get(i));
+            if (lists[i].size() == 0) {
+                return Collections.emptySet();
+            }
+        }
+
+        // The rarest word leads, the others gallop forward to its documents
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> lists[i].size()));
+        int lead = order[0];
+
+        Set<Integer> docs = new HashSet<>();
+        int[] cursors = new int[n];
+        for (int d = 0; d < lists[lead].size(); d++) {
+            int doc = lists[lead].docs[d];
+            cursors[lead] = d;
+            boolean all = true;
+            for (int k = 1; k < n && all; k++) {
+                int i = order[k];
+                cursors[i] = gallop(lists[i].docs, cursors[i], lists[i].size(), doc);
+                all = cursors[i] < lists[i].size() && lists[i].docs[cursors[i]] == doc;
+            }
+            if (all && matchesPositions(lists, cursors)) {
+                docs.add(doc);
+            }
+        }
+        return docs;
+    }
+
+    /**
+     * Index of the first value from the given index on that is not smaller
+     * than the target, probing at exponentially growing distances before a
+     * binary search.
+     */
+    private static int gallop(int[] values, int from, int to, int target) {
+        int low = from;
+        int high = from;
+        int step = 1;
+        while (high < to && values[high] < target) {
+            low = high + 1;
+            high = from + step;
+            step <<= 1;
+        }
+        high = Math.min(high, to);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Check the positions of one document: the phrase can start at a position
+     * from which every word is within slop of its place. Only starts near the
+     * word with the fewest positions are tried.
+     */
+    private boolean matchesPositions(DecodedPostings[] lists, int[] cursors) {
+        int n = lists.length;
+        int[] from = new int[n];
+        int[] to = new int[n];
+        int anchor = 0;
+        for (int i = 0; i < n; i++) {
+            from[i] = lists[i].positionStarts[cursors[i]];
+            to[i] = lists[i].positionStarts[cursors[i] + 1];
+            if (to[i] - from[i] < to[anchor] - from[anchor]) {
+                anchor = i;
+            }
+        }
+
+        int[] anchorPositions = lists[anchor].positions;
+        int lastStart = Integer.MIN_VALUE;
+        for (int p = from[anchor]; p < to[anchor]; p++) {
+            int anchorStart = anchorPositions[p] - offsets.get(anchor);
+            for (int start = Math.max(anchorStart - slop, lastStart + 1); start <= anchorStart + slop; start++) {
+                lastStart = start;
+                boolean all = true;
+                for (int i = 0; i < n && all; i++) {
+                    if (i != anchor) {
+                        all = containsNear(lists[i].positions, from[i], to[i], start + offsets.get(i));
+                    }
+                }
+                if (all) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the sorted positions in [from, to) contain one within slop of
+     * the target.
+     */
+    private boolean containsNear(int[] positions, int from, int to, int target) {
+        int i = Arrays.binarySearch(positions, from, to, target - slop);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return i < to && positions[i] <= target + slop;
+    }
+}
@@ -0,0 +1,217 @@
+import jdbm.htree.HTree;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The posting list of a term decoded into primitive arrays, sorted by docID.
+ * The positions of the i-th document are positions[positionStarts[i]] up to
+ * positions[positionStarts[i + 1]].
+ */
+class DecodedPostings {
+    static final DecodedPostings EMPTY = new DecodedPostings(new int[0], new int[0], new int[1], new int[0], 1);
+
+    final int[] docs;
+    final int[] freqs;
+    final int[] positionStarts;
+    final int[] positions;
+    final int maxFreq;
+
+    private DecodedPostings(int[] docs, int[] freqs, int[] positionStarts, int[] positions, int maxFreq) {
+        this.docs = docs;
+        this.freqs = freqs;
+        this.positionStarts = positionStarts;
+        this.positions = positions;
+        this.maxFreq = maxFreq;
+    }
+
+    static DecodedPostings decode(List<Posting> postings) {
+        if (postings == null || postings.isEmpty()) {
+            return EMPTY;
+        }
+
+        List<Posting> sorted = new ArrayList<>(postings);
+        // Postings are appended in crawl order, which is usually docID order already
+        sorted.sort(Comparator.comparingInt(posting -> posting.doc));
+
+        int n = sorted.size();
+        int[] docs = new int[n];
+        int[] freqs = new int[n];
+        int[] positionStarts = new int[n + 1];
+        int total = 0;
+        for (Posting posting : sorted) {
+            total += posting.position == null ? 0 : posting.position.size();
+        }
+        int[] positions = new int[total];
+
+        int maxFreq = 1;
+        int p = 0;
+        for (int i = 0; i < n; i++) {
+            Posting posting = sorted.get(i);
+            docs[i] = posting.doc;
+            freqs[i] = posting.freq;
+            maxFreq = Math.max(maxFreq, posting.freq);
+            positionStarts[i] = p;
+            if (posting.position != null) {
+                for (int position : posting.position) {
+                    positions[p++] = position;
+                }
+                Arrays.sort(positions, positionStarts[i], p);
+            }
+        }
+        positionStarts[n] = p;
+        return new DecodedPostings(docs, freqs, positionStarts, positions, maxFreq);
+    }
+
+    int size() {
+        return docs.length;
+    }
+
+    /**
+     * Index of a document in the list, or a negative number if it is not in it.
+     */
+    int indexOf(int doc) {
+        return Arrays.binarySearch(docs, doc);
+    }
+
+    /**
+     * Positions of the i-th document as a list, for the result details.
+     */
+    List<Integer> positionList(int i) {
+        List<Integer> list = new ArrayList<>(positionStarts[i + 1] - positionStarts[i]);
+        for (int p = positionStarts[i]; p < positionStarts[i + 1]; p++) {
+            list.add(positions[p]);
+        }
+        return list;
+    }
+
+    /**
+     * Approximate heap size in bytes.
+     */
+    long weight() {
+        // Object and array headers, then four bytes per array element
+        return 16 + 4 * 16 + 4L * (docs.length + freqs.length + positionStarts.length + positions.length);
+    }
+}
+
+/**
+ * Cache of decoded posting lists in front of an inverted index, so that the
+ * terms of most queries are not read and deserialized from JDBM again.
+ *
+ * The cache holds at most a budget of bytes, estimated from the array sizes,
+ * and evicts the least recently used terms to stay within it. Lookups may
+ * come from several threads. When several threads miss on the same term at
+ * once, only one of them reads it from the index and the others wait for
+ * that read.
+ */
+public class PostingListCache {
+    private final HTree index;
+    private final long maximumWeight;
+    // Access order, least recently used first; guarded by this
+    private final LinkedHashMap<String, DecodedPostings> resident = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentHashMap<String, FutureTask<DecodedPostings>> loading = new ConcurrentHashMap<>();
+    private long weight = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param index         inverted index of List&lt;Posting&gt; by term
+     * @param maximumWeight budget of the cache in bytes
+     */
+    public PostingListCache(HTree index, long maximumWeight) {
+        this.index = index;
+        this.maximumWeight = maximumWeight;
+    }
+
+    /**
+     * Decoded posting list of a term, empty if the term is not indexed.
+     */
+    public DecodedPostings get(String term) throws IOException {
+        synchronized (this) {
+            DecodedPostings postings = resident.get(term);
+            if (postings != null) {
+                hits++;
+                return postings;
+            }
+            misses++;
+        }
+
+        FutureTask<DecodedPostings> task = new FutureTask<>(() -> load(term));
+        FutureTask<DecodedPostings> running = loading.putIfAbsent(term, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(term, task);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading postings of " + term, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Cannot read postings of " + term, e.getCause());
+        }
+    }
+
+    private DecodedPostings load(String term) throws IOException {
+        synchronized (this) {
+            // Loaded by another thread between our miss and our turn to load
+            DecodedPostings postings = resident.get(term);
+            if (postings != null) {
+                return postings;
+            }
+        }
+
+        DecodedPostings postings = DecodedPostings.decode((List<Posting>) index.get(term));
+        // Made resident before the load is unregistered, so no later miss reads it again
+        store(term, postings);
+        return postings;
+    }
+
+    private synchronized void store(String term, DecodedPostings postings) {
+        long entryWeight = postings.weight() + 2L * term.length();
+        if (entryWeight > maximumWeight) {
+            return;
+        }
+        resident.put(term, postings);
+        weight += entryWeight;
+
+        Iterator<Map.Entry<String, DecodedPostings>> eldest = resident.entrySet().iterator();
+        while (weight > maximumWeight && eldest.hasNext()) {
+            Map.Entry<String, DecodedPostings> entry = eldest.next();
+            weight -= entry.getValue().weight() + 2L * entry.getKey().length();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Drop every cached list, e.g. after the index was changed.
+     */
+    public synchronized void invalidateAll() {
+        resident.clear();
+        weight = 0;
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+}
@@ -3,16 +3,20 @@ import jdbm.htree.HTree;
 import java.util.*;
 
 import jdbm.htree.HTree;
+import java.io.IOException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 public class SearchEngine {
+    // Memory budget of the decoded postings cached for each index
+    private static final long POSTINGS_CACHE_BYTES = 32L * 1024 * 1024;
+    // Results per ranking
+    private static final int MAX_RESULTS = 50;
+
     private StopStem stopStem;
     private Map<String, TermInfo> termToTermId;
-    private HTree titleIndex;
-    private HTree bodyIndex;
+    private PostingListCache titleIndex;
+    private PostingListCache bodyIndex;
     private Map<Integer, Double> pageRankScores;
     private int documentSize;
     private Map<Integer, List<Integer>> indexedDocs;
@@ -20,169 +24,177 @@ public class SearchEngine {
     public SearchEngine(StopStem stopStem, Map<String, TermInfo> termToTermId, HTree titleInvertedIndex, HTree bodyInvertedIndex, Map<Integer, Double> pageRankScores, int documentSize,Map<Integer, List<Integer>> indexedDocs ) {
         this.stopStem = stopStem;
         this.termToTermId = termToTermId;
-        this.titleIndex = titleInvertedIndex;
-        this.bodyIndex = bodyInvertedIndex;
+        this.titleIndex = new PostingListCache(titleInvertedIndex, POSTINGS_CACHE_BYTES);
+        this.bodyIndex = new PostingListCache(bodyInvertedIndex, POSTINGS_CACHE_BYTES);
         this.pageRankScores = pageRankScores;
         this.documentSize = documentSize;
         this.indexedDocs = indexedDocs;
     }
 
     /**
-     * Computes cosine similarity ranking.
+     * Both rankings of a query, each ordered best first.
      */
-    public Map<Integer, Object[]> searchCosSim(String userQuery, Crawler crawler) {
+    public record RankedResults(Map<Integer, Object[]> cosine, Map<Integer, Object[]> combined) {
+    }
+
+    /**
+     * Ranks the documents by cosine similarity and by cosine similarity *
+     * PageRank in one scoring pass.
+     *
+     * Documents are first scored and selected on (docId, score) only. Titles,
+     * URLs, child links, term details and snippets are then built just for
+     * the documents that are returned, once for a document in both rankings.
+     */
+    public RankedResults search(String userQuery, Crawler crawler) {
+        RankedResults noResults = new RankedResults(Collections.emptyMap(), Collections.emptyMap());
         // Check for empty or blank queries
         if (userQuery == null || userQuery.trim().isEmpty()) {
             System.out.println("Empty query detected. Please enter a valid search term.");
-            return Collections.emptyMap();
+            return noResults;
         }
         // Step 1: Extract quoted phrases before preprocessing
-        List<String> quotedPhrases = extractQuotedPhrases(userQuery);
-        //System.out.println("Quoted Phrases: " + quotedPhrases);
+        List<PhraseQuery> phrases = PhraseQuery.parse(userQuery, stopStem);
 
-        // Step 2: Process the rest of the query separately
-        List<String> filterQuery = preprocessQuery(userQuery);
+        // Step 2: Process the query words, phrase words included
+        List<String> filterQuery = preprocessQuery(PhraseQuery.stripPhrases(userQuery));
         // Check if any valid terms remained after processing
         if (filterQuery.isEmpty()) {
             System.out.println("No valid search terms found after processing. Please try a different query.");
-            return Collections.emptyMap();
+            return noResults;
         }
-        Map<Integer, Object[]> cosineScores = CosSim.calculateCosSim(filterQuery, termToTermId, titleIndex, bodyIndex, documentSize);
 
+        // Step 3: Score, documents with a zero cosine similarity are left out
+        Map<Integer, Double> cosineScores = CosSim.score(filterQuery, termToTermId, titleIndex, bodyIndex, documentSize);
 
-        // Remove entries with zero final cosine similarity
-        cosineScores.entrySet().removeIf(entry -> {
-            Object value = entry.getValue()[0];
-            return value instanceof Double && (double) value == 0.0;
-        });
+        // Step 4: Keep the documents containing every phrase, from the positions in the indexes
+        Set<Integer> phraseDocs = findPhraseDocs(phrases);
+        if (phraseDocs != null) {
+            cosineScores.keySet().retainAll(phraseDocs);
+        }
 
         if (cosineScores.isEmpty()) {
             System.out.println("No relevant documents found.");
-            return Collections.emptyMap();
+            return noResults;
         }
 
-        Map<Integer, Object[]> formattedResults = new HashMap<>();
-        for (Map.Entry<Integer, Object[]> entry : cosineScores.entrySet()) {
-            int docId = entry.getKey();
-            Object[] data = entry.getValue();
-
-            // Extract separate similarity scores
-            double finalCosSimScore = (double) data[0]; // Weighted 60% title, 40% body
-
-            List<TermData> topTermsWithDetails = (List<TermData>) data[1]; // Extract top term details
-
-            // Convert `TermData` to term frequency mappings while keeping title/body positions separate
-            List<Map.Entry<String, Integer>> topTermsWithFrequency = new ArrayList<>();
-            Map<String, List<Integer>> titleTermPositions = new HashMap<>();
-            Map<String, List<Integer>> bodyTermPositions = new HashMap<>();
-            Map<Integer, List<String>> termUrls = new HashMap<>();
-
-            String title = crawler.getUrlFromDocId(docId)[1];
-            String url = crawler.getUrlFromDocId(docId)[0];
-
-            for (TermData termData : topTermsWithDetails) {
-                topTermsWithFrequency.add(Map.entry(termData.getTerm(), termData.getFrequency())); // Store term-frequency pairs
-                titleTermPositions.put(termData.getTerm(), termData.getTitlePositions()); // Store title positions separately
-                bodyTermPositions.put(termData.getTerm(), termData.getBodyPositions()); // Store body positions separately
-            }
-
-            // Fetch child URLs safely
-            List<Integer> childDocIds = indexedDocs.get(docId);
-            if (childDocIds == null || childDocIds.isEmpty()) {
-                termUrls.put(docId, List.of("No child URLs found."));
-            } else {
-                for (int childDocId : childDocIds) {
-                    String childUrl = crawler.getUrlFromDocId(childDocId)[0];
-                    termUrls.computeIfAbsent(docId, k -> new ArrayList<>()).add(childUrl);
-                }
-            }
-
-            //get the surrounding words
-            Vector<String> bodyWords = crawler.getWordFromDocId(docId);
-            List<String> snapWords = getCombinedSnippets(bodyTermPositions, bodyWords);
-
-            // Step 3: Check if the full phrase exists **in either the title OR body**
-            Vector<String> titleWords = Main.tokenizeTitle(title); // Function to tokenize title into words
-            boolean fullPhraseExistsInTitle = checkPhraseSequence( quotedPhrases, titleWords);
-            boolean fullPhraseExistsInBody = checkPhraseSequence(quotedPhrases, bodyWords);
-            // Step 4: Add to results if **either title OR body contains the full phrase**
-            if (fullPhraseExistsInTitle || fullPhraseExistsInBody) {
-                formattedResults.put(docId, new Object[]{
-                        title,
-                        url,
-                        finalCosSimScore, // Weighted score
-                        topTermsWithFrequency, // Top terms
-                        titleTermPositions, // Title term positions
-                        bodyTermPositions, // Body term positions
-                        termUrls, // URLs
-                        snapWords //snap sentence
-                });
-            }
+        // Step 5: Select the top documents of both rankings
+        Map<Integer, Double> combinedScores = new HashMap<>();
+        for (Map.Entry<Integer, Double> entry : cosineScores.entrySet()) {
+            combinedScores.put(entry.getKey(), entry.getValue() * pageRankScores.getOrDefault(entry.getKey(), 0.0));
         }
+        List<Integer> cosineTop = selectTop(cosineScores, MAX_RESULTS);
+        List<Integer> combinedTop = selectTop(combinedScores, MAX_RESULTS);
+
+        // Step 6: Build the result details of the selected documents only
+        Map<Integer, Object[]> details = new HashMap<>();
+        return new RankedResults(
+                materialize(cosineTop, cosineScores, details, filterQuery, crawler),
+                materialize(combinedTop, combinedScores, details, filterQuery, crawler));
+    }
 
-        return formattedResults.entrySet().stream()
-                .sorted((a, b) -> Double.compare((double) b.getValue()[2], (double) a.getValue()[2])) // Sort by highest combined score
-                .limit(50) // Keep top 50 results
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (e1, e2) -> e1, LinkedHashMap::new));
+    /**
+     * Computes cosine similarity ranking.
+     */
+    public Map<Integer, Object[]> searchCosSim(String userQuery, Crawler crawler) {
+        return search(userQuery, crawler).cosine();
     }
 
     /**
      * Computes combined ranking using cosine similarity * PageRank.
      */
     public Map<Integer, Object[]> searchCombined(String userQuery, Crawler crawler) {
-        Map<Integer, Object[]> cosineScores = searchCosSim(userQuery, crawler);
-        if (cosineScores.isEmpty()) {
-            return Collections.emptyMap();
-        }
-
-        Map<Integer, Object[]> combinedScores = new HashMap<>();
-
-        for (Map.Entry<Integer, Object[]> entry : cosineScores.entrySet()) {
-            Integer docId = entry.getKey();
-            Object[] cosSimData = entry.getValue();
-
-            String title = (String) cosSimData[0];
-            String url = (String) cosSimData[1];
-            double finalCosSimScore = (double) cosSimData[2]; // Weighted cosine score (60% title, 40% body)
+        return search(userQuery, crawler).combined();
+    }
 
-            // Extract term frequency list safely
-            List<Map.Entry<String, Integer>> topTermsWithFrequency = (List<Map.Entry<String, Integer>>) cosSimData[3];
+    /**
+     * The k documents with the highest scores, best first. Ties go to the
+     * lower docID.
+     */
+    private static List<Integer> selectTop(Map<Integer, Double> scores, int k) {
+        Comparator<Map.Entry<Integer, Double>> worstFirst = Map.Entry.<Integer, Double>comparingByValue()
+                .thenComparing(Map.Entry.<Integer, Double>comparingByKey().reversed());
+        PriorityQueue<Map.Entry<Integer, Double>> top = new PriorityQueue<>(k + 1, worstFirst);
+        for (Map.Entry<Integer, Double> entry : scores.entrySet()) {
+            top.add(entry);
+            if (top.size() > k) {
+                top.poll();
+            }
+        }
 
-            // Extract term positions safely
-            Map<String, List<Integer>> titleTermPositions = (Map<String, List<Integer>>) cosSimData[4]; // Title term positions
-            Map<String, List<Integer>> bodyTermPositions = (Map<String, List<Integer>>) cosSimData[5]; // Body term positions
+        List<Integer> docIds = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            docIds.add(top.poll().getKey());
+        }
+        Collections.reverse(docIds);
+        return docIds;
+    }
 
-            // Extract child URLs safely
-            Map<Integer, List<String>> termUrls = (Map<Integer, List<String>>) cosSimData[6];
+    /**
+     * Result entries of the given documents in order, with the score of the
+     * ranking. Details already built for the other ranking are reused.
+     */
+    private Map<Integer, Object[]> materialize(List<Integer> docIds, Map<Integer, Double> scores,
+                                               Map<Integer, Object[]> details, List<String> filterQuery,
+                                               Crawler crawler) {
+        Map<Integer, Object[]> results = new LinkedHashMap<>();
+        for (int docId : docIds) {
+            Object[] data = details.computeIfAbsent(docId, doc -> buildDetails(doc, filterQuery, crawler)).clone();
+            data[2] = scores.get(docId);
+            results.put(docId, data);
+        }
+        return results;
+    }
 
-            //get the surrounding words
-            List<String> snapWords = (List<String>) cosSimData[7];
+    /**
+     * Everything shown for a result except its score: title, URL, top terms,
+     * term positions, child URLs and snippets.
+     */
+    private Object[] buildDetails(int docId, List<String> filterQuery, Crawler crawler) {
+        List<TermData> topTermsWithDetails = CosSim.getTopTerms(filterQuery, termToTermId, titleIndex, bodyIndex, docId);
+
+        // Convert `TermData` to term frequency mappings while keeping title/body positions separate
+        List<Map.Entry<String, Integer>> topTermsWithFrequency = new ArrayList<>();
+        Map<String, List<Integer>> titleTermPositions = new HashMap<>();
+        Map<String, List<Integer>> bodyTermPositions = new HashMap<>();
+        Map<Integer, List<String>> termUrls = new HashMap<>();
+
+        String[] urlAndTitle = crawler.getUrlFromDocId(docId);
+        String title = urlAndTitle[1];
+        String url = urlAndTitle[0];
+
+        for (TermData termData : topTermsWithDetails) {
+            topTermsWithFrequency.add(Map.entry(termData.getTerm(), termData.getFrequency())); // Store term-frequency pairs
+            titleTermPositions.put(termData.getTerm(), termData.getTitlePositions()); // Store title positions separately
+            bodyTermPositions.put(termData.getTerm(), termData.getBodyPositions()); // Store body positions separately
+        }
 
-            // Fetch child URLs safely
-            String[] urls = crawler.getUrlFromDocId(docId);
-            if (urls == null || urls.length == 0) {
-                urls = new String[]{"No child URLs found."}; // Default message if empty
+        // Fetch child URLs safely
+        List<Integer> childDocIds = indexedDocs.get(docId);
+        if (childDocIds == null || childDocIds.isEmpty()) {
+            termUrls.put(docId, List.of("No child URLs found."));
+        } else {
+            for (int childDocId : childDocIds) {
+                String childUrl = crawler.getUrlFromDocId(childDocId)[0];
+                termUrls.computeIfAbsent(docId, k -> new ArrayList<>()).add(childUrl);
             }
-
-            // Compute combined score using PageRank
-            double pageRankScore = pageRankScores.getOrDefault(docId, 0.0);
-            double combinedScore = finalCosSimScore * pageRankScore;
-
-            // Store formatted results
-            combinedScores.put(docId, new Object[]{
-                    title, url, combinedScore,
-                    topTermsWithFrequency, titleTermPositions, bodyTermPositions, termUrls, snapWords
-            });
         }
 
-        // Sort documents in descending order & get top 50
-        return combinedScores.entrySet().stream()
-                .sorted((a, b) -> Double.compare((double) b.getValue()[2], (double) a.getValue()[2])) // Sort by highest combined score
-                .limit(50) // Keep top 50 results
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (e1, e2) -> e1, LinkedHashMap::new));
+        //get the surrounding words
+        Vector<String> bodyWords = crawler.getWordFromDocId(docId);
+        List<String> snapWords = getCombinedSnippets(bodyTermPositions, bodyWords);
+
+        return new Object[]{
+                title,
+                url,
+                null, // Score of the ranking
+                topTermsWithFrequency, // Top terms
+                titleTermPositions, // Title term positions
+                bodyTermPositions, // Body term positions
+                termUrls, // URLs
+                snapWords //snap sentence
+        };
     }
 
-
     /**
      * Preprocesses the user query (tokenization, stopword removal, stemming).
      */
@@ -191,52 +203,34 @@ public class SearchEngine {
         return new ArrayList<>(Main.processWords(queryVector, stopStem).keySet());
     }
     /**
-     * Extracts AND splits all quoted phrases into individual words,
-     * while also preserving non-quoted terms
+     * Documents that contain every phrase, each phrase in either the title or
+     * the body.
+     *
+     * @return the documents, or null if the query has no phrase
      */
-    public List<String> extractQuotedPhrases(String userQuery) {
-        List<String> quotedWords = new ArrayList<>();
-
-        if (userQuery == null || userQuery.trim().isEmpty()) {
-            return quotedWords;
+    private Set<Integer> findPhraseDocs(List<PhraseQuery> phrases) {
+        if (phrases.isEmpty()) {
+            return null;
         }
 
-        // Regex to match ONLY quoted phrases (e.g., "Hong Kong")
-        Matcher matcher = Pattern.compile("\"([^\"]+)\"").matcher(userQuery);
-
-        while (matcher.find()) {
-            // Split the quoted phrase into individual words
-            String[] words = matcher.group(1).trim().split("\\s+");
-            for (String word : words) {
-                if (!word.isEmpty()) { quotedWords.add(word.toLowerCase()); // Store in lowercase
-                }
+        Set<Integer> docs = null;
+        for (PhraseQuery phrase : phrases) {
+            Set<Integer> phraseDocs = new HashSet<>();
+            try {
+                phraseDocs.addAll(phrase.matchingDocs(titleIndex));
+                phraseDocs.addAll(phrase.matchingDocs(bodyIndex));
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+            if (docs == null) {
+                docs = phraseDocs;
+            } else {
+                docs.retainAll(phraseDocs);
             }
         }
-
-        return quotedWords;
-    }
-
-    /**
-     * Helper function to check if a quoted phrase sequence exists in term positions.
-     */
-
-    private static boolean checkPhraseSequence(List<String> quotedPhrases, Vector<String> words) {
-        if (quotedPhrases.isEmpty()) {
-            return true; // No phrase to check
-        }
-
-        // Convert both lists to space-separated lowercase strings for case-insensitive search
-        String wordsString = String.join(" ", words).toLowerCase();
-        String phraseString = String.join(" ", quotedPhrases).toLowerCase() + " ";
-
-        // Check if words contain the full phrase as a contiguous substring
-        boolean found = wordsString.contains(phraseString);
-
-        return found;
+        return docs;
     }
 
-
-
     public List<String> getCombinedSnippets(Map<String, List<Integer>> termPositions,
                                             List<String> textTokens) {
         List<String> combinedSnippets = new ArrayList<>();
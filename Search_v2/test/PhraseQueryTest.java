@@ -0,0 +1,105 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for phrase matching on the positions of the inverted index.
+ */
+public class PhraseQueryTest
+{
+    private static final String[] DOCUMENTS = {
+        "apple banana cherry",
+        "banana apple cherry",
+        "apple cherry banana",
+        "apple the banana",
+        "apple apple banana",
+        "apple banana apple",
+        "cherry apple grape grape grape banana"
+    };
+
+    private StopStem stopStem;
+    private PostingListCache index;
+
+    /**
+     * Index the documents as docIDs 1 and up. Positions count every word,
+     * but stop words are not indexed.
+     */
+    private void buildIndex() throws Exception
+    {
+        File directory = Files.createTempDirectory("phrase-query").toFile();
+        directory.deleteOnExit();
+        File stopwords = new File(directory, "stopwords.txt");
+        Files.write(stopwords.toPath(), "the\n".getBytes());
+        stopwords.deleteOnExit();
+        stopStem = new StopStem(stopwords.getPath());
+
+        InvertedIndex invertedIndex = new InvertedIndex(new File(directory, "phrases").getPath(), "body");
+        for (int docID = 1; docID <= DOCUMENTS.length; docID++) {
+            String[] words = DOCUMENTS[docID - 1].split(" ");
+            for (String word : new HashSet<>(List.of(words))) {
+                if (stopStem.isStopWord(word)) {
+                    continue;
+                }
+                WordInfo wordInfo = new WordInfo();
+                for (int i = 0; i < words.length; i++) {
+                    if (words[i].equals(word)) {
+                        wordInfo.addPositionAndIncrementFrequency(i + 1);
+                    }
+                }
+                invertedIndex.addEntry(stopStem.stem(word), docID, wordInfo);
+            }
+        }
+        for (File file : directory.listFiles()) {
+            file.deleteOnExit();
+        }
+        index = new PostingListCache(invertedIndex.getHashtable(), Long.MAX_VALUE);
+    }
+
+    /**
+     * Documents containing every phrase of the query.
+     */
+    private Set<Integer> matches(String query) throws Exception
+    {
+        List<PhraseQuery> phrases = PhraseQuery.parse(query, stopStem);
+        assertTrue(query, !phrases.isEmpty());
+        Set<Integer> docs = new HashSet<>(phrases.get(0).matchingDocs(index));
+        for (PhraseQuery phrase : phrases) {
+            docs.retainAll(phrase.matchingDocs(index));
+        }
+        return docs;
+    }
+
+    @Test
+    public void phrasesMatchWordsInOrder() throws Exception
+    {
+        buildIndex();
+
+        assertEquals(Set.of(1, 5, 6), matches("\"apple banana\""));
+        assertEquals(Set.of(2, 6), matches("\"banana apple\""));
+        // Every word may be one position off, so the order of two neighbours does not matter
+        assertEquals(Set.of(1, 2, 3, 4, 5, 6), matches("\"apple banana\"~1"));
+        assertEquals(Set.of(1, 2, 3, 4, 5, 6, 7), matches("\"apple banana\"~2"));
+        // The stop word keeps its place, any word may fill it
+        assertEquals(Set.of(3, 4, 5), matches("\"apple the banana\""));
+        assertEquals(Set.of(5), matches("\"apple apple\""));
+        assertEquals(Set.of(5), matches("\"apple apple banana\""));
+        assertEquals(Set.of(1), matches("\"apple banana\" \"banana cherry\""));
+        assertEquals(Set.of(), matches("\"apple durian\""));
+    }
+
+    @Test
+    public void stopWordPhrasesAreLeftOut() throws Exception
+    {
+        buildIndex();
+
+        assertEquals(0, PhraseQuery.parse("\"the\" apple", stopStem).size());
+        assertEquals("apple  banana  cherry", PhraseQuery.stripPhrases("apple \"banana\" cherry"));
+    }
+}
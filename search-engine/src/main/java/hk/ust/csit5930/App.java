@@ -4,14 +4,21 @@ import jdbm.RecordManagerFactory;
 import jdbm.htree.HTree;
 import org.htmlparser.util.ParserException;
 
-import hk.ust.csit5930.models.TermInfo;
+import hk.ust.csit5930.models.RankedResults;
+import hk.ust.csit5930.models.ScoredDocument;
 import hk.ust.csit5930.models.WordInfo;
+import hk.ust.csit5930.utils.BulkIndexBuilder;
+import hk.ust.csit5930.utils.DocumentNorms;
 import hk.ust.csit5930.utils.InvertedIndex;
+import hk.ust.csit5930.utils.LinkGraph;
 import hk.ust.csit5930.utils.PageRank;
 import hk.ust.csit5930.utils.SearchEngine;
+import hk.ust.csit5930.utils.StaticRanks;
 import hk.ust.csit5930.utils.StopStem;
+import hk.ust.csit5930.utils.TermDictionary;
 import hk.ust.csit5930.utils.TextProcessor;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 
@@ -24,8 +31,10 @@ public class App {
     private static final String STOPWORDS_PATH = "search-engine/src/main/resources/stopwords.txt";
     private static final String BODY_INDEX_DB = "recordmanager2";
     private static final String BODY_INDEX_NAME = "bodyIndex";
-    private static final int PAGERANK_ITERATIONS = 5;
+    private static final int PAGERANK_MAX_ITERATIONS = 100;
     private static final double PAGERANK_DAMPING_FACTOR = 0.8;
+    private static final double PAGERANK_TOLERANCE = 1e-6;
+    private static final long INDEX_BUILD_MEMORY_BUDGET = 64L * 1024 * 1024;
     
     public static void main(String[] args) {
         try {
@@ -33,24 +42,25 @@ public class App {
             Spider crawler = initCrawler();
             StopStem stopStem = new StopStem(STOPWORDS_PATH);
             InvertedIndex bodyInvertedIndex = new InvertedIndex(BODY_INDEX_DB, BODY_INDEX_NAME);
+            // The crawl starts from scratch and renumbers the pages, nothing of an earlier build is kept
+            bodyInvertedIndex.clear();
 
             // Step 1: Crawl web pages
             Map<Integer, List<Integer>> indexedDocs = crawlWebPages(crawler);
-            int[][] linkMatrix = crawler.getLinkMatrix();
 
             // Step 2: Build indexes
-            Map<String, TermInfo> termToTermId = new HashMap<>();
-            Map<Integer, String> termIdToTerm = new HashMap<>();
-            Map<Integer, List<Integer>> docTermIndex = new HashMap<>();
-            
-            buildIndexes(crawler, stopStem, bodyInvertedIndex, indexedDocs, 
-                         termToTermId, termIdToTerm, docTermIndex);
+            TermDictionary termDictionary = buildIndexes(crawler, stopStem, bodyInvertedIndex, indexedDocs);
+            termDictionary.write(new File(BODY_INDEX_DB + TermDictionary.FILE_EXTENSION));
 
             // Step 3: Compute PageRank
-            Map<Integer, Double> pageRankScores = computePageRank(linkMatrix);
+            StaticRanks pageRanks = computePageRank(indexedDocs);
+            pageRanks.write(new File(BODY_INDEX_DB + StaticRanks.FILE_EXTENSION));
+
+            // Step 4: Compute the document norms used for cosine scoring
+            DocumentNorms norms = DocumentNorms.compute(1, 0, termDictionary, bodyInvertedIndex, indexedDocs.size());
 
-            // Step 4: Initialize search engine and handle queries
-            runSearchEngine(stopStem, termToTermId, bodyInvertedIndex, pageRankScores, 
+            // Step 5: Initialize search engine and handle queries
+            runSearchEngine(stopStem, termDictionary, bodyInvertedIndex, norms, pageRanks, 
                            indexedDocs.size(), crawler);
 
         } catch (IOException e) {
@@ -78,17 +88,16 @@ public class App {
     }
 
     /**
-     * Build term indexes and inverted indexes for search
+     * Build the inverted index and the term dictionary for search
+     * @return term dictionary holding the document frequency of every term
      * @throws IOException 
      */
-    private static void buildIndexes(Spider crawler, StopStem stopStem, 
-                                   InvertedIndex bodyInvertedIndex,
-                                   Map<Integer, List<Integer>> indexedDocs,
-                                   Map<String, TermInfo> termToTermId, 
-                                   Map<Integer, String> termIdToTerm,
-                                   Map<Integer, List<Integer>> docTermIndex) throws IOException {
+    private static TermDictionary buildIndexes(Spider crawler, StopStem stopStem, 
+                                             InvertedIndex bodyInvertedIndex,
+                                             Map<Integer, List<Integer>> indexedDocs) throws IOException {
         System.out.println("Indexing documents...");
-        int nextTermId = 1;
+        TermDictionary.Builder dictionaryBuilder = new TermDictionary.Builder();
+        BulkIndexBuilder indexBuilder = new BulkIndexBuilder(bodyInvertedIndex, INDEX_BUILD_MEMORY_BUDGET);
 
         for (Integer docId : indexedDocs.keySet()) {
             Vector<String> bodyWords = crawler.getContent(docId);
@@ -98,50 +107,40 @@ public class App {
                 String term = entry.getKey();
                 WordInfo wordInfo = entry.getValue();
 
-                // Add TermID into docTermIndex
-                if (!docTermIndex.containsKey(docId)) {
-                    docTermIndex.put(docId, new ArrayList<>());
-                }
-                List<Integer> termList = docTermIndex.get(docId);
-                termList.add(nextTermId);
-
-                // Assign TermID into termToTermId and termIdToTerm and update the document frequency
-                if (!termToTermId.containsKey(term)) {
-                    TermInfo termInfo = new TermInfo(term, nextTermId, 1);
-                    termToTermId.put(term, termInfo);
-                    termIdToTerm.put(nextTermId, term);
-                    nextTermId++;
-                } else {
-                    TermInfo termInfo = termToTermId.get(term);
-                    termInfo.setFrequency(termInfo.getFrequency() + 1);
-                }
+                // Update the document frequency
+                dictionaryBuilder.addDocument(term);
 
                 // Update invertedFileIndex
-                bodyInvertedIndex.addEntry(term, docId, wordInfo);
+                indexBuilder.addEntry(term, docId, wordInfo);
             }
         }
+
+        // Merge buffered postings into the index with a single commit
+        indexBuilder.finish();
+        return dictionaryBuilder.build();
     }
 
     /**
-     * Compute PageRank scores for all documents
+     * Compute PageRank scores for all documents, from the crawled links
      */
-    private static Map<Integer, Double> computePageRank(int[][] linkMatrix) {
-        PageRank pageRank = new PageRank(linkMatrix);
-        pageRank.computePageRank(PAGERANK_ITERATIONS, PAGERANK_DAMPING_FACTOR);
-        return pageRank.getPageRankScores();
+    private static StaticRanks computePageRank(Map<Integer, List<Integer>> relationships) {
+        PageRank pageRank = new PageRank(LinkGraph.fromRelationships(relationships, 0));
+        pageRank.computePageRank(PAGERANK_MAX_ITERATIONS, PAGERANK_DAMPING_FACTOR, PAGERANK_TOLERANCE, false);
+        System.out.printf("PageRank: %d iterations, residual %.2e%n", pageRank.getIterations(), pageRank.getResidual());
+        return StaticRanks.create(1, pageRank.getRanksByDocId());
     }
 
     /**
      * Run the search engine and handle user queries
      */
-    private static void runSearchEngine(StopStem stopStem, Map<String, TermInfo> termToTermId, 
-                                      InvertedIndex bodyInvertedIndex, 
-                                      Map<Integer, Double> pageRankScores, 
+    private static void runSearchEngine(StopStem stopStem, TermDictionary termDictionary, 
+                                      InvertedIndex bodyInvertedIndex, DocumentNorms norms,
+                                      StaticRanks pageRanks, 
                                       int totalDocs, Spider crawler) {
         // Initialize SearchEngine
-        SearchEngine searchEngine = new SearchEngine(stopStem, termToTermId, 
-                                                     bodyInvertedIndex.getHashtable(), 
-                                                     pageRankScores, totalDocs);
+        SearchEngine searchEngine = new SearchEngine(stopStem, termDictionary, 
+                                                     bodyInvertedIndex, norms,
+                                                     pageRanks, totalDocs);
         
         // Create a scanner for user input
         Scanner scanner = new Scanner(System.in);
@@ -158,7 +157,7 @@ public class App {
             }
             
             // Perform search and retrieve results
-            Map<String, Object> results = searchEngine.search(userQuery);
+            RankedResults results = searchEngine.search(userQuery);
             
             displaySearchResults(results, crawler);
             
@@ -172,7 +171,7 @@ public class App {
     /**
      * Display search results to the user
      */
-    private static void displaySearchResults(Map<String, Object> results, Spider crawler) {
+    private static void displaySearchResults(RankedResults results, Spider crawler) {
         // Check if search results are empty
         if (results.isEmpty()) {
             System.out.println("No relevant documents found for your search query.");
@@ -181,33 +180,30 @@ public class App {
         
         // Print cosine similarity results
         System.out.println("\nTop 10 Results (Based on Cosine Similarity):");
-        List<Map.Entry<Integer, Object[]>> cosineResults = (List<Map.Entry<Integer, Object[]>>) results.get("cosine");
-        displayResultSet(cosineResults, crawler, false);
+        displayResultSet(results.cosine(), crawler, false);
 
         // Print combined score results
         System.out.println("\nTop 10 Results (Based on Combined Score - CosSim * PageRank):");
-        List<Map.Entry<Integer, Object[]>> combinedResults = (List<Map.Entry<Integer, Object[]>>) results.get("combined");
-        displayResultSet(combinedResults, crawler, true);
+        displayResultSet(results.combined(), crawler, true);
     }
     
     /**
      * Display a specific set of results (either cosine or combined)
      */
-    private static void displayResultSet(List<Map.Entry<Integer, Object[]>> results, 
+    private static void displayResultSet(List<ScoredDocument> results, 
                                        Spider crawler, boolean isCombined) {
-        for (Map.Entry<Integer, Object[]> entry : results) {
-            int docId = entry.getKey();
-            Object[] data = entry.getValue();
-            double cosSimScore = (double) data[0];
+        for (ScoredDocument result : results) {
+            int docId = result.docId();
+            double cosSimScore = result.cosineScore();
+            List<Integer> positions = result.positions();
             
             String url = crawler.getUrl(docId);
             String title = crawler.getTitle(docId);
             Vector<String> content = crawler.getContent(docId);
             
             if (isCombined) {
-                double pageRankScore = (double) data[1];
-                double combinedScore = (double) data[2];
-                List<Integer> positions = (List<Integer>) data[3];
+                double pageRankScore = result.pageRankScore();
+                double combinedScore = result.combinedScore();
                 
                 System.out.printf("DocID: %d | URL: %s | CosSim: %.5f | PageRank: %.5f | Combined Score: %.5f%n",
                         docId, url, cosSimScore, pageRankScore, combinedScore);
@@ -215,8 +211,6 @@ public class App {
                 System.out.println("Title: " + title);
                 displaySnippets(content, positions);
             } else {
-                List<Integer> positions = (List<Integer>) data[1];
-                
                 System.out.printf("DocID: %d | URL: %s | CosSim: %.5f%n", docId, url, cosSimScore);
                 System.out.println("Title: " + title);
                 displaySnippets(content, positions);
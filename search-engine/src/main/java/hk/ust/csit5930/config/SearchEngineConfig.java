@@ -10,8 +10,26 @@ public class SearchEngineConfig {
     private String stopwordsPath;
     private String bodyIndexDb;
     private String bodyIndexName;
+    private boolean recrawlOnStartup = false;
     private int pagerankIterations;
     private double pagerankDampingFactor;
+    private double pagerankTolerance = 1e-6;
+    private boolean pagerankGaussSeidel = false;
+    private int pagerankThreads = 0;
+    private double pagerankLocalUpdateMaxChange = 0.01;
+    private int indexBuildMemoryBudgetMb = 64;
+    private int indexBuildThreads = 0;
+    private String indexFormat = "htree";
+    private String segmentDirectory = "index-segments";
+    private boolean incrementalIndexing = false;
+    private int mergeSegmentsPerTier = 10;
+    private double mergeMaxMbPerSec = 20;
+    private String scoringStrategy = "exhaustive";
+    private int resultCacheMaxEntries = 1000;
+    private int postingsCacheMb = 64;
+    private int queryPartitions = 1;
+    private int queryThreads = 0;
+    private int maxQueryParallelism = 4;
 
     public String getRootUrl() {
         return rootUrl;
@@ -45,6 +63,14 @@ public class SearchEngineConfig {
         this.bodyIndexName = bodyIndexName;
     }
 
+    public boolean isRecrawlOnStartup() {
+        return recrawlOnStartup;
+    }
+
+    public void setRecrawlOnStartup(boolean recrawlOnStartup) {
+        this.recrawlOnStartup = recrawlOnStartup;
+    }
+
     public int getPagerankIterations() {
         return pagerankIterations;
     }
@@ -60,4 +86,140 @@ public class SearchEngineConfig {
     public void setPagerankDampingFactor(double pagerankDampingFactor) {
         this.pagerankDampingFactor = pagerankDampingFactor;
     }
-}
\ No newline at end of file
+
+    public double getPagerankTolerance() {
+        return pagerankTolerance;
+    }
+
+    public void setPagerankTolerance(double pagerankTolerance) {
+        this.pagerankTolerance = pagerankTolerance;
+    }
+
+    public boolean isPagerankGaussSeidel() {
+        return pagerankGaussSeidel;
+    }
+
+    public void setPagerankGaussSeidel(boolean pagerankGaussSeidel) {
+        this.pagerankGaussSeidel = pagerankGaussSeidel;
+    }
+
+    public int getPagerankThreads() {
+        return pagerankThreads;
+    }
+
+    public void setPagerankThreads(int pagerankThreads) {
+        this.pagerankThreads = pagerankThreads;
+    }
+
+    public double getPagerankLocalUpdateMaxChange() {
+        return pagerankLocalUpdateMaxChange;
+    }
+
+    public void setPagerankLocalUpdateMaxChange(double pagerankLocalUpdateMaxChange) {
+        this.pagerankLocalUpdateMaxChange = pagerankLocalUpdateMaxChange;
+    }
+
+    public int getIndexBuildMemoryBudgetMb() {
+        return indexBuildMemoryBudgetMb;
+    }
+
+    public void setIndexBuildMemoryBudgetMb(int indexBuildMemoryBudgetMb) {
+        this.indexBuildMemoryBudgetMb = indexBuildMemoryBudgetMb;
+    }
+
+    public int getIndexBuildThreads() {
+        return indexBuildThreads;
+    }
+
+    public void setIndexBuildThreads(int indexBuildThreads) {
+        this.indexBuildThreads = indexBuildThreads;
+    }
+
+    public String getIndexFormat() {
+        return indexFormat;
+    }
+
+    public void setIndexFormat(String indexFormat) {
+        this.indexFormat = indexFormat;
+    }
+
+    public String getSegmentDirectory() {
+        return segmentDirectory;
+    }
+
+    public void setSegmentDirectory(String segmentDirectory) {
+        this.segmentDirectory = segmentDirectory;
+    }
+
+    public boolean isIncrementalIndexing() {
+        return incrementalIndexing;
+    }
+
+    public void setIncrementalIndexing(boolean incrementalIndexing) {
+        this.incrementalIndexing = incrementalIndexing;
+    }
+
+    public int getMergeSegmentsPerTier() {
+        return mergeSegmentsPerTier;
+    }
+
+    public void setMergeSegmentsPerTier(int mergeSegmentsPerTier) {
+        this.mergeSegmentsPerTier = mergeSegmentsPerTier;
+    }
+
+    public double getMergeMaxMbPerSec() {
+        return mergeMaxMbPerSec;
+    }
+
+    public void setMergeMaxMbPerSec(double mergeMaxMbPerSec) {
+        this.mergeMaxMbPerSec = mergeMaxMbPerSec;
+    }
+
+    public String getScoringStrategy() {
+        return scoringStrategy;
+    }
+
+    public void setScoringStrategy(String scoringStrategy) {
+        this.scoringStrategy = scoringStrategy;
+    }
+
+    public int getResultCacheMaxEntries() {
+        return resultCacheMaxEntries;
+    }
+
+    public void setResultCacheMaxEntries(int resultCacheMaxEntries) {
+        this.resultCacheMaxEntries = resultCacheMaxEntries;
+    }
+
+    public int getPostingsCacheMb() {
+        return postingsCacheMb;
+    }
+
+    public void setPostingsCacheMb(int postingsCacheMb) {
+        this.postingsCacheMb = postingsCacheMb;
+    }
+
+    public int getQueryPartitions() {
+        return queryPartitions;
+    }
+
+    public void setQueryPartitions(int queryPartitions) {
+        this.queryPartitions = queryPartitions;
+    }
+
+    public int getQueryThreads() {
+        return queryThreads;
+    }
+
+    public void setQueryThreads(int queryThreads) {
+        this.queryThreads = queryThreads;
+    }
+
+    public int getMaxQueryParallelism() {
+        return maxQueryParallelism;
+    }
+
+    public void setMaxQueryParallelism(int maxQueryParallelism) {
+        this.maxQueryParallelism = maxQueryParallelism;
+    }
+}
@@ -1,7 +1,10 @@
 package hk.ust.csit5930.controller;
 
+import hk.ust.csit5930.models.ResultPage;
+import hk.ust.csit5930.models.ScoredDocument;
 import hk.ust.csit5930.models.SearchResult;
 import hk.ust.csit5930.service.SearchEngineService;
+import hk.ust.csit5930.utils.SearchEngine;
 import hk.ust.csit5930.utils.TextProcessor;
 
 import org.slf4j.Logger;
@@ -17,6 +20,10 @@ import java.util.stream.Collectors;
 @RequestMapping("/api")
 public class SearchController {
     private static final Logger logger = LoggerFactory.getLogger(SearchController.class);
+    private static final int MAX_RESULTS = 100;
+    // Deepest offset page; deeper pages are reached with the next cursor
+    private static final int MAX_OFFSET_WINDOW = 1000;
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
 
     private final SearchEngineService searchEngineService;
     
@@ -26,45 +33,80 @@ public class SearchController {
     }
     
     /**
-     * Search API endpoint
+     * Search API endpoint. Results are paged by offset and limit, or by the
+     * cursor returned in the {@value #NEXT_CURSOR_HEADER} header of the
+     * previous page, which also reaches pages deeper than the offset window.
      * 
      * @param query the search query
      * @param rankBy optional parameter to specify ranking method (cosine or combined)
+     * @param k optional number of results, at most {@value #MAX_RESULTS}; superseded by limit
+     * @param offset optional number of results to skip, not combined with a cursor
+     * @param limit optional number of results, at most {@value #MAX_RESULTS}
+     * @param cursor optional next cursor of the previous page
      * @return list of search results
      */
     @GetMapping("/search")
     public ResponseEntity<?> search(
             @RequestParam String query,
-            @RequestParam(required = false, defaultValue = "combined") String rankBy) {
+            @RequestParam(required = false, defaultValue = "combined") String rankBy,
+            @RequestParam(required = false, defaultValue = "10") int k,
+            @RequestParam(required = false, defaultValue = "0") int offset,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) String cursor) {
         
+        int pageSize = limit != null ? limit : k;
+        if (pageSize < 1 || pageSize > MAX_RESULTS) {
+            return badRequest("Invalid number of results", "limit must be between 1 and " + MAX_RESULTS);
+        }
+        // Compared this way round, a huge offset cannot overflow
+        if (offset < 0 || offset > MAX_OFFSET_WINDOW - pageSize) {
+            return badRequest("Invalid offset", "offset + limit must be at most " + MAX_OFFSET_WINDOW
+                    + ", use the next cursor for deeper pages");
+        }
+        if (cursor != null && offset > 0) {
+            return badRequest("Invalid offset", "offset cannot be combined with a cursor");
+        }
+
         try {
-            logger.info("Received search request: query='{}', rankBy='{}'", query, rankBy);
+            logger.info("Received search request: query='{}', rankBy='{}', offset={}, limit={}, cursor={}",
+                    query, rankBy, offset, pageSize, cursor);
+            
+            // Choose ranking method based on parameter
+            String rankingMethod = rankBy.equalsIgnoreCase("cosine") ? "cosine" : "combined";
+            SearchEngine.Ranking ranking = rankingMethod.equals("cosine")
+                ? SearchEngine.Ranking.COSINE : SearchEngine.Ranking.COMBINED;
             
             // Perform search
-            Map<String, Object> searchResults = searchEngineService.search(query);
+            ResultPage page = searchEngineService.searchPage(query, ranking, offset, pageSize, cursor);
             
-            if (searchResults.isEmpty()) {
+            if (page.documents().isEmpty()) {
                 logger.info("No results found for query: {}", query);
                 return ResponseEntity.ok(Collections.emptyList());
             }
             
-            // Choose ranking method based on parameter
-            String rankingMethod = rankBy.equalsIgnoreCase("cosine") ? "cosine" : "combined";
-            List<Map.Entry<Integer, Object[]>> rankedResults = 
-                (List<Map.Entry<Integer, Object[]>>) searchResults.get(rankingMethod);
-            
             // Transform into API response format
-            List<SearchResult> formattedResults = formatSearchResults(rankedResults, rankingMethod);
+            List<SearchResult> formattedResults = formatSearchResults(page.documents(), rankingMethod);
             
-            return ResponseEntity.ok(formattedResults);
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+            if (page.nextCursor() != null) {
+                response.header(NEXT_CURSOR_HEADER, page.nextCursor());
+            }
+            return response.body(formattedResults);
+        } catch (SearchEngineService.InvalidCursorException e) {
+            logger.info("Rejected search cursor: {}", e.getMessage());
+            return badRequest("Invalid cursor", e.getMessage());
         } catch (Exception e) {
             logger.error("Error processing search request", e);
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "Failed to process search query");
-            error.put("message", e.getMessage());
-            return ResponseEntity.badRequest().body(error);
+            return badRequest("Failed to process search query", e.getMessage());
         }
     }
+
+    private static ResponseEntity<Map<String, String>> badRequest(String error, String message) {
+        Map<String, String> body = new HashMap<>();
+        body.put("error", error);
+        body.put("message", message);
+        return ResponseEntity.badRequest().body(body);
+    }
     
     /**
      * Get details about a specific document
@@ -110,27 +152,18 @@ public class SearchController {
     /**
      * Format search results for API response
      */
-    private List<SearchResult> formatSearchResults(List<Map.Entry<Integer, Object[]>> results, String rankingMethod) {
+    private List<SearchResult> formatSearchResults(List<ScoredDocument> results, String rankingMethod) {
         List<SearchResult> formattedResults = new ArrayList<>();
         
         // Process each search result
-        for (Map.Entry<Integer, Object[]> entry : results) {
-            int docId = entry.getKey();
-            Object[] data = entry.getValue();
+        for (ScoredDocument result : results) {
+            int docId = result.docId();
+            double cosSimScore = result.cosineScore();
+            double combinedScore = result.combinedScore();
+            List<Integer> positions = result.positions();
             
-            double cosSimScore = (double) data[0];
-            double pageRankScore = 0.0;
-            double combinedScore = 0.0;
-            List<Integer> positions;
-            
-            // Extract data based on ranking method
-            if (rankingMethod.equals("combined")) {
-                pageRankScore = (double) data[1];
-                combinedScore = (double) data[2];
-                positions = (List<Integer>) data[3];
-            } else {
-                positions = (List<Integer>) data[1];
-            }
+            // PageRank is only reported for the combined ranking
+            double pageRankScore = rankingMethod.equals("combined") ? result.pageRankScore() : 0.0;
             
             // Get document information
             String url = searchEngineService.getDocumentDetails(docId).get("url").toString();
@@ -0,0 +1,20 @@
+package hk.ust.csit5930.models;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Top documents of a query by cosine similarity and by the combined score,
+ * each list best first.
+ */
+public record RankedResults(List<ScoredDocument> cosine, List<ScoredDocument> combined) {
+    private static final RankedResults EMPTY = new RankedResults(Collections.emptyList(), Collections.emptyList());
+
+    public static RankedResults empty() {
+        return EMPTY;
+    }
+
+    public boolean isEmpty() {
+        return cosine.isEmpty() && combined.isEmpty();
+    }
+}
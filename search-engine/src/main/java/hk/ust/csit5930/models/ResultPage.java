@@ -0,0 +1,18 @@
+package hk.ust.csit5930.models;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of a ranking, best first.
+ *
+ * @param nextCursor opaque position after the last document of the page, from
+ *                   which the next page continues; null if there is no next page
+ */
+public record ResultPage(List<ScoredDocument> documents, String nextCursor) {
+    private static final ResultPage EMPTY = new ResultPage(Collections.emptyList(), null);
+
+    public static ResultPage empty() {
+        return EMPTY;
+    }
+}
@@ -0,0 +1,13 @@
+package hk.ust.csit5930.models;
+
+import java.util.List;
+
+/**
+ * A document ranked by the search engine, with the scores of both rankings
+ * and the positions of the query terms in its body.
+ *
+ * @param combinedScore cosine similarity times PageRank
+ */
+public record ScoredDocument(int docId, double cosineScore, double pageRankScore, double combinedScore,
+                             List<Integer> positions) {
+}
@@ -2,22 +2,46 @@ package hk.ust.csit5930.service;
 
 import hk.ust.csit5930.Spider;
 import hk.ust.csit5930.config.SearchEngineConfig;
-import hk.ust.csit5930.models.TermInfo;
+import hk.ust.csit5930.models.RankedResults;
+import hk.ust.csit5930.models.ResultPage;
+import hk.ust.csit5930.models.ScoredDocument;
 import hk.ust.csit5930.models.WordInfo;
+import hk.ust.csit5930.utils.BooleanQuery;
+import hk.ust.csit5930.utils.DocumentNorms;
+import hk.ust.csit5930.utils.IndexManifest;
+import hk.ust.csit5930.utils.IndexSegment;
 import hk.ust.csit5930.utils.InvertedIndex;
+import hk.ust.csit5930.utils.LinkGraph;
 import hk.ust.csit5930.utils.PageRank;
+import hk.ust.csit5930.utils.ParallelIndexBuilder;
+import hk.ust.csit5930.utils.PostingsCache;
+import hk.ust.csit5930.utils.PostingsSource;
+import hk.ust.csit5930.utils.QueryResultCache;
+import hk.ust.csit5930.utils.SegmentManager;
+import hk.ust.csit5930.utils.SegmentReader;
+import hk.ust.csit5930.utils.SegmentWriter;
 import hk.ust.csit5930.utils.SearchEngine;
+import hk.ust.csit5930.utils.StaticRanks;
 import hk.ust.csit5930.utils.StopStem;
+import hk.ust.csit5930.utils.TermDictionary;
 import hk.ust.csit5930.utils.TextProcessor;
+import hk.ust.csit5930.utils.TieredMergePolicy;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 @Service
 public class SearchEngineService {
@@ -28,15 +52,77 @@ public class SearchEngineService {
     private Spider crawler;
     private StopStem stopStem;
     private InvertedIndex bodyInvertedIndex;
-    private Map<String, TermInfo> termToTermId;
-    private Map<Integer, String> termIdToTerm;
-    private Map<Integer, Double> pageRankScores;
+    private SegmentManager segmentManager;
+    private PostingsSource bodyPostings;
+    private volatile PostingsCache postingsCache;
+    private TermDictionary termDictionary;
+    private StaticRanks pageRanks;
     private Map<Integer, List<Integer>> indexedDocs;
-    private SearchEngine searchEngine;
+    private volatile SearchEngine searchEngine;
+    private ForkJoinPool queryPool;
+    private volatile long generation;
+    private final QueryResultCache<ResultKey, RankedResults> resultCache;
+
+    /**
+     * Cached results are those of one analyzed query, with k results per
+     * ranking after a position (null for the first pages), on one index
+     * generation.
+     */
+    private record ResultKey(long generation, String query, int k, SearchEngine.SearchAfter after) {
+    }
 
     @Autowired
-    public SearchEngineService(SearchEngineConfig config) {
+    public SearchEngineService(SearchEngineConfig config, MeterRegistry meterRegistry) {
         this.config = config;
+        int cacheSize = config.getResultCacheMaxEntries();
+        this.resultCache = cacheSize > 0 ? new QueryResultCache<>(cacheSize) : null;
+        if (resultCache != null) {
+            registerCacheMetrics(meterRegistry);
+        }
+        if (config.getPostingsCacheMb() > 0) {
+            registerPostingsCacheMetrics(meterRegistry);
+        }
+    }
+
+    /**
+     * Export the result cache statistics as actuator metrics
+     */
+    private void registerCacheMetrics(MeterRegistry meterRegistry) {
+        FunctionCounter.builder("search.result.cache.requests", resultCache, QueryResultCache::getHitCount)
+                .tag("result", "hit")
+                .description("Searches answered from the result cache")
+                .register(meterRegistry);
+        FunctionCounter.builder("search.result.cache.requests", resultCache, QueryResultCache::getMissCount)
+                .tag("result", "miss")
+                .description("Searches not found in the result cache")
+                .register(meterRegistry);
+        FunctionCounter.builder("search.result.cache.evictions", resultCache, QueryResultCache::getEvictionCount)
+                .description("Results dropped from or not admitted to the full result cache")
+                .register(meterRegistry);
+        Gauge.builder("search.result.cache.size", resultCache, QueryResultCache::size)
+                .description("Results in the result cache")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Export the postings cache statistics as actuator metrics. They stay 0
+     * unless queries read the JDBM index.
+     */
+    private void registerPostingsCacheMetrics(MeterRegistry meterRegistry) {
+        FunctionCounter.builder("search.postings.cache.requests", this,
+                        service -> service.postingsCache == null ? 0 : service.postingsCache.getHitCount())
+                .tag("result", "hit")
+                .description("Posting lists read from the postings cache")
+                .register(meterRegistry);
+        FunctionCounter.builder("search.postings.cache.requests", this,
+                        service -> service.postingsCache == null ? 0 : service.postingsCache.getMissCount())
+                .tag("result", "miss")
+                .description("Posting lists read from JDBM")
+                .register(meterRegistry);
+        Gauge.builder("search.postings.cache.bytes", this,
+                        service -> service.postingsCache == null ? 0 : service.postingsCache.getUsedBytes())
+                .description("Bytes of posting lists in the postings cache")
+                .register(meterRegistry);
     }
 
     /**
@@ -48,31 +134,43 @@ public class SearchEngineService {
         
         try {
             // Initialize crawler and components
-            crawler = initCrawler();
+            if (config.isIncrementalIndexing()) {
+                segmentManager = openSegmentManager();
+            }
             stopStem = new StopStem(config.getStopwordsPath());
-            bodyInvertedIndex = new InvertedIndex(config.getBodyIndexDb(), config.getBodyIndexName());
-            termToTermId = new HashMap<>();
-            termIdToTerm = new HashMap<>();
-            
-            // Start crawling and indexing
-            logger.info("Starting crawler...");
-            indexedDocs = crawlWebPages(crawler);
-            int[][] linkMatrix = crawler.getLinkMatrix();
-            
-            // Build indexes
-            logger.info("Building indexes...");
-            Map<Integer, List<Integer>> docTermIndex = new HashMap<>();
-            buildIndexes(crawler, stopStem, bodyInvertedIndex, indexedDocs, 
-                         termToTermId, termIdToTerm, docTermIndex);
             
-            // Compute PageRank
-            logger.info("Computing PageRank scores...");
-            pageRankScores = computePageRank(linkMatrix);
+            // Serve the persisted index unless it is missing or a recrawl is requested
+            File manifestFile = new File(config.getBodyIndexDb() + IndexManifest.FILE_EXTENSION);
+            IndexManifest manifest = IndexManifest.read(manifestFile);
+            if (manifest != null && !config.isRecrawlOnStartup() && restoreIndex(manifest)) {
+                logger.info("Loaded index generation {} with {} documents", manifest.getGeneration(),
+                        manifest.getDocumentCount());
+            } else {
+                long generation = manifest == null ? 1 : manifest.getGeneration() + 1;
+                manifest = crawlAndIndex(generation, manifest);
+                manifest.write(manifestFile);
+                logger.info("Wrote index generation {}", generation);
+            }
+            DocumentNorms norms = openNorms(manifest);
             
             // Initialize search engine
-            searchEngine = new SearchEngine(stopStem, termToTermId, 
-                                           bodyInvertedIndex.getHashtable(),
-                                           pageRankScores, indexedDocs.size());
+            SearchEngine.ScoringStrategy scoringStrategy = "wand".equalsIgnoreCase(config.getScoringStrategy())
+                    ? SearchEngine.ScoringStrategy.WAND : SearchEngine.ScoringStrategy.EXHAUSTIVE;
+            int partitions = Math.max(1, config.getQueryPartitions());
+            if (partitions > 1 && queryPool == null) {
+                int threads = config.getQueryThreads() > 0
+                        ? config.getQueryThreads() : Runtime.getRuntime().availableProcessors();
+                queryPool = new ForkJoinPool(threads);
+            }
+            searchEngine = new SearchEngine(stopStem, termDictionary, 
+                                           queryPostings(), norms,
+                                           pageRanks, indexedDocs.size(), scoringStrategy,
+                                           partitions, Math.max(1, config.getMaxQueryParallelism()), queryPool);
+            // Results of an earlier generation are never served, their keys no longer match
+            this.generation = manifest.getGeneration();
+            if (resultCache != null) {
+                resultCache.invalidateAll();
+            }
             
             logger.info("Search engine initialization complete. Ready to handle search requests.");
         } catch (IOException e) {
@@ -81,15 +179,243 @@ public class SearchEngineService {
         }
     }
 
+    /**
+     * Crawl, index the pages and compute PageRank
+     * @param previous manifest of the previous index, null if there is none
+     * @return manifest describing the new index
+     */
+    private IndexManifest crawlAndIndex(long generation, IndexManifest previous) throws IOException {
+        // An existing index is only kept in sync with the crawl database it was built from
+        crawler = initCrawler(segmentManager == null || !segmentManager.hasSegments());
+        
+        // Start crawling and indexing
+        logger.info("Starting crawler...");
+        indexedDocs = crawlWebPages(crawler);
+        
+        if (segmentManager != null) {
+            // Index new and changed pages only, queries read all segments
+            logger.info("Updating index segments...");
+            SegmentReader reader = updateSegments(crawler, stopStem, indexedDocs);
+            termDictionary = reader.getTermDictionary();
+            bodyPostings = reader;
+        } else {
+            // Build indexes
+            logger.info("Building indexes...");
+            bodyInvertedIndex = new InvertedIndex(config.getBodyIndexDb(), config.getBodyIndexName());
+            // The crawl starts from scratch and renumbers the pages, nothing of an earlier build is kept
+            bodyInvertedIndex.clear();
+            termDictionary = buildIndexes(crawler, stopStem, bodyInvertedIndex, indexedDocs);
+            
+            // Choose the index the query path reads from
+            bodyPostings = openQueryIndex(bodyInvertedIndex);
+        }
+        
+        // Compute PageRank
+        logger.info("Computing PageRank scores...");
+        Map<Integer, String> urls = pageUrls(crawler, indexedDocs);
+        pageRanks = computePageRank(generation, indexedDocs, urls, previous);
+        pageRanks.write(ranksFile());
+        
+        // Derived files of an earlier index may share the generation if the manifest was deleted
+        long buildId = new Random().nextLong();
+        return new IndexManifest(generation, buildId, indexedDocs.size(), termDictionary, indexedDocs, urls);
+    }
+
+    /**
+     * Serve the index described by a manifest without crawling. Page titles,
+     * URLs and content are still read from the crawl database.
+     * @return false if the posting lists or PageRank scores of the manifest
+     *         are missing
+     */
+    private boolean restoreIndex(IndexManifest manifest) throws IOException {
+        StaticRanks ranks = StaticRanks.open(ranksFile());
+        if (ranks == null || ranks.getGeneration() != manifest.getGeneration()) {
+            return false;
+        }
+        if (segmentManager != null) {
+            if (!segmentManager.hasSegments()) {
+                return false;
+            }
+            bodyPostings = segmentManager.getReader();
+        } else if ("segment".equalsIgnoreCase(config.getIndexFormat())) {
+            File segmentDirectory = new File(config.getSegmentDirectory());
+            if (!IndexSegment.exists(segmentDirectory, config.getBodyIndexName())) {
+                return false;
+            }
+            bodyPostings = IndexSegment.open(segmentDirectory, config.getBodyIndexName());
+        } else {
+            bodyInvertedIndex = new InvertedIndex(config.getBodyIndexDb(), config.getBodyIndexName());
+            bodyPostings = bodyInvertedIndex;
+        }
+        
+        crawler = initCrawler(false);
+        termDictionary = manifest.getTermDictionary();
+        indexedDocs = manifest.getLinks();
+        pageRanks = ranks;
+        return true;
+    }
+
+    /**
+     * File of the PageRank scores, next to the JDBM database
+     */
+    private File ranksFile() {
+        return new File(config.getBodyIndexDb() + StaticRanks.FILE_EXTENSION);
+    }
+
+    /**
+     * Open the document norms of the index a manifest describes. They are
+     * computed from the posting lists if the stored ones are missing or
+     * belong to another build of the index.
+     */
+    private DocumentNorms openNorms(IndexManifest manifest) throws IOException {
+        File normsFile = new File(config.getBodyIndexDb() + DocumentNorms.FILE_EXTENSION);
+        DocumentNorms norms = DocumentNorms.open(normsFile);
+        if (norms == null || norms.getGeneration() != manifest.getGeneration()
+                || norms.getBuildId() != manifest.getBuildId()
+                || norms.getTermCount() != termDictionary.size()) {
+            logger.info("Computing document norms...");
+            norms = DocumentNorms.compute(manifest.getGeneration(), manifest.getBuildId(), termDictionary,
+                    bodyPostings, indexedDocs.size());
+            norms.write(normsFile);
+        }
+        return norms;
+    }
+
+    /**
+     * Stop background segment merges and query threads on shutdown
+     */
+    @PreDestroy
+    public void shutdown() throws IOException {
+        if (queryPool != null) {
+            queryPool.shutdown();
+        }
+        if (segmentManager != null) {
+            segmentManager.close();
+        }
+    }
+
     /**
      * Search for documents matching the provided query
      * 
      * @param query the search query
+     * @param k number of results per ranking
      * @return search results containing document information and relevance scores
      */
-    public Map<String, Object> search(String query) {
-        logger.debug("Processing search query: {}", query);
-        return searchEngine.search(query);
+    public RankedResults search(String query, int k) {
+        logger.debug("Processing search query: {} (top {})", query, k);
+        BooleanQuery analyzed = searchEngine.analyze(query);
+        if (analyzed == null) {
+            return RankedResults.empty();
+        }
+        return search(analyzed, k, null);
+    }
+
+    /**
+     * Get one page of a ranking, either by offset or after the cursor of the
+     * previous page. Offsets rank every document up to the end of the page,
+     * a cursor only selects the documents ranked after it.
+     *
+     * @param ranking ranking to page through
+     * @param offset  number of documents to skip, 0 when a cursor is given
+     * @param limit   number of documents on the page
+     * @param cursor  next cursor of the previous page, or null
+     * @return the page, with a cursor for the next page if it is full
+     * @throws InvalidCursorException if the cursor is malformed, belongs to
+     *         another query or ranking, or to an index that was replaced
+     */
+    public ResultPage searchPage(String query, SearchEngine.Ranking ranking, int offset, int limit, String cursor) {
+        logger.debug("Processing search query: {} ({} results from {}, cursor {})", query, limit, offset, cursor);
+        BooleanQuery analyzed = searchEngine.analyze(query);
+        if (analyzed == null) {
+            return ResultPage.empty();
+        }
+
+        long generation = this.generation;
+        String canonicalQuery = analyzed.toString();
+        List<ScoredDocument> documents;
+        if (cursor == null) {
+            RankedResults results = search(analyzed, offset + limit, null);
+            documents = ranking == SearchEngine.Ranking.COSINE ? results.cosine() : results.combined();
+            documents = documents.subList(Math.min(offset, documents.size()), documents.size());
+        } else {
+            SearchEngine.SearchAfter after = decodeCursor(cursor, generation, canonicalQuery, ranking);
+            RankedResults results = search(analyzed, limit, after);
+            documents = ranking == SearchEngine.Ranking.COSINE ? results.cosine() : results.combined();
+        }
+
+        // A page that is not full is the last one
+        String nextCursor = null;
+        if (documents.size() == limit) {
+            ScoredDocument last = documents.get(limit - 1);
+            double score = ranking == SearchEngine.Ranking.COSINE ? last.cosineScore() : last.combinedScore();
+            nextCursor = encodeCursor(generation, canonicalQuery,
+                    new SearchEngine.SearchAfter(ranking, score, last.docId()));
+        }
+        return new ResultPage(documents, nextCursor);
+    }
+
+    private RankedResults search(BooleanQuery analyzed, int k, SearchEngine.SearchAfter after) {
+        if (resultCache == null) {
+            return searchEngine.search(analyzed, k, after);
+        }
+
+        // Both rankings come from one pass, so one entry serves either ranking method
+        ResultKey key = new ResultKey(generation, analyzed.toString(), k, after);
+        RankedResults results = resultCache.get(key);
+        if (results == null) {
+            results = searchEngine.search(analyzed, k, after);
+            resultCache.put(key, results);
+        }
+        return results;
+    }
+
+    /**
+     * A cursor that cannot be resumed, kept apart from the other argument
+     * errors of a search so callers can report it as such.
+     */
+    public static class InvalidCursorException extends IllegalArgumentException {
+        public InvalidCursorException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Encode a search-after position as an opaque URL-safe string, tied to
+     * the query and the index generation it was ranked on.
+     */
+    private static String encodeCursor(long generation, String canonicalQuery, SearchEngine.SearchAfter after) {
+        String cursor = generation + ":" + canonicalQuery.hashCode() + ":" + after.ranking() + ":"
+                + Long.toHexString(Double.doubleToLongBits(after.score())) + ":" + after.docId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static SearchEngine.SearchAfter decodeCursor(String cursor, long generation, String canonicalQuery,
+                                                         SearchEngine.Ranking ranking) {
+        String[] fields;
+        long cursorGeneration;
+        int queryHash;
+        SearchEngine.SearchAfter after;
+        try {
+            fields = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+            if (fields.length != 5) {
+                throw new InvalidCursorException("Invalid cursor");
+            }
+            cursorGeneration = Long.parseLong(fields[0]);
+            queryHash = Integer.parseInt(fields[1]);
+            after = new SearchEngine.SearchAfter(SearchEngine.Ranking.valueOf(fields[2]),
+                    Double.longBitsToDouble(Long.parseUnsignedLong(fields[3], 16)), Integer.parseInt(fields[4]));
+        } catch (IllegalArgumentException e) {
+            // Base64, number and enum errors alike
+            throw new InvalidCursorException("Invalid cursor");
+        }
+
+        if (cursorGeneration != generation) {
+            throw new InvalidCursorException("Cursor expired, the index was rebuilt. Search again from the first page.");
+        }
+        if (queryHash != canonicalQuery.hashCode() || after.ranking() != ranking) {
+            throw new InvalidCursorException("Cursor belongs to another query or ranking");
+        }
+        return after;
     }
     
     /**
@@ -106,7 +432,7 @@ public class SearchEngineService {
             details.put("title", crawler.getTitle(docId));
             details.put("url", crawler.getUrl(docId));
             details.put("content", crawler.getContent(docId));
-            details.put("pageRank", pageRankScores.getOrDefault(docId, 0.0));
+            details.put("pageRank", (double) pageRanks.getRank(docId));
             
             List<Integer> linkedDocs = indexedDocs.get(docId);
             List<Map<String, Object>> outlinks = new ArrayList<>();
@@ -143,7 +469,7 @@ public class SearchEngineService {
             doc.put("docId", docId);
             doc.put("title", crawler.getTitle(docId));
             doc.put("url", crawler.getUrl(docId));
-            doc.put("pageRank", pageRankScores.getOrDefault(docId, 0.0));
+            doc.put("pageRank", (double) pageRanks.getRank(docId));
             documents.add(doc);
         }
         
@@ -156,9 +482,9 @@ public class SearchEngineService {
     /**
      * Initialize and configure the web crawler
      */
-    private Spider initCrawler() {
+    private Spider initCrawler(boolean fromScratch) {
         Spider crawler = new Spider();
-        crawler.fromScratch(true);
+        crawler.fromScratch(fromScratch);
         return crawler;
     }
 
@@ -171,55 +497,256 @@ public class SearchEngineService {
     }
 
     /**
-     * Build term indexes and inverted indexes for search
+     * Build the inverted index and the term dictionary for search
+     * @return term dictionary holding the document frequency of every term
      * @throws IOException 
      */
-    private void buildIndexes(Spider crawler, StopStem stopStem, 
-                            InvertedIndex bodyInvertedIndex,
-                            Map<Integer, List<Integer>> indexedDocs,
-                            Map<String, TermInfo> termToTermId, 
-                            Map<Integer, String> termIdToTerm,
-                            Map<Integer, List<Integer>> docTermIndex) throws IOException {
-        int nextTermId = 1;
+    private TermDictionary buildIndexes(Spider crawler, StopStem stopStem, 
+                                      InvertedIndex bodyInvertedIndex,
+                                      Map<Integer, List<Integer>> indexedDocs) throws IOException {
+        // Documents are fetched and analyzed by a pool of workers, each building partial indexes
+        // and spilling them to sorted runs when the memory budget is exceeded
+        ParallelIndexBuilder indexBuilder = new ParallelIndexBuilder(config.getIndexBuildThreads(),
+                config.getIndexBuildMemoryBudgetMb() * 1024L * 1024L);
+        ParallelIndexBuilder.MergedIndex index = indexBuilder.build(indexedDocs.keySet(),
+                docId -> TextProcessor.processWords(crawler.getContent(docId), stopStem));
+
+        // Merge the runs into the index with a single commit
+        index.writeTo(bodyInvertedIndex);
+        logger.info("Indexed {} documents with {} terms", indexedDocs.size(), index.getTermCount());
+        return index.getTermDictionary();
+    }
+
+    /**
+     * Open the segments of the incremental index, merging them in the
+     * background within the configured I/O budget.
+     */
+    private SegmentManager openSegmentManager() throws IOException {
+        File segmentDirectory = new File(config.getSegmentDirectory());
+        TieredMergePolicy mergePolicy = new TieredMergePolicy(config.getMergeSegmentsPerTier(), 10,
+                2L * 1024 * 1024, 1024L * 1024 * 1024, 33);
+        SegmentManager manager = new SegmentManager(segmentDirectory, mergePolicy,
+                config.getIndexBuildMemoryBudgetMb() * 1024L * 1024L,
+                (long) (config.getMergeMaxMbPerSec() * 1024 * 1024),
+                e -> logger.error("Background segment merge failed", e));
+        logger.info("Opened {} index segments at {}", manager.getReader().getSegmentCount(),
+                segmentDirectory.getAbsolutePath());
+        return manager;
+    }
+
+    /**
+     * Bring the segments in line with the crawl: pages whose content changed
+     * since they were indexed go into a new segment, pages that are gone are
+     * deleted, unchanged pages are not read again.
+     * @return reader over the committed segments
+     */
+    private SegmentReader updateSegments(Spider crawler, StopStem stopStem,
+                                         Map<Integer, List<Integer>> indexedDocs) throws IOException {
+        Set<Integer> removedDocs = segmentManager.getDocIds();
+        removedDocs.removeAll(indexedDocs.keySet());
+        segmentManager.deleteDocuments(removedDocs);
 
+        int changedDocs = 0;
         for (Integer docId : indexedDocs.keySet()) {
             Vector<String> bodyWords = crawler.getContent(docId);
+            long version = contentVersion(bodyWords);
+            if (segmentManager.getVersion(docId) == version) {
+                continue;
+            }
+
             Map<String, WordInfo> bodyWordFreq = TextProcessor.processWords(bodyWords, stopStem);
+            segmentManager.addDocument(docId, version, bodyWordFreq);
+            changedDocs++;
+        }
+
+        segmentManager.commit();
+        logger.info("Indexed {} new or changed documents, removed {}", changedDocs, removedDocs.size());
+        return segmentManager.getReader();
+    }
 
-            for (Map.Entry<String, WordInfo> entry : bodyWordFreq.entrySet()) {
-                String term = entry.getKey();
-                WordInfo wordInfo = entry.getValue();
+    /**
+     * Version of a page's content. The crawler's last-modified time is not
+     * reliable for every server, so the words themselves are hashed.
+     */
+    private static long contentVersion(Vector<String> bodyWords) {
+        return ((long) bodyWords.hashCode() << 32) | bodyWords.size();
+    }
 
-                // Add TermID into docTermIndex
-                if (!docTermIndex.containsKey(docId)) {
-                    docTermIndex.put(docId, new ArrayList<>());
-                }
-                List<Integer> termList = docTermIndex.get(docId);
-                termList.add(nextTermId);
-
-                // Assign TermID into termToTermId and termIdToTerm and update the document frequency
-                if (!termToTermId.containsKey(term)) {
-                    TermInfo termInfo = new TermInfo(term, nextTermId, 1);
-                    termToTermId.put(term, termInfo);
-                    termIdToTerm.put(nextTermId, term);
-                    nextTermId++;
-                } else {
-                    TermInfo termInfo = termToTermId.get(term);
-                    termInfo.setFrequency(termInfo.getFrequency() + 1);
+    /**
+     * Open the index used by queries. With the "segment" format the JDBM index
+     * is only the build store and is frozen into a memory-mapped segment.
+     */
+    private PostingsSource openQueryIndex(InvertedIndex bodyInvertedIndex) throws IOException {
+        if (!"segment".equalsIgnoreCase(config.getIndexFormat())) {
+            return bodyInvertedIndex;
+        }
+        
+        File segmentDirectory = new File(config.getSegmentDirectory());
+        logger.info("Freezing body index into segment at {}", segmentDirectory.getAbsolutePath());
+        SegmentWriter.freeze(bodyInvertedIndex, segmentDirectory, config.getBodyIndexName());
+        IndexSegment segment = IndexSegment.open(segmentDirectory, config.getBodyIndexName());
+        logger.info("Opened body index segment with {} terms", segment.getTermCount());
+        return segment;
+    }
+
+    /**
+     * Postings read by queries: the JDBM index behind the postings cache,
+     * unless the cache is disabled. Segments need none, they are
+     * memory-mapped. Only queries go through the cache, so building the
+     * norms does not fill it with every term.
+     */
+    private PostingsSource queryPostings() {
+        long capacity = config.getPostingsCacheMb() * 1024L * 1024L;
+        if (bodyPostings != bodyInvertedIndex || capacity <= 0) {
+            return bodyPostings;
+        }
+        postingsCache = new PostingsCache(bodyInvertedIndex, capacity);
+        return postingsCache;
+    }
+
+    /**
+     * Compute PageRank scores for all documents, from the crawled links.
+     * They start from the scores of the previous index, and if only a few
+     * links changed, only the pages around the changed links are updated.
+     */
+    private StaticRanks computePageRank(long generation, Map<Integer, List<Integer>> relationships,
+                                        Map<Integer, String> urls, IndexManifest previous) throws IOException {
+        LinkGraph graph = LinkGraph.fromRelationships(relationships, 0);
+        logger.info("Link graph has {} pages and {} links", graph.size(), graph.getEdgeCount());
+        PageRank pageRank = new PageRank(graph);
+        LinkChanges changes = null;
+        StaticRanks previousScores = previous == null ? null : StaticRanks.open(ranksFile());
+        if (previousScores != null && previousScores.getGeneration() == previous.getGeneration()) {
+            Map<String, Double> previousRanks = new HashMap<>();
+            Set<String> previousDangling = new HashSet<>();
+            previous.getUrls().forEach((docId, url) -> {
+                previousRanks.put(url, (double) previousScores.getRank(docId));
+                List<Integer> outlinks = previous.getLinks().get(docId);
+                if (outlinks == null || outlinks.isEmpty()) {
+                    previousDangling.add(url);
                 }
+            });
+            int ranked = pageRank.warmStart(previousRanks, previousDangling, urls);
+            changes = linkChanges(relationships, urls, previous);
+            logger.info("Starting PageRank from the previous ranks of {} of {} pages, {} links changed",
+                    ranked, graph.size(), changes.changedLinks());
+        }
 
-                // Update invertedFileIndex
-                bodyInvertedIndex.addEntry(term, docId, wordInfo);
+        int threads = config.getPagerankThreads() > 0
+                ? config.getPagerankThreads() : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        try {
+            if (changes != null
+                    && changes.changedLinks() < config.getPagerankLocalUpdateMaxChange() * graph.getEdgeCount()) {
+                boolean local = pageRank.updatePageRank(changes.affectedDocs(), config.getPagerankIterations(),
+                        config.getPagerankDampingFactor(), config.getPagerankTolerance(), pool);
+                logger.info(local ? "Updated PageRank around the changed links"
+                        : "Change reached too far, updated PageRank over the whole graph");
+            } else {
+                pageRank.computePageRank(config.getPagerankIterations(), config.getPagerankDampingFactor(),
+                        config.getPagerankTolerance(), config.isPagerankGaussSeidel(), pool);
             }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        if (!(pageRank.getResidual() < config.getPagerankTolerance())) {
+            logger.warn("PageRank did not converge in {} iterations, residual {}",
+                    pageRank.getIterations(), pageRank.getResidual());
+        } else {
+            logger.info("PageRank converged in {} iterations, residual {}",
+                    pageRank.getIterations(), pageRank.getResidual());
         }
+        return StaticRanks.create(generation, pageRank.getRanksByDocId());
+    }
+
+    /**
+     * Links added or removed since the previous index, and the pages whose
+     * rank they change directly: every page linked from a page whose links
+     * changed, before or after the change.
+     */
+    private record LinkChanges(Set<Integer> affectedDocs, int changedLinks) {
     }
 
     /**
-     * Compute PageRank scores for all documents
+     * Compare the crawled links with those of the previous index by URL,
+     * since a crawl from scratch may number the pages differently
      */
-    private Map<Integer, Double> computePageRank(int[][] linkMatrix) {
-        PageRank pageRank = new PageRank(linkMatrix);
-        pageRank.computePageRank(config.getPagerankIterations(), config.getPagerankDampingFactor());
-        return pageRank.getPageRankScores();
+    private static LinkChanges linkChanges(Map<Integer, List<Integer>> relationships,
+                                           Map<Integer, String> urls, IndexManifest previous) {
+        Map<String, Integer> docIds = new HashMap<>();
+        urls.forEach((docId, url) -> docIds.put(url, docId));
+        Map<String, Set<String>> previousLinks = new HashMap<>();
+        previous.getLinks().forEach((docId, outlinks) -> {
+            String url = previous.getUrls().get(docId);
+            if (url != null) {
+                previousLinks.put(url, linkedUrls(outlinks, previous.getUrls()));
+            }
+        });
+
+        Set<Integer> affectedDocs = new HashSet<>();
+        int changedLinks = 0;
+        for (Map.Entry<Integer, List<Integer>> entry : relationships.entrySet()) {
+            Set<String> linked = linkedUrls(entry.getValue(), urls);
+            Set<String> previouslyLinked = previousLinks.remove(urls.get(entry.getKey()));
+            if (previouslyLinked == null) {
+                previouslyLinked = Collections.emptySet();
+            }
+            if (linked.equals(previouslyLinked)) {
+                continue;
+            }
+            for (String url : linked) {
+                changedLinks += previouslyLinked.contains(url) ? 0 : 1;
+            }
+            for (String url : previouslyLinked) {
+                changedLinks += linked.contains(url) ? 0 : 1;
+            }
+            // The out-degree changed too, so the pages still linked get a different share
+            addDocIds(affectedDocs, linked, docIds);
+            addDocIds(affectedDocs, previouslyLinked, docIds);
+        }
+        // Pages that were not crawled again
+        for (Set<String> removedLinks : previousLinks.values()) {
+            changedLinks += removedLinks.size();
+            addDocIds(affectedDocs, removedLinks, docIds);
+        }
+        return new LinkChanges(affectedDocs, changedLinks);
+    }
+
+    private static Set<String> linkedUrls(List<Integer> outlinks, Map<Integer, String> urls) {
+        Set<String> linked = new HashSet<>();
+        for (int outlink : outlinks) {
+            String url = urls.get(outlink);
+            if (url != null) {
+                linked.add(url);
+            }
+        }
+        return linked;
+    }
+
+    private static void addDocIds(Set<Integer> docIds, Set<String> urls, Map<String, Integer> docIdsByUrl) {
+        for (String url : urls) {
+            Integer docId = docIdsByUrl.get(url);
+            if (docId != null) {
+                docIds.add(docId);
+            }
+        }
+    }
+
+    /**
+     * URLs of the crawled pages and the pages they link to
+     */
+    private static Map<Integer, String> pageUrls(Spider crawler, Map<Integer, List<Integer>> relationships) {
+        Set<Integer> docIds = new HashSet<>(relationships.keySet());
+        relationships.values().forEach(docIds::addAll);
+        Map<Integer, String> urls = new HashMap<>();
+        for (int docId : docIds) {
+            String url = crawler.getUrl(docId);
+            if (url != null) {
+                urls.put(docId, url);
+            }
+        }
+        return urls;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,221 @@
+package hk.ust.csit5930.utils;
+
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+
+/**
+ * {@link PostingsIterator} over a posting list encoded by {@link PostingsCodec}.
+ * Values are decoded straight from the buffer into primitives, no Posting
+ * objects or boxed integers are created.
+ *
+ * The docs stream is read one block at a time. {@link #advance(int)} uses the
+ * block headers to jump over blocks that end before the target without
+ * decoding them. The positions stream is only loaded and read once the caller
+ * asks for the positions of a document, starting from the current block.
+ */
+final class BlockPostingsIterator extends PostingsIterator {
+    private final ByteBuffer buffer;
+    private final Supplier<ByteBuffer> positionLoader;
+    private ByteBuffer positionBuffer;
+    private int positionBase;
+    private final int docFreq;
+    private final int maxFreq;
+    private final int blockCount;
+
+    // Header of the current block
+    private int blockIndex = -1;
+    private int blockFirstDocBase;
+    private int blockLastDoc;
+    private int blockMaxFreq;
+    private int blockDocCount;
+    private int blockBodyEnd;
+    private int blockPositionStart;
+    private int nextBlockPositionStart;
+
+    // Decoded documents of the current block
+    private final int[] docs = new int[PostingsCodec.BLOCK_SIZE];
+    private final int[] freqs = new int[PostingsCodec.BLOCK_SIZE];
+    private int indexInBlock = -1;
+    private int doc = -1;
+
+    // Position cursor: block and index of the entry it was last read for
+    private int positionBlock = -1;
+    private int positionEntry = -1;
+    private int positionCount;
+    private int positionsRead;
+    private int lastPosition;
+    private boolean positionsLoaded;
+
+    /**
+     * Iterator over a docs stream whose positions stream is supplied on first
+     * use. The loader may be null if positions are not needed.
+     */
+    BlockPostingsIterator(ByteBuffer buffer, Supplier<ByteBuffer> positionLoader) {
+        this.buffer = buffer;
+        this.positionLoader = positionLoader;
+        this.docFreq = PostingsCodec.readVInt(buffer);
+        this.maxFreq = PostingsCodec.readVInt(buffer);
+        this.blockCount = (docFreq + PostingsCodec.BLOCK_SIZE - 1) / PostingsCodec.BLOCK_SIZE;
+        this.blockBodyEnd = buffer.position();
+    }
+
+    @Override
+    public int docFreq() {
+        return docFreq;
+    }
+
+    @Override
+    public int maxFreq() {
+        return maxFreq;
+    }
+
+    @Override
+    public int blockLastDoc() {
+        return blockLastDoc;
+    }
+
+    @Override
+    public int blockMaxFreq() {
+        return blockMaxFreq;
+    }
+
+    @Override
+    public int nextDoc() {
+        if (doc == NO_MORE_DOCS) {
+            return doc;
+        }
+        if (++indexInBlock >= blockDocCount) {
+            if (!nextBlock()) {
+                return doc = NO_MORE_DOCS;
+            }
+            decodeBlock();
+            indexInBlock = 0;
+        }
+        positionsLoaded = false;
+        return doc = docs[indexInBlock];
+    }
+
+    @Override
+    public int advance(int target) {
+        if (doc >= target) {
+            return doc;
+        }
+
+        int from = indexInBlock + 1;
+        if (blockIndex < 0 || blockLastDoc < target) {
+            do {
+                if (!nextBlock()) {
+                    return doc = NO_MORE_DOCS;
+                }
+            } while (blockLastDoc < target);
+            decodeBlock();
+            from = 0;
+        }
+
+        // The block ends at or after the target, so the search always finds a document
+        indexInBlock = gallop(docs, from, blockDocCount, target);
+        positionsLoaded = false;
+        return doc = docs[indexInBlock];
+    }
+
+    @Override
+    public int docId() {
+        return doc;
+    }
+
+    @Override
+    public int freq() {
+        return freqs[indexInBlock];
+    }
+
+    @Override
+    public int positionCount() {
+        loadPositions();
+        return positionCount;
+    }
+
+    @Override
+    public int nextPosition() {
+        loadPositions();
+        positionsRead++;
+        lastPosition += PostingsCodec.readVInt(positionBuffer);
+        return lastPosition;
+    }
+
+    /**
+     * Read the header of the next block, skipping the body of the current one.
+     */
+    private boolean nextBlock() {
+        if (blockIndex + 1 >= blockCount) {
+            blockIndex = blockCount;
+            return false;
+        }
+        blockIndex++;
+        buffer.position(blockBodyEnd);
+
+        blockFirstDocBase = blockLastDoc;
+        blockLastDoc += PostingsCodec.readVInt(buffer);
+        blockMaxFreq = PostingsCodec.readVInt(buffer);
+        int docBytes = PostingsCodec.readVInt(buffer);
+        int positionBytes = PostingsCodec.readVInt(buffer);
+
+        blockBodyEnd = buffer.position() + docBytes;
+        blockPositionStart = nextBlockPositionStart;
+        nextBlockPositionStart += positionBytes;
+        blockDocCount = Math.min(PostingsCodec.BLOCK_SIZE, docFreq - blockIndex * PostingsCodec.BLOCK_SIZE);
+        return true;
+    }
+
+    private void decodeBlock() {
+        int current = blockFirstDocBase;
+        for (int i = 0; i < blockDocCount; i++) {
+            current += PostingsCodec.readVInt(buffer);
+            docs[i] = current;
+            freqs[i] = PostingsCodec.readVInt(buffer);
+        }
+    }
+
+    /**
+     * Bring the positions stream in line with the current document, starting
+     * from the current block unless the cursor is already in it.
+     */
+    private void loadPositions() {
+        if (positionsLoaded) {
+            return;
+        }
+        if (positionBuffer == null) {
+            if (positionLoader == null) {
+                throw new IllegalStateException("Positions are not available for this posting list");
+            }
+            positionBuffer = positionLoader.get();
+            positionBase = positionBuffer.position();
+        }
+
+        if (positionBlock == blockIndex && positionEntry < indexInBlock) {
+            skipPositions();
+        } else {
+            positionBuffer.position(positionBase + blockPositionStart);
+            positionBlock = blockIndex;
+            positionEntry = -1;
+        }
+        for (; positionEntry + 1 < indexInBlock; positionEntry++) {
+            int count = PostingsCodec.readVInt(positionBuffer);
+            for (int i = 0; i < count; i++) {
+                PostingsCodec.readVInt(positionBuffer);
+            }
+        }
+
+        positionEntry = indexInBlock;
+        positionCount = PostingsCodec.readVInt(positionBuffer);
+        positionsRead = 0;
+        lastPosition = 0;
+        positionsLoaded = true;
+    }
+
+    private void skipPositions() {
+        while (positionsRead < positionCount) {
+            PostingsCodec.readVInt(positionBuffer);
+            positionsRead++;
+        }
+    }
+}
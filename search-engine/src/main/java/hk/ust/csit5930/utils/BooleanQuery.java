@@ -0,0 +1,870 @@
+package hk.ust.csit5930.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * A query with Boolean operators, parsed into a tree and matched against the
+ * posting lists document-at-a-time.
+ *
+ * The operators are AND, OR and NOT in capitals, and parentheses for grouping.
+ * AND binds tighter than OR, and words next to each other without an operator
+ * are ORed as in a plain query. NOT excludes documents from the conjunction it
+ * is part of, so "a NOT b" means "a AND NOT b"; a query that only excludes
+ * cannot be answered. Words are stopped and stemmed like document words.
+ *
+ * A quoted phrase matches documents with its words at consecutive positions.
+ * A stop word in a phrase still takes its place, so "university of science"
+ * matches "university" and "science" two positions apart. With ~slop after
+ * the closing quote, e.g. "hong kong"~2, every word may be up to slop
+ * positions off its place in the phrase.
+ *
+ * A conjunction is led by its rarest clause. The other clauses jump to the
+ * lead's document with {@link PostingsIterator#advance(int)}, which skips
+ * whole blocks and gallops within one, and a clause that overshoots becomes
+ * the next target of the lead. Only the blocks around candidate documents are
+ * decoded, instead of every posting of every term.
+ */
+public final class BooleanQuery {
+    private static final String AND = "AND";
+    private static final String OR = "OR";
+    private static final String NOT = "NOT";
+
+    private final Node root;
+    private final List<String> terms;
+    private final boolean disjunction;
+
+    private BooleanQuery(Node root, boolean disjunction) {
+        this.root = root;
+        List<String> terms = new ArrayList<>();
+        if (root != null) {
+            root.collectTerms(terms);
+        }
+        this.terms = Collections.unmodifiableList(terms);
+        this.disjunction = disjunction;
+    }
+
+    /**
+     * Parse a query.
+     *
+     * @throws IllegalArgumentException if the query is malformed
+     */
+    public static BooleanQuery parse(String query, StopStem stopStem) {
+        List<String> tokens = tokenize(query);
+        Parser parser = new Parser(tokens, stopStem);
+        Node root = parser.parseOr();
+        if (parser.position < tokens.size()) {
+            throw new IllegalArgumentException("Unbalanced parentheses");
+        }
+        if (root instanceof Not) {
+            throw new IllegalArgumentException("NOT needs a clause to exclude from");
+        }
+        boolean disjunction = !parser.operators;
+        return new BooleanQuery(root, disjunction);
+    }
+
+    /**
+     * Split the query into words, parentheses and phrases. A phrase token
+     * keeps its quotes and always ends in ~slop.
+     */
+    private static List<String> tokenize(String query) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c == '"') {
+                if (word.length() > 0) {
+                    tokens.add(word.toString());
+                    word.setLength(0);
+                }
+                int end = query.indexOf('"', i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unbalanced quotes");
+                }
+                int slopEnd = end + 1;
+                if (slopEnd < query.length() && query.charAt(slopEnd) == '~') {
+                    slopEnd++;
+                    while (slopEnd < query.length() && Character.isDigit(query.charAt(slopEnd))) {
+                        slopEnd++;
+                    }
+                }
+                String slop = slopEnd > end + 2 ? query.substring(end + 2, slopEnd) : "0";
+                tokens.add(query.substring(i, end + 1) + "~" + slop);
+                i = slopEnd - 1;
+            } else if (c == '(' || c == ')' || Character.isWhitespace(c)) {
+                if (word.length() > 0) {
+                    tokens.add(word.toString());
+                    word.setLength(0);
+                }
+                if (!Character.isWhitespace(c)) {
+                    tokens.add(String.valueOf(c));
+                }
+            } else {
+                word.append(c);
+            }
+        }
+        if (word.length() > 0) {
+            tokens.add(word.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * Stemmed terms that are not excluded, each once, in query order. These
+     * are the terms matching documents are scored with.
+     */
+    public List<String> getTerms() {
+        return terms;
+    }
+
+    /**
+     * Whether the query is a plain list of words without operators, which
+     * matches every document containing any of them.
+     */
+    public boolean isDisjunction() {
+        return disjunction;
+    }
+
+    /**
+     * Canonical form of the analyzed query: stemmed terms, explicit operators
+     * and parentheses. Queries with the same form match and score the same
+     * documents.
+     */
+    @Override
+    public String toString() {
+        return root == null ? "" : root.toString();
+    }
+
+    /**
+     * Score the documents matching the query by their cosine similarity with
+     * the query terms, as {@link CosSim} does for a plain query.
+     *
+     * @param scores empty accumulator that receives the similarities
+     */
+    void score(TermDictionary termDictionary, PostingsSource bodyIndex, int documentSize, DocumentNorms norms,
+               ScoreAccumulator scores) {
+        if (root == null || documentSize <= 0) {
+            return;
+        }
+        try {
+            Matcher matcher = root.matcher(bodyIndex);
+            if (matcher != null) {
+                score(matcher, termDictionary, bodyIndex, documentSize, norms, scores);
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    private void score(Matcher matcher, TermDictionary termDictionary, PostingsSource bodyIndex, int documentSize,
+                       DocumentNorms norms, ScoreAccumulator scores) throws IOException {
+        // Scoring cursors in query order, which is also the order the weights are summed in
+        List<PostingsIterator> postings = new ArrayList<>();
+        List<Double> idfs = new ArrayList<>();
+        for (String term : terms) {
+            int termId = termDictionary.getTermId(term);
+            int df = termId < 0 ? 0 : termDictionary.getDocFreq(termId);
+            PostingsIterator iterator = df == 0 ? null : bodyIndex.getPostings(term);
+            if (iterator != null && iterator.docFreq() > 0) {
+                postings.add(iterator);
+                idfs.add(DocumentNorms.idf(documentSize, df));
+            }
+        }
+
+        double queryNorm = Math.sqrt(terms.size());
+        for (int doc = matcher.nextDoc(); doc != PostingsIterator.NO_MORE_DOCS; doc = matcher.nextDoc()) {
+            float dotProduct = 0;
+            for (int i = 0; i < postings.size(); i++) {
+                PostingsIterator iterator = postings.get(i);
+                if (iterator.advance(doc) == doc) {
+                    double weight = iterator.freq() * idfs.get(i) / norms.getMaxFreq(doc);
+                    dotProduct += (float) weight;
+                }
+            }
+            double docNorm = norms.getNorm(doc);
+            double cosineSimilarity = docNorm == 0 ? 0 : dotProduct / (docNorm * queryNorm);
+            scores.add(doc, (float) cosineSimilarity);
+        }
+    }
+
+    /**
+     * Recursive descent over the tokens:
+     * <pre>
+     *   or    := and ((OR)? and)*
+     *   and   := unary (AND unary | NOT unary)*
+     *   unary := NOT unary | ( or ) | "phrase"(~slop)? | word
+     * </pre>
+     * Stop words leave no node, and an operator that is left without operands
+     * by them disappears as well.
+     */
+    private static class Parser {
+        private final List<String> tokens;
+        private final StopStem stopStem;
+        private int position = 0;
+        private boolean operators = false;
+
+        Parser(List<String> tokens, StopStem stopStem) {
+            this.tokens = tokens;
+            this.stopStem = stopStem;
+        }
+
+        private String peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        private boolean startsClause(String token) {
+            return token != null && !token.equals(")") && !token.equals(AND) && !token.equals(OR);
+        }
+
+        Node parseOr() {
+            List<Node> clauses = new ArrayList<>();
+            clauses.add(parseAnd());
+            while (true) {
+                String token = peek();
+                if (OR.equals(token)) {
+                    operators = true;
+                    position++;
+                } else if (!startsClause(token)) {
+                    break;
+                }
+                clauses.add(parseAnd());
+            }
+            return Or.of(clauses);
+        }
+
+        private Node parseAnd() {
+            List<Node> clauses = new ArrayList<>();
+            clauses.add(parseUnary());
+            while (true) {
+                String token = peek();
+                if (AND.equals(token)) {
+                    operators = true;
+                    position++;
+                } else if (!NOT.equals(token)) {
+                    break;
+                }
+                clauses.add(parseUnary());
+            }
+            return And.of(clauses);
+        }
+
+        private Node parseUnary() {
+            String token = peek();
+            if (token == null || token.equals(")") || token.equals(AND) || token.equals(OR)) {
+                throw new IllegalArgumentException(token == null
+                        ? "Query ends where a word was expected" : "Unexpected '" + token + "'");
+            }
+            position++;
+
+            if (token.equals(NOT)) {
+                operators = true;
+                Node clause = parseUnary();
+                return clause == null ? null : new Not(clause);
+            }
+            if (token.equals("(")) {
+                operators = true;
+                Node clause = parseOr();
+                if (!")".equals(peek())) {
+                    throw new IllegalArgumentException("Unbalanced parentheses");
+                }
+                position++;
+                return clause;
+            }
+            if (token.startsWith("\"")) {
+                operators = true;
+                int slop = token.lastIndexOf('~');
+                return Phrase.of(token.substring(1, slop - 1), Integer.parseInt(token.substring(slop + 1)), stopStem);
+            }
+            if (stopStem.isStopWord(token)) {
+                return null;
+            }
+            return new Term(stopStem.stem(token.toLowerCase()));
+        }
+    }
+
+    /**
+     * Forward-only iterator over the documents matching a clause, in
+     * increasing docID order. Positioned before the first document until
+     * moved.
+     */
+    private abstract static class Matcher {
+        abstract int docId();
+
+        abstract int nextDoc();
+
+        abstract int advance(int target);
+
+        /**
+         * Upper bound on the number of matching documents.
+         */
+        abstract long cost();
+    }
+
+    private abstract static class Node {
+        /**
+         * Matcher of the clause, or null if it matches no document.
+         */
+        abstract Matcher matcher(PostingsSource bodyIndex) throws IOException;
+
+        abstract void collectTerms(List<String> terms);
+    }
+
+    private static class Term extends Node {
+        private final String term;
+
+        Term(String term) {
+            this.term = term;
+        }
+
+        @Override
+        Matcher matcher(PostingsSource bodyIndex) throws IOException {
+            PostingsIterator postings = bodyIndex.getPostings(term);
+            if (postings == null || postings.docFreq() == 0) {
+                return null;
+            }
+            return new Matcher() {
+                @Override
+                int docId() {
+                    return postings.docId();
+                }
+
+                @Override
+                int nextDoc() {
+                    return postings.nextDoc();
+                }
+
+                @Override
+                int advance(int target) {
+                    return postings.advance(target);
+                }
+
+                @Override
+                long cost() {
+                    return postings.docFreq();
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return term;
+        }
+
+        @Override
+        void collectTerms(List<String> terms) {
+            if (!terms.contains(term)) {
+                terms.add(term);
+            }
+        }
+    }
+
+    private static class Phrase extends Node {
+        private final List<String> terms;
+        private final int[] offsets;
+        private final int slop;
+
+        private Phrase(List<String> terms, int[] offsets, int slop) {
+            this.terms = terms;
+            this.offsets = offsets;
+            this.slop = slop;
+        }
+
+        static Node of(String phrase, int slop, StopStem stopStem) {
+            List<String> terms = new ArrayList<>();
+            List<Integer> offsets = new ArrayList<>();
+            String[] words = phrase.trim().split("\\s+");
+            for (int i = 0; i < words.length; i++) {
+                if (!words[i].isEmpty() && !stopStem.isStopWord(words[i])) {
+                    terms.add(stopStem.stem(words[i].toLowerCase()));
+                    offsets.add(i);
+                }
+            }
+            if (terms.isEmpty()) {
+                return null;
+            }
+            if (terms.size() == 1) {
+                return new Term(terms.get(0));
+            }
+            return new Phrase(terms, offsets.stream().mapToInt(Integer::intValue).toArray(), slop);
+        }
+
+        @Override
+        Matcher matcher(PostingsSource bodyIndex) throws IOException {
+            PostingsIterator[] postings = new PostingsIterator[terms.size()];
+            for (int i = 0; i < postings.length; i++) {
+                postings[i] = bodyIndex.getPostings(terms.get(i));
+                if (postings[i] == null || postings[i].docFreq() == 0) {
+                    return null;
+                }
+            }
+            return new PhraseMatcher(postings, offsets, slop);
+        }
+
+        @Override
+        public String toString() {
+            // Stop words show as gaps, they decide the distances between the terms
+            StringBuilder phrase = new StringBuilder("\"");
+            for (int i = 0; i < terms.size(); i++) {
+                int gap = i == 0 ? 0 : offsets[i] - offsets[i - 1] - 1;
+                phrase.append(i == 0 ? "" : " ").append("_ ".repeat(gap)).append(terms.get(i));
+            }
+            return phrase.append("\"~").append(slop).toString();
+        }
+
+        @Override
+        void collectTerms(List<String> terms) {
+            for (String term : this.terms) {
+                if (!terms.contains(term)) {
+                    terms.add(term);
+                }
+            }
+        }
+    }
+
+    /**
+     * Excluded clause of a conjunction. It never matches on its own.
+     */
+    private static class Not extends Node {
+        private final Node clause;
+
+        Not(Node clause) {
+            this.clause = clause;
+        }
+
+        @Override
+        Matcher matcher(PostingsSource bodyIndex) {
+            throw new IllegalStateException("NOT is only matched as part of a conjunction");
+        }
+
+        @Override
+        public String toString() {
+            return NOT + " " + clause;
+        }
+
+        @Override
+        void collectTerms(List<String> terms) {
+            // Excluded terms do not score
+        }
+    }
+
+    private static class And extends Node {
+        private final List<Node> required;
+        private final List<Node> excluded;
+
+        private And(List<Node> required, List<Node> excluded) {
+            this.required = required;
+            this.excluded = excluded;
+        }
+
+        static Node of(List<Node> clauses) {
+            List<Node> required = new ArrayList<>();
+            List<Node> excluded = new ArrayList<>();
+            for (Node clause : clauses) {
+                if (clause instanceof Not) {
+                    excluded.add(((Not) clause).clause);
+                } else if (clause != null) {
+                    required.add(clause);
+                }
+            }
+            if (required.isEmpty()) {
+                if (excluded.isEmpty()) {
+                    return null;
+                }
+                if (clauses.size() > 1) {
+                    throw new IllegalArgumentException("NOT needs a clause to exclude from");
+                }
+                // A lone NOT, excluded from an enclosing conjunction or rejected
+                return clauses.get(0);
+            }
+            if (required.size() == 1 && excluded.isEmpty()) {
+                return required.get(0);
+            }
+            return new And(required, excluded);
+        }
+
+        @Override
+        Matcher matcher(PostingsSource bodyIndex) throws IOException {
+            List<Matcher> matchers = new ArrayList<>();
+            for (Node clause : required) {
+                Matcher matcher = clause.matcher(bodyIndex);
+                if (matcher == null) {
+                    // A clause without documents empties the conjunction
+                    return null;
+                }
+                matchers.add(matcher);
+            }
+            Matcher conjunction = matchers.size() == 1 ? matchers.get(0) : new Conjunction(matchers);
+
+            List<Matcher> exclusions = new ArrayList<>();
+            for (Node clause : excluded) {
+                Matcher matcher = clause.matcher(bodyIndex);
+                if (matcher != null) {
+                    exclusions.add(matcher);
+                }
+            }
+            if (exclusions.isEmpty()) {
+                return conjunction;
+            }
+            return new Exclusion(conjunction, exclusions.size() == 1 ? exclusions.get(0) : new Disjunction(exclusions));
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner joiner = new StringJoiner(" " + AND + " ", "(", ")");
+            required.forEach(clause -> joiner.add(clause.toString()));
+            excluded.forEach(clause -> joiner.add(NOT + " " + clause));
+            return joiner.toString();
+        }
+
+        @Override
+        void collectTerms(List<String> terms) {
+            for (Node clause : required) {
+                clause.collectTerms(terms);
+            }
+        }
+    }
+
+    private static class Or extends Node {
+        private final List<Node> clauses;
+
+        private Or(List<Node> clauses) {
+            this.clauses = clauses;
+        }
+
+        static Node of(List<Node> clauses) {
+            if (clauses.size() == 1) {
+                // Possibly a lone NOT, excluded from an enclosing conjunction or rejected
+                return clauses.get(0);
+            }
+            List<Node> kept = new ArrayList<>();
+            for (Node clause : clauses) {
+                if (clause instanceof Not) {
+                    throw new IllegalArgumentException("NOT needs a clause to exclude from, use AND NOT");
+                }
+                if (clause != null) {
+                    kept.add(clause);
+                }
+            }
+            if (kept.isEmpty()) {
+                return null;
+            }
+            return kept.size() == 1 ? kept.get(0) : new Or(kept);
+        }
+
+        @Override
+        Matcher matcher(PostingsSource bodyIndex) throws IOException {
+            List<Matcher> matchers = new ArrayList<>();
+            for (Node clause : clauses) {
+                Matcher matcher = clause.matcher(bodyIndex);
+                if (matcher != null) {
+                    matchers.add(matcher);
+                }
+            }
+            if (matchers.isEmpty()) {
+                return null;
+            }
+            return matchers.size() == 1 ? matchers.get(0) : new Disjunction(matchers);
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner joiner = new StringJoiner(" " + OR + " ", "(", ")");
+            clauses.forEach(clause -> joiner.add(clause.toString()));
+            return joiner.toString();
+        }
+
+        @Override
+        void collectTerms(List<String> terms) {
+            for (Node clause : clauses) {
+                clause.collectTerms(terms);
+            }
+        }
+    }
+
+    /**
+     * Documents matching every clause, found by leapfrogging from the rarest
+     * clause.
+     */
+    private static class Conjunction extends Matcher {
+        private final Matcher lead;
+        private final Matcher[] others;
+
+        Conjunction(List<Matcher> matchers) {
+            Matcher[] sorted = matchers.toArray(new Matcher[0]);
+            Arrays.sort(sorted, Comparator.comparingLong(Matcher::cost));
+            this.lead = sorted[0];
+            this.others = Arrays.copyOfRange(sorted, 1, sorted.length);
+        }
+
+        @Override
+        int docId() {
+            return lead.docId();
+        }
+
+        @Override
+        int nextDoc() {
+            return align(lead.nextDoc());
+        }
+
+        @Override
+        int advance(int target) {
+            return align(lead.advance(target));
+        }
+
+        /**
+         * Move every clause to the first document from the lead's on that all
+         * of them contain.
+         */
+        private int align(int target) {
+            while (target != PostingsIterator.NO_MORE_DOCS) {
+                boolean aligned = true;
+                for (Matcher other : others) {
+                    int doc = other.docId() < target ? other.advance(target) : other.docId();
+                    if (doc > target) {
+                        target = lead.advance(doc);
+                        aligned = false;
+                        break;
+                    }
+                }
+                if (aligned) {
+                    return target;
+                }
+            }
+            return target;
+        }
+
+        @Override
+        long cost() {
+            return lead.cost();
+        }
+    }
+
+    /**
+     * Documents matching any clause.
+     */
+    private static class Disjunction extends Matcher {
+        private final Matcher[] matchers;
+        private int doc = -1;
+
+        Disjunction(List<Matcher> matchers) {
+            this.matchers = matchers.toArray(new Matcher[0]);
+        }
+
+        @Override
+        int docId() {
+            return doc;
+        }
+
+        @Override
+        int nextDoc() {
+            int next = PostingsIterator.NO_MORE_DOCS;
+            for (Matcher matcher : matchers) {
+                int current = matcher.docId() <= doc ? matcher.nextDoc() : matcher.docId();
+                next = Math.min(next, current);
+            }
+            return doc = next;
+        }
+
+        @Override
+        int advance(int target) {
+            if (doc >= target) {
+                return doc;
+            }
+            int next = PostingsIterator.NO_MORE_DOCS;
+            for (Matcher matcher : matchers) {
+                int current = matcher.docId() < target ? matcher.advance(target) : matcher.docId();
+                next = Math.min(next, current);
+            }
+            return doc = next;
+        }
+
+        @Override
+        long cost() {
+            long cost = 0;
+            for (Matcher matcher : matchers) {
+                cost += matcher.cost();
+            }
+            return cost;
+        }
+    }
+
+    /**
+     * Documents containing a phrase. The documents containing every word are
+     * found as in a conjunction, and only for those the positions are read
+     * and compared.
+     */
+    private static class PhraseMatcher extends Matcher {
+        private final PostingsIterator[] postings;
+        private final int[] offsets;
+        private final int slop;
+        private final PostingsIterator lead;
+        private final int[][] positions;
+        private final int[] positionCounts;
+        private final int[] cursors;
+        private int doc = -1;
+
+        PhraseMatcher(PostingsIterator[] postings, int[] offsets, int slop) {
+            this.postings = postings;
+            this.offsets = offsets;
+            this.slop = slop;
+            PostingsIterator rarest = postings[0];
+            for (PostingsIterator iterator : postings) {
+                if (iterator.docFreq() < rarest.docFreq()) {
+                    rarest = iterator;
+                }
+            }
+            this.lead = rarest;
+            this.positions = new int[postings.length][8];
+            this.positionCounts = new int[postings.length];
+            this.cursors = new int[postings.length];
+        }
+
+        @Override
+        int docId() {
+            return doc;
+        }
+
+        @Override
+        int nextDoc() {
+            return doc = match(lead.nextDoc());
+        }
+
+        @Override
+        int advance(int target) {
+            return doc = match(lead.advance(target));
+        }
+
+        private int match(int target) {
+            while (target != PostingsIterator.NO_MORE_DOCS) {
+                int next = align(target);
+                if (next == target) {
+                    if (matchesPositions()) {
+                        return target;
+                    }
+                    next = lead.nextDoc();
+                }
+                target = next;
+            }
+            return target;
+        }
+
+        /**
+         * Move every word to the target. Returns the target if all contain it,
+         * otherwise the lead's next candidate.
+         */
+        private int align(int target) {
+            for (PostingsIterator iterator : postings) {
+                int doc = iterator.docId() < target ? iterator.advance(target) : iterator.docId();
+                if (doc > target) {
+                    return lead.advance(doc);
+                }
+            }
+            return target;
+        }
+
+        /**
+         * Whether the words of the current document are in phrase order: the
+         * phrase can start at a position from which every word is within slop
+         * of its place. Only starts near the word with the fewest positions
+         * are tried.
+         */
+        private boolean matchesPositions() {
+            int anchor = 0;
+            for (int i = 0; i < postings.length; i++) {
+                int count = postings[i].positionCount();
+                if (positions[i].length < count) {
+                    positions[i] = new int[Math.max(count, positions[i].length * 2)];
+                }
+                for (int p = 0; p < count; p++) {
+                    positions[i][p] = postings[i].nextPosition();
+                }
+                positionCounts[i] = count;
+                cursors[i] = 0;
+                if (count < positionCounts[anchor]) {
+                    anchor = i;
+                }
+            }
+
+            // Starts are tried in increasing order, so each word's search resumes where the last one ended
+            int lastStart = Integer.MIN_VALUE;
+            for (int p = 0; p < positionCounts[anchor]; p++) {
+                int anchorStart = positions[anchor][p] - offsets[anchor];
+                for (int start = Math.max(anchorStart - slop, lastStart + 1); start <= anchorStart + slop; start++) {
+                    lastStart = start;
+                    if (matchesFrom(start, anchor)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean matchesFrom(int start, int anchor) {
+            for (int i = 0; i < postings.length; i++) {
+                if (i == anchor) {
+                    continue;
+                }
+                int target = start + offsets[i];
+                cursors[i] = PostingsIterator.gallop(positions[i], cursors[i], positionCounts[i], target - slop);
+                if (cursors[i] == positionCounts[i] || positions[i][cursors[i]] > target + slop) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        long cost() {
+            return lead.docFreq();
+        }
+    }
+
+    /**
+     * Documents of the required matcher that the excluded one does not match.
+     */
+    private static class Exclusion extends Matcher {
+        private final Matcher required;
+        private final Matcher excluded;
+
+        Exclusion(Matcher required, Matcher excluded) {
+            this.required = required;
+            this.excluded = excluded;
+        }
+
+        @Override
+        int docId() {
+            return required.docId();
+        }
+
+        @Override
+        int nextDoc() {
+            return skipExcluded(required.nextDoc());
+        }
+
+        @Override
+        int advance(int target) {
+            return skipExcluded(required.advance(target));
+        }
+
+        private int skipExcluded(int doc) {
+            while (doc != PostingsIterator.NO_MORE_DOCS) {
+                int excludedDoc = excluded.docId() < doc ? excluded.advance(doc) : excluded.docId();
+                if (excludedDoc != doc) {
+                    return doc;
+                }
+                doc = required.nextDoc();
+            }
+            return doc;
+        }
+
+        @Override
+        long cost() {
+            return required.cost();
+        }
+    }
+}
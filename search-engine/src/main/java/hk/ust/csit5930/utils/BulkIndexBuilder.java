@@ -0,0 +1,232 @@
+package hk.ust.csit5930.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import hk.ust.csit5930.models.WordInfo;
+
+/**
+ * Builds an inverted index in bulk instead of one posting at a time.
+ * Postings are gathered in memory per term and spilled to a sorted run file
+ * whenever the memory budget is exceeded. {@link #finish()} merges the runs
+ * and writes every posting list to the index with a single commit, replacing
+ * any list stored for the term before.
+ */
+public class BulkIndexBuilder {
+    // Rough heap cost of the buffered objects, used to decide when to spill
+    private static final int TERM_OVERHEAD_BYTES = 96;
+    private static final int POSTING_OVERHEAD_BYTES = 48;
+    private static final int POSITION_BYTES = 20;
+
+    private final InvertedIndex index;
+    private final long memoryBudget;
+    private final File runDirectory;
+
+    private Map<String, List<Posting>> buffer = new HashMap<>();
+    private long bufferedBytes = 0;
+    private final List<File> runs = new ArrayList<>();
+    private boolean finished = false;
+
+    /**
+     * @param index        Index that receives the merged postings.
+     * @param memoryBudget Approximate number of bytes to buffer before spilling a run.
+     */
+    public BulkIndexBuilder(InvertedIndex index, long memoryBudget) {
+        this(index, memoryBudget, new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    public BulkIndexBuilder(InvertedIndex index, long memoryBudget, File runDirectory) {
+        this.index = index;
+        this.memoryBudget = memoryBudget;
+        this.runDirectory = runDirectory;
+    }
+
+    /**
+     * Buffer a posting for the given term. Postings of one term must be added in
+     * increasing docID order, as {@link InvertedIndex#addEntry} expects.
+     */
+    public void addEntry(String word, int docID, WordInfo wordInfo) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Bulk build already finished");
+        }
+
+        List<Posting> postings = buffer.get(word);
+        if (postings == null) {
+            postings = new ArrayList<>();
+            buffer.put(word, postings);
+            bufferedBytes += TERM_OVERHEAD_BYTES + 2L * word.length();
+        }
+
+        List<Integer> positions = wordInfo.getPositions();
+        postings.add(new Posting(docID, wordInfo.getFrequency(), positions));
+        bufferedBytes += POSTING_OVERHEAD_BYTES + (long) POSITION_BYTES * positions.size();
+
+        if (bufferedBytes >= memoryBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * Buffer all terms of one document.
+     */
+    public void addDocument(int docID, Map<String, WordInfo> wordFreq) throws IOException {
+        for (Map.Entry<String, WordInfo> entry : wordFreq.entrySet()) {
+            addEntry(entry.getKey(), docID, entry.getValue());
+        }
+    }
+
+    /**
+     * Merge all runs with the in-memory buffer, write the posting lists to the
+     * index and commit once. The builder cannot be used afterwards.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        try {
+            if (runs.isEmpty()) {
+                // Everything fit in memory, no need to go through disk
+                for (String term : new TreeSet<>(buffer.keySet())) {
+                    index.putPostingList(term, buffer.get(term));
+                }
+                buffer = null;
+            } else {
+                spill();
+                buffer = null;
+                mergeRuns();
+            }
+            index.commit();
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+            runs.clear();
+        }
+    }
+
+    /**
+     * Write the buffered postings, sorted by term, to a new run file.
+     */
+    private void spill() throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+
+        File run = File.createTempFile("postings-run", ".tmp", runDirectory);
+        runs.add(run);
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+            for (String term : new TreeSet<>(buffer.keySet())) {
+                List<Posting> postings = buffer.get(term);
+                out.writeUTF(term);
+                out.writeInt(postings.size());
+                for (Posting posting : postings) {
+                    out.writeInt(posting.doc);
+                    out.writeInt(posting.freq);
+                    out.writeInt(posting.position.size());
+                    for (int position : posting.position) {
+                        out.writeInt(position);
+                    }
+                }
+            }
+        }
+
+        buffer = new HashMap<>();
+        bufferedBytes = 0;
+    }
+
+    /**
+     * K-way merge of the sorted runs. Runs are created in insertion order, so
+     * concatenating the postings of a term run by run keeps them in docID order.
+     */
+    private void mergeRuns() throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = a.term.compareTo(b.term);
+            return cmp != 0 ? cmp : Integer.compare(a.runNumber, b.runNumber);
+        });
+
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                RunReader reader = new RunReader(runs.get(i), i);
+                readers.add(reader);
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+
+            while (!queue.isEmpty()) {
+                String term = queue.peek().term;
+                List<Posting> postings = new ArrayList<>();
+
+                while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+                    RunReader reader = queue.poll();
+                    postings.addAll(reader.postings);
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    }
+                }
+
+                index.putPostingList(term, postings);
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Sequential reader over one run file, holding the current term and its postings.
+     */
+    private static class RunReader {
+        private final DataInputStream in;
+        private final int runNumber;
+        private String term;
+        private List<Posting> postings;
+
+        RunReader(File run, int runNumber) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+            this.runNumber = runNumber;
+        }
+
+        boolean advance() throws IOException {
+            try {
+                term = in.readUTF();
+            } catch (EOFException e) {
+                term = null;
+                postings = null;
+                return false;
+            }
+
+            int count = in.readInt();
+            postings = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int doc = in.readInt();
+                int freq = in.readInt();
+                int positionCount = in.readInt();
+                List<Integer> positions = new ArrayList<>(positionCount);
+                for (int p = 0; p < positionCount; p++) {
+                    positions.add(in.readInt());
+                }
+                postings.add(new Posting(doc, freq, positions));
+            }
+            return true;
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -1,175 +1,120 @@
 package hk.ust.csit5930.utils;
-import jdbm.htree.HTree;
-
 import java.io.IOException;
 import java.util.*;
 
-import hk.ust.csit5930.models.TermInfo;
-
 import java.lang.Math;
 
 public class CosSim {
+    // Reused by every query of a thread, so scoring allocates nothing per document
+    static final ThreadLocal<ScoreAccumulator> ACCUMULATOR = ThreadLocal.withInitial(ScoreAccumulator::new);
 
     /**
      * Calculates the term weights for the given query.
      *
      * @param query        List of tokens in the search query.
-     * @param termToTermId Mapping of term to TermInfo (containing termID and df).
-     * @param bodyIndex    List of inverted index records.
+     * @param termDictionary Term dictionary (term IDs and df).
+     * @param bodyIndex    Posting lists of the body index (JDBM or segment).
      * @param documentSize Size of all document IDs (used for determining N).
+     * @param norms        Full TF-IDF vector norm and max tf of every document.
+     * @return cosine similarity per docId. Only doc IDs and frequencies are read,
+     *         positions are loaded later for the documents that are returned.
      */
-    public static Map<Integer, Object[]> calculateCosSim(
+    public static Map<Integer, Double> calculateCosSim(
             List<String> query,
-            Map<String, TermInfo> termToTermId,
-            HTree bodyIndex,
-            Integer documentSize) {
+            TermDictionary termDictionary,
+            PostingsSource bodyIndex,
+            Integer documentSize,
+            DocumentNorms norms) {
+
+        ScoreAccumulator scores = ACCUMULATOR.get();
+        try {
+            score(query, termDictionary, bodyIndex, documentSize, norms, scores);
+
+            Map<Integer, Double> similarityScores = new HashMap<>(scores.size() * 2);
+            for (int i = 0; i < scores.size(); i++) {
+                // Only include documents with non-zero similarity
+                if (scores.scoreAt(i) > 0) {
+                    similarityScores.put(scores.docAt(i), (double) scores.scoreAt(i));
+                }
+            }
+            return similarityScores;
+        } finally {
+            scores.reset();
+        }
+    }
 
+    /**
+     * Accumulate the cosine similarity of every document that contains a
+     * query term. Documents without any query term are never touched.
+     *
+     * @param scores empty accumulator that receives the similarities
+     */
+    static void score(List<String> query, TermDictionary termDictionary, PostingsSource bodyIndex,
+                      int documentSize, DocumentNorms norms, ScoreAccumulator scores) {
+        score(query, termDictionary, bodyIndex, documentSize, norms, 0, PostingsIterator.NO_MORE_DOCS, scores);
+    }
+
+    /**
+     * Accumulate the cosine similarity of the documents in [fromDoc, toDoc)
+     * that contain a query term. The IDFs are those of the whole collection,
+     * so every document gets the same score as when all are scored at once.
+     *
+     * @param scores empty accumulator that receives the similarities
+     */
+    static void score(List<String> query, TermDictionary termDictionary, PostingsSource bodyIndex,
+                      int documentSize, DocumentNorms norms, int fromDoc, int toDoc, ScoreAccumulator scores) {
         // Weight of the query
         int L = query.size();
         if (L == 0) {
             System.out.println("Query has no valid terms after stopword removal.");
-            return Collections.emptyMap();  // Return empty map instead of null
+            return;
         }
 
-        // Create a 1 x L query vector Q and initialize with 1's.
-        int[] Q = new int[L];
-        Arrays.fill(Q, 1);
-
         // Total number of documents in the collection (N)
         int N = documentSize;
         if (N <= 0) {
             System.out.println("No documents in collection.");
-            return Collections.emptyMap();
+            return;
         }
 
-        // Create a similarity table: Map<docId, double[]> (term weights per document)
-        Map<Integer, double[]> similarityTable = new HashMap<>();
-        Map<Integer, List<Integer>> termPositions = new HashMap<>(); // Store positions of query terms
-
-        for (int i = 1; i <= N; i++) {
-            similarityTable.put(i, new double[L]);
-            termPositions.put(i, new ArrayList<>());
-        }
-
-        // For each term in the query, compute term weight & track term positions
-        for (int j = 0; j < query.size(); j++) {
-            String term = query.get(j);
-
+        // For each term in the query, add its weight to the dot product of every
+        // document containing it. The query vector is all 1's.
+        for (String term : query) {
             // Retrieve term info (termID and document frequency)
-            if (!termToTermId.containsKey(term)) {
+            int termId = termDictionary.getTermId(term);
+            if (termId < 0) {
                 continue; // Skip term if not in index
             }
-            TermInfo termInfo = termToTermId.get(term);
-            int df = termInfo.frequency;
+            int df = termDictionary.getDocFreq(termId);
             if (df == 0) {
                 continue; // Guard against division by zero
             }
 
             // Compute inverse document frequency (IDF)
-            double idf = Math.log((double) N / df) / Math.log(2);
+            double idf = DocumentNorms.idf(N, df);
 
             try {
-                // Iterate over all records in the inverted index
-                List<Posting> postings = (List<Posting>) bodyIndex.get(term);
-                
-                // Add null check for postings
-                if (postings == null || postings.isEmpty()) {
+                PostingsIterator postings = bodyIndex.getPostings(term);
+                if (postings == null || postings.docFreq() == 0) {
                     continue;
                 }
-                
-                int maxtf = getMaxFrequency(postings);
-                if (maxtf == 0) {
-                    continue; // Avoid division by zero
-                }
-                
-                for (Posting posting : postings) {
-                    // Add null check for posting
-                    if (posting == null) {
-                        continue;
-                    }
-                    
-                    double weight = posting.freq * idf / maxtf;
-
-                    // Store term weight in similarity table - with null check
-                    double[] weights = similarityTable.get(posting.doc);
-                    if (weights == null) {
-                        // This document ID wasn't pre-initialized - create a new weights array
-                        weights = new double[L];
-                        similarityTable.put(posting.doc, weights);
-                    }
-                    
-                    // Make sure j is within bounds of the weights array
-                    if (j < weights.length) {
-                        weights[j] = weight;
-                    }
 
-                    // Store term positions in document - with null check
-                    List<Integer> positions = termPositions.get(posting.doc);
-                    if (positions == null) {
-                        positions = new ArrayList<>();
-                        termPositions.put(posting.doc, positions);
-                    }
-                    
-                    if (posting.position != null) {
-                        positions.addAll(posting.position);
-                    }
+                for (int doc = postings.advance(fromDoc); doc < toDoc; doc = postings.nextDoc()) {
+                    // Normalized by the document's own max tf, as in the precomputed norms
+                    double weight = postings.freq() * idf / norms.getMaxFreq(doc);
+                    scores.add(doc, (float) weight);
                 }
             } catch (IOException e) {
                 System.err.println("Error: " + e.getMessage());
             }
         }
 
-        // Compute cosine similarity & rank documents
-        Map<Integer, Object[]> similarityScores = new HashMap<>();
-
-        for (Map.Entry<Integer, double[]> entry : similarityTable.entrySet()) {
-            int docId = entry.getKey();
-            double[] docVector = entry.getValue();
-            
-            // Add null check for docVector
-            if (docVector == null) {
-                continue;
-            }
-
-            // Compute dot product: Q ⋅ docVector
-            double dotProduct = 0;
-            double docNorm = 0;
-            double queryNorm = 0;
-
-            for (int i = 0; i < L && i < docVector.length; i++) {
-                dotProduct += Q[i] * docVector[i];
-                docNorm += docVector[i] * docVector[i];
-                queryNorm += Q[i] * Q[i];
-            }
-
-            // Compute cosine similarity
-            double cosineSimilarity = (docNorm == 0 || queryNorm == 0) ? 0 : 
-                                     dotProduct / (Math.sqrt(docNorm) * Math.sqrt(queryNorm));
-
-            // Only include documents with non-zero similarity
-            if (cosineSimilarity > 0) {
-                // Store both cosine similarity & term positions
-                List<Integer> positions = termPositions.getOrDefault(docId, Collections.emptyList());
-                similarityScores.put(docId, new Object[]{cosineSimilarity, positions});
-            }
-        }
-
-        return similarityScores; // Return results with positions included
-    }
-
-    public static int getMaxFrequency(List<Posting> postings) {
-        if (postings == null || postings.isEmpty()) {
-            return 0;
+        // Divide the dot products by the norms of the full document vector and the query
+        double queryNorm = Math.sqrt(L);
+        for (int i = 0; i < scores.size(); i++) {
+            double docNorm = norms.getNorm(scores.docAt(i));
+            double cosineSimilarity = docNorm == 0 ? 0 : scores.scoreAt(i) / (docNorm * queryNorm);
+            scores.setScoreAt(i, (float) cosineSimilarity);
         }
-        
-        int maxFreq = 0; // Initialize with lowest possible value
-
-        for (Posting posting : postings) {
-            if (posting != null) {
-                maxFreq = Math.max(maxFreq, posting.freq); // Update max if higher freq found
-            }
-        }
-
-        return maxFreq;
     }
 }
@@ -0,0 +1,226 @@
+package hk.ust.csit5930.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Per-document statistics needed for cosine scoring, computed once at index
+ * time: the highest term frequency of each document and the Euclidean norm of
+ * its full TF-IDF vector, where a term weighs tf / maxTf * idf. Both are dense
+ * arrays indexed by docID, so scoring looks them up in O(1).
+ *
+ * For every term of the dictionary it also keeps the highest normalized
+ * weight, weight / norm, over all documents. This bounds the contribution of
+ * the term to any cosine score and lets dynamic pruning skip documents.
+ *
+ * The file layout is the header followed by the arrays:
+ * <pre>
+ *   MAGIC VERSION generation buildId size termCount
+ *   norm[size] (float)  maxFreq[size] (int)  termMaxScore[termCount] (float)
+ * </pre>
+ * Opened files are memory-mapped and read in place.
+ */
+public class DocumentNorms {
+    public static final String FILE_EXTENSION = ".norms";
+
+    private static final int MAGIC = 0x4e524d53; // "NRMS"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+
+    private final long generation;
+    private final long buildId;
+    private final int size;
+    private final int termCount;
+    private final ByteBuffer data;
+
+    private DocumentNorms(long generation, long buildId, int size, int termCount, ByteBuffer data) {
+        this.generation = generation;
+        this.buildId = buildId;
+        this.size = size;
+        this.termCount = termCount;
+        this.data = data;
+    }
+
+    /**
+     * Compute the statistics of every document in the index. Reads all
+     * posting lists three times: for the highest frequencies, the norms and
+     * the term bounds.
+     *
+     * @param generation    generation of the index the statistics belong to
+     * @param buildId       identifier of the build that wrote the index, see
+     *                      {@link IndexManifest#getBuildId()}
+     * @param documentCount number of documents, N in the idf
+     */
+    public static DocumentNorms compute(long generation, long buildId, TermDictionary dictionary,
+                                        PostingsSource postings, int documentCount) throws IOException {
+        int[] maxFreqs = new int[0];
+        for (int termId = 0; termId < dictionary.size(); termId++) {
+            PostingsIterator iterator = postings.getPostings(dictionary.getTerm(termId));
+            if (iterator == null) {
+                continue;
+            }
+            while (iterator.nextDoc() != PostingsIterator.NO_MORE_DOCS) {
+                int doc = iterator.docId();
+                if (doc >= maxFreqs.length) {
+                    maxFreqs = Arrays.copyOf(maxFreqs, Math.max(doc + 1, maxFreqs.length * 2));
+                }
+                maxFreqs[doc] = Math.max(maxFreqs[doc], iterator.freq());
+            }
+        }
+
+        double[] squares = new double[maxFreqs.length];
+        for (int termId = 0; termId < dictionary.size(); termId++) {
+            int df = dictionary.getDocFreq(termId);
+            PostingsIterator iterator = postings.getPostings(dictionary.getTerm(termId));
+            if (iterator == null || df == 0) {
+                continue;
+            }
+            double idf = idf(documentCount, df);
+            while (iterator.nextDoc() != PostingsIterator.NO_MORE_DOCS) {
+                int doc = iterator.docId();
+                double weight = iterator.freq() * idf / maxFreqs[doc];
+                squares[doc] += weight * weight;
+            }
+        }
+
+        float[] norms = new float[squares.length];
+        for (int doc = 0; doc < squares.length; doc++) {
+            norms[doc] = (float) Math.sqrt(squares[doc]);
+        }
+
+        float[] termMaxScores = new float[dictionary.size()];
+        for (int termId = 0; termId < dictionary.size(); termId++) {
+            int df = dictionary.getDocFreq(termId);
+            PostingsIterator iterator = postings.getPostings(dictionary.getTerm(termId));
+            if (iterator == null || df == 0) {
+                continue;
+            }
+            double idf = idf(documentCount, df);
+            double maxScore = 0;
+            while (iterator.nextDoc() != PostingsIterator.NO_MORE_DOCS) {
+                int doc = iterator.docId();
+                if (norms[doc] > 0) {
+                    maxScore = Math.max(maxScore, iterator.freq() * idf / maxFreqs[doc] / norms[doc]);
+                }
+            }
+            // Rounded up, the bound must never be below a real score
+            termMaxScores[termId] = Math.nextUp((float) maxScore);
+        }
+
+        int size = maxFreqs.length;
+        ByteBuffer data = ByteBuffer.allocate(HEADER_BYTES + 8 * size + 4 * termMaxScores.length);
+        data.putInt(MAGIC).putInt(VERSION).putLong(generation).putLong(buildId)
+                .putInt(size).putInt(termMaxScores.length);
+        for (float norm : norms) {
+            data.putFloat(norm);
+        }
+        for (int maxFreq : maxFreqs) {
+            data.putInt(maxFreq);
+        }
+        for (float termMaxScore : termMaxScores) {
+            data.putFloat(termMaxScore);
+        }
+        return new DocumentNorms(generation, buildId, size, termMaxScores.length, data);
+    }
+
+    /**
+     * Inverse document frequency used for both the norms and query scoring.
+     */
+    public static double idf(int documentCount, int docFreq) {
+        return Math.log((double) documentCount / docFreq) / Math.log(2);
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public long getBuildId() {
+        return buildId;
+    }
+
+    /**
+     * Number of docIDs covered, one more than the highest docID.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of terms with a score bound, the dictionary size at computation.
+     */
+    public int getTermCount() {
+        return termCount;
+    }
+
+    /**
+     * Norm of the document's TF-IDF vector, 0 for unknown documents.
+     */
+    public float getNorm(int docId) {
+        return docId >= 0 && docId < size ? data.getFloat(HEADER_BYTES + 4 * docId) : 0;
+    }
+
+    /**
+     * Highest term frequency of the document, 0 for unknown documents.
+     */
+    public int getMaxFreq(int docId) {
+        return docId >= 0 && docId < size ? data.getInt(HEADER_BYTES + 4 * size + 4 * docId) : 0;
+    }
+
+    /**
+     * Highest value of weight / norm of the term over all documents, for a
+     * term ID of the dictionary the statistics were computed with.
+     */
+    public float getTermMaxScore(int termId) {
+        return termId >= 0 && termId < termCount ? data.getFloat(HEADER_BYTES + 8 * size + 4 * termId) : 0;
+    }
+
+    /**
+     * Persist the statistics, replacing the file atomically.
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        // A duplicate has its own position, concurrent readers are not disturbed
+        ByteBuffer out = data.duplicate();
+        out.clear();
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Map a file written by {@link #write(File)}.
+     *
+     * @return the statistics, or null if the file does not exist
+     */
+    public static DocumentNorms open(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        // The mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (channel.size() < 8 || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+                throw new IOException("Not a supported norms file: " + file);
+            }
+            long generation = data.getLong(8);
+            long buildId = data.getLong(16);
+            int size = data.getInt(24);
+            int termCount = data.getInt(28);
+            if (channel.size() != HEADER_BYTES + 8L * size + 4L * termCount) {
+                throw new IOException("Truncated norms file: " + file);
+            }
+            return new DocumentNorms(generation, buildId, size, termCount, data);
+        }
+    }
+}
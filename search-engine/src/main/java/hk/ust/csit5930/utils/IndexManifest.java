@@ -0,0 +1,161 @@
+package hk.ust.csit5930.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Everything the query path needs besides the posting lists: the term
+ * dictionary with document frequencies, the number of documents, the outlinks
+ * and URL of every document, a generation number that grows with every
+ * rebuild and a random build ID. Files derived from the index record the
+ * build ID, since the generation starts over when the manifest is deleted.
+ * The URLs let the next crawl start PageRank from the scores of this index
+ * even if it numbers the pages differently. The scores themselves are kept in
+ * a {@link StaticRanks} file. It is written next to the JDBM database after
+ * indexing, so a restart can serve queries without crawling.
+ */
+public class IndexManifest {
+    public static final String FILE_EXTENSION = ".manifest";
+
+    private static final int MAGIC = 0x494d4146; // "IMAF"
+    private static final int VERSION = 1;
+
+    private final long generation;
+    private final long buildId;
+    private final int documentCount;
+    private final TermDictionary dictionary;
+    private final Map<Integer, List<Integer>> links;
+    private final Map<Integer, String> urls;
+
+    public IndexManifest(long generation, long buildId, int documentCount, TermDictionary dictionary,
+                         Map<Integer, List<Integer>> links, Map<Integer, String> urls) {
+        this.generation = generation;
+        this.buildId = buildId;
+        this.documentCount = documentCount;
+        this.dictionary = dictionary;
+        this.links = links;
+        this.urls = urls;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Random identifier of the build that wrote the index.
+     */
+    public long getBuildId() {
+        return buildId;
+    }
+
+    public int getDocumentCount() {
+        return documentCount;
+    }
+
+    public TermDictionary getTermDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Outlinks of every indexed document.
+     */
+    public Map<Integer, List<Integer>> getLinks() {
+        return links;
+    }
+
+    /**
+     * URL of every ranked document.
+     */
+    public Map<Integer, String> getUrls() {
+        return urls;
+    }
+
+    /**
+     * Write the manifest under a temporary name and rename it, so a crash
+     * never leaves a partial manifest behind.
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeLong(buildId);
+            out.writeInt(documentCount);
+            dictionary.write(out);
+
+            // Sorted by docID so that the same index always gives the same file
+            List<Integer> docIds = new ArrayList<>(links.keySet());
+            Collections.sort(docIds);
+            out.writeInt(docIds.size());
+            for (int docId : docIds) {
+                List<Integer> outlinks = links.get(docId);
+                out.writeInt(docId);
+                out.writeInt(outlinks.size());
+                for (int outlink : outlinks) {
+                    out.writeInt(outlink);
+                }
+            }
+
+            docIds = new ArrayList<>(urls.keySet());
+            Collections.sort(docIds);
+            out.writeInt(docIds.size());
+            for (int docId : docIds) {
+                out.writeInt(docId);
+                out.writeUTF(urls.get(docId));
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a manifest written by {@link #write(File)}.
+     *
+     * @return the manifest, or null if the file does not exist
+     */
+    public static IndexManifest read(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a supported index manifest: " + file);
+            }
+            long generation = in.readLong();
+            long buildId = in.readLong();
+            int documentCount = in.readInt();
+            TermDictionary dictionary = TermDictionary.read(in);
+
+            int linkCount = in.readInt();
+            Map<Integer, List<Integer>> links = new HashMap<>(linkCount * 2);
+            for (int i = 0; i < linkCount; i++) {
+                int docId = in.readInt();
+                int outlinkCount = in.readInt();
+                List<Integer> outlinks = new ArrayList<>(outlinkCount);
+                for (int j = 0; j < outlinkCount; j++) {
+                    outlinks.add(in.readInt());
+                }
+                links.put(docId, outlinks);
+            }
+
+            int urlCount = in.readInt();
+            Map<Integer, String> urls = new HashMap<>(urlCount * 2);
+            for (int i = 0; i < urlCount; i++) {
+                urls.put(in.readInt(), in.readUTF());
+            }
+            return new IndexManifest(generation, buildId, documentCount, dictionary, links, urls);
+        }
+    }
+}
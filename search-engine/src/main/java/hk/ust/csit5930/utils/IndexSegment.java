@@ -0,0 +1,120 @@
+package hk.ust.csit5930.utils;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only index segment used on the query path. A segment consists of a sorted
+ * term dictionary and separate postings and positions files, which are opened
+ * with {@link FileChannel#map}. Posting lists are returned as zero-copy slices of
+ * the mapped files, so lookups take no locks and deserialize no objects.
+ */
+public class IndexSegment implements PostingsSource, Closeable {
+    static final int MAGIC = 0x53454731; // "SEG1"
+    static final int VERSION = 3;
+    static final String DICTIONARY_EXTENSION = ".tdi";
+    static final String DOCS_EXTENSION = ".doc";
+    static final String POSITIONS_EXTENSION = ".pos";
+    static final String[] EXTENSIONS = {DICTIONARY_EXTENSION, DOCS_EXTENSION, POSITIONS_EXTENSION};
+
+    private final TermDictionary dictionary;
+    private final int[] docOffsets;
+    private final int[] docLengths;
+    private final int[] positionOffsets;
+    private final int[] positionLengths;
+    private final MappedByteBuffer docs;
+    private final MappedByteBuffer positions;
+
+    private IndexSegment(TermDictionary dictionary, int[] docOffsets, int[] docLengths,
+                         int[] positionOffsets, int[] positionLengths,
+                         MappedByteBuffer docs, MappedByteBuffer positions) {
+        this.dictionary = dictionary;
+        this.docOffsets = docOffsets;
+        this.docLengths = docLengths;
+        this.positionOffsets = positionOffsets;
+        this.positionLengths = positionLengths;
+        this.docs = docs;
+        this.positions = positions;
+    }
+
+    /**
+     * Check whether a complete segment exists in the directory.
+     */
+    public static boolean exists(File directory, String name) {
+        return new File(directory, name + DICTIONARY_EXTENSION).isFile();
+    }
+
+    public static IndexSegment open(File directory, String name) throws IOException {
+        File dictionaryFile = new File(directory, name + DICTIONARY_EXTENSION);
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(dictionaryFile), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a supported index segment: " + dictionaryFile);
+            }
+
+            TermDictionary dictionary = TermDictionary.read(in);
+            int termCount = dictionary.size();
+            int[] docOffsets = new int[termCount];
+            int[] docLengths = new int[termCount];
+            int[] positionOffsets = new int[termCount];
+            int[] positionLengths = new int[termCount];
+
+            for (int i = 0; i < termCount; i++) {
+                docOffsets[i] = Math.toIntExact(in.readLong());
+                docLengths[i] = in.readInt();
+                positionOffsets[i] = Math.toIntExact(in.readLong());
+                positionLengths[i] = in.readInt();
+            }
+
+            MappedByteBuffer docs = map(new File(directory, name + DOCS_EXTENSION));
+            MappedByteBuffer positions = map(new File(directory, name + POSITIONS_EXTENSION));
+            return new IndexSegment(dictionary, docOffsets, docLengths, positionOffsets, positionLengths,
+                    docs, positions);
+        }
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        // The mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Segment file larger than 2GB: " + file);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Override
+    public PostingsIterator getPostings(String term) {
+        int index = dictionary.getTermId(term);
+        if (index < 0) {
+            return null;
+        }
+
+        // slice() gives each caller its own position, the mapped buffers are never moved
+        ByteBuffer docSlice = docs.slice(docOffsets[index], docLengths[index]);
+        ByteBuffer positionSlice = positions.slice(positionOffsets[index], positionLengths[index]);
+        return PostingsCodec.iterator(docSlice, positionSlice);
+    }
+
+    public int getTermCount() {
+        return dictionary.size();
+    }
+
+    public TermDictionary getTermDictionary() {
+        return dictionary;
+    }
+
+    @Override
+    public void close() {
+        // Mapped buffers are released by the garbage collector
+    }
+}
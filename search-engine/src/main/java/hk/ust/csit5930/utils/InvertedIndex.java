@@ -6,11 +6,15 @@ import jdbm.htree.HTree;
 import jdbm.helper.FastIterator;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
 import hk.ust.csit5930.models.WordInfo;
 
+// Posting lists are stored encoded by PostingsCodec. This class must stay unchanged
+// so that lists serialized by older builds can still be read and migrated.
 class Posting implements Serializable
 {
 	public int doc;
@@ -24,20 +28,33 @@ class Posting implements Serializable
 	}
 }
 
-public class InvertedIndex {
+/**
+ * Mutable inverted index stored in JDBM. The doc/frequency stream of each word
+ * lives in the main HTree and its positions in a second HTree, so scoring never
+ * reads positions from disk.
+ */
+public class InvertedIndex implements PostingsSource {
+	private static final String POSITIONS_SUFFIX = "Positions";
+
 	private RecordManager recman;
 	private HTree hashtable;
+	private HTree positionTable;
 
 	public InvertedIndex(String recordmanager, String objectname) throws IOException {
 		recman = RecordManagerFactory.createRecordManager(recordmanager);
+		hashtable = loadOrCreate(objectname);
+		positionTable = loadOrCreate(objectname + POSITIONS_SUFFIX);
+	}
+
+	private HTree loadOrCreate(String objectname) throws IOException {
 		long recid = recman.getNamedObject(objectname);
 
 		if (recid != 0)
-			hashtable = HTree.load(recman, recid);
-		else {
-			hashtable = HTree.createInstance(recman);
-			recman.setNamedObject(objectname, hashtable.getRecid());
-		}
+			return HTree.load(recman, recid);
+
+		HTree table = HTree.createInstance(recman);
+		recman.setNamedObject(objectname, table.getRecid());
+		return table;
 	}
 
 	public void finalize() throws IOException {
@@ -50,26 +67,128 @@ public class InvertedIndex {
 		int freq = wordInfo.getFrequency();
 		List<Integer> positions = wordInfo.getPositions();
 
-		Object obj = hashtable.get(word);
-		List<Posting> postings;
+		List<Posting> postings = new ArrayList<>();
+		postings.add(new Posting(docID, freq, positions));
 
-		// Ensure the retrieved object is a List<Posting>
-		if (obj instanceof List) {
-			postings = (List<Posting>) obj;
+		appendPostings(word, postings);
+		recman.commit(); // Ensure persistence
+	}
+
+	/**
+	 * Append a batch of postings to the list stored for a word without
+	 * committing. They must come after every docID already in the list.
+	 */
+	void appendPostings(String word, List<Posting> newPostings) throws IOException {
+		List<Posting> postings = getPostingList(word);
+
+		if (postings != null) {
+			postings.addAll(newPostings);
 		} else {
-			postings = new ArrayList<>();
+			postings = newPostings;
 		}
 
-		Posting newPosting = new Posting(docID, freq, positions);
-		postings.add(newPosting);
+		putPostingList(word, postings);
+	}
 
-		hashtable.put(word, postings);
-		recman.commit(); // Ensure persistence
+	/**
+	 * Replace the posting list of a word, storing docs and positions separately.
+	 */
+	void putPostingList(String word, List<Posting> postings) throws IOException {
+		byte[][] streams = PostingsCodec.encode(postings);
+		hashtable.put(word, streams[0]);
+		positionTable.put(word, streams[1]);
+	}
+
+	/**
+	 * Read the complete posting list of a word, including positions.
+	 *
+	 * @return the postings, or null if the word is not indexed
+	 */
+	List<Posting> getPostingList(String word) throws IOException {
+		Object stored = hashtable.get(word);
+
+		if (PostingsCodec.isStoredDocs(stored)) {
+			return PostingsCodec.decode(storedDocsIterator(word, (byte[]) stored));
+		}
+		return PostingsCodec.decodeLegacy(stored);
+	}
+
+	/**
+	 * Get an iterator over the postings of a word. Positions are fetched from
+	 * the positions table only if the caller reads them.
+	 *
+	 * @return the iterator, or null if the word is not indexed
+	 */
+	@Override
+	public PostingsIterator getPostings(String word) throws IOException {
+		Object stored = hashtable.get(word);
+
+		if (PostingsCodec.isStoredDocs(stored)) {
+			return storedDocsIterator(word, (byte[]) stored);
+		}
+
+		// Serialized lists of older builds are re-encoded on the fly until they are migrated
+		List<Posting> legacy = PostingsCodec.decodeLegacy(stored);
+		return legacy != null ? PostingsCodec.iterator(legacy) : null;
+	}
+
+	/**
+	 * Read the docs and positions streams of a word, for callers that keep
+	 * them in memory. Serialized lists of older builds are re-encoded.
+	 *
+	 * @return {docs, positions}, or null if the word is not indexed
+	 */
+	byte[][] getStreams(String word) throws IOException {
+		Object stored = hashtable.get(word);
+
+		if (PostingsCodec.isStoredDocs(stored)) {
+			return new byte[][]{(byte[]) stored, (byte[]) positionTable.get(word)};
+		}
+
+		List<Posting> legacy = PostingsCodec.decodeLegacy(stored);
+		return legacy != null ? PostingsCodec.encode(legacy) : null;
+	}
+
+	private PostingsIterator storedDocsIterator(String word, byte[] stored) {
+		return PostingsCodec.storedDocsIterator(stored, () -> ByteBuffer.wrap(loadPositions(word)));
+	}
+
+	private byte[] loadPositions(String word) {
+		try {
+			return (byte[]) positionTable.get(word);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Delete every posting list and commit, so that a full rebuild does not
+	 * append to the lists of an earlier build, whose docIDs the crawl may
+	 * have given to other pages.
+	 */
+	public void clear() throws IOException {
+		for (HTree table : new HTree[]{hashtable, positionTable}) {
+			List<Object> keys = new ArrayList<>();
+			FastIterator iter = table.keys();
+			Object key;
+			while ((key = iter.next()) != null) {
+				keys.add(key);
+			}
+			for (Object word : keys) {
+				table.remove(word);
+			}
+		}
+		recman.commit();
+	}
+
+	public void commit() throws IOException {
+		recman.commit();
 	}
 
 	public void delEntry(String word) throws IOException {
 		// Delete the word and its list from the hashtable
 		hashtable.remove(word);
+		positionTable.remove(word);
 		recman.commit();
 	}
 
@@ -87,13 +206,13 @@ public class InvertedIndex {
 			return;
 		}
 		while ((key = (String) iter.next()) != null) {
-			List<Posting> postings = (List<Posting>) hashtable.get(key);
+			PostingsIterator postings = getPostings(key);
 
-			if (postings != null && !postings.isEmpty()) {
+			if (postings != null && postings.docFreq() > 0) {
 				StringBuilder result = new StringBuilder(key + " =");
 
-				for (Posting posting : postings) {
-					result.append(" ").append(posting.doc).append(" ").append(posting.freq);
+				while (postings.nextDoc() != PostingsIterator.NO_MORE_DOCS) {
+					result.append(" ").append(postings.docId()).append(" ").append(postings.freq());
 				}
 
 				System.out.println(result.toString());
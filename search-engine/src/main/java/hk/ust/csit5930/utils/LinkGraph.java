@@ -0,0 +1,133 @@
+package hk.ust.csit5930.utils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The link graph of the crawled pages in compressed sparse form, O(N + E)
+ * memory instead of an N x N matrix.
+ *
+ * Pages are numbered 0 to N - 1 for docIDs 1 to N. The links into page i
+ * come from inSources[inStart[i]] up to inSources[inStart[i + 1]], in
+ * increasing order, and the links out of page j go to outTargets[outStart[j]]
+ * up to outTargets[outStart[j + 1]]. Repeated links between two pages count
+ * once, as in the crawler's link matrix.
+ */
+public final class LinkGraph {
+    private final int numPages;
+    private final int[] outDegree;
+    private final int[] inStart;
+    private final int[] inSources;
+    private final int[] outStart;
+    private final int[] outTargets;
+
+    private LinkGraph(int numPages, int[] outDegree, int[] inStart, int[] inSources,
+                      int[] outStart, int[] outTargets) {
+        this.numPages = numPages;
+        this.outDegree = outDegree;
+        this.inStart = inStart;
+        this.inSources = inSources;
+        this.outStart = outStart;
+        this.outTargets = outTargets;
+    }
+
+    /**
+     * Build the graph from the crawler's relationships.
+     *
+     * @param relationships child docIDs by parent docID, as returned by
+     *                      Spider.getRelationships()
+     * @param numPages      number of pages, at least the highest docID
+     *                      linked; 0 to use the highest docID
+     */
+    public static LinkGraph fromRelationships(Map<Integer, List<Integer>> relationships, int numPages) {
+        int highestDoc = 0;
+        for (Map.Entry<Integer, List<Integer>> entry : relationships.entrySet()) {
+            highestDoc = Math.max(highestDoc, entry.getKey());
+            for (int child : entry.getValue()) {
+                highestDoc = Math.max(highestDoc, child);
+            }
+        }
+        int n = Math.max(numPages, highestDoc);
+
+        int[][] targets = new int[n][];
+        for (Map.Entry<Integer, List<Integer>> entry : relationships.entrySet()) {
+            List<Integer> children = entry.getValue();
+            int[] pages = new int[children.size()];
+            for (int i = 0; i < pages.length; i++) {
+                pages[i] = children.get(i) - 1;
+            }
+            targets[entry.getKey() - 1] = pages;
+        }
+        return build(n, targets);
+    }
+
+    /**
+     * @param targets pages linked from each page, null for none
+     */
+    private static LinkGraph build(int n, int[][] targets) {
+        // Sort and deduplicate the links of every page, and count the links into every page
+        int[] outDegree = new int[n];
+        int[] inStart = new int[n + 1];
+        for (int j = 0; j < n; j++) {
+            int[] pages = targets[j];
+            if (pages == null || pages.length == 0) {
+                continue;
+            }
+            Arrays.sort(pages);
+            int distinct = 0;
+            for (int t = 0; t < pages.length; t++) {
+                if (t == 0 || pages[t] != pages[t - 1]) {
+                    pages[distinct++] = pages[t];
+                    inStart[pages[t] + 1]++;
+                }
+            }
+            outDegree[j] = distinct;
+        }
+        for (int i = 0; i < n; i++) {
+            inStart[i + 1] += inStart[i];
+        }
+
+        // Fill the in-links page by page, so the sources of every page come out in increasing order
+        int[] inSources = new int[inStart[n]];
+        int[] outStart = new int[n + 1];
+        int[] outTargets = new int[inStart[n]];
+        int[] next = Arrays.copyOf(inStart, n);
+        for (int j = 0; j < n; j++) {
+            outStart[j + 1] = outStart[j] + outDegree[j];
+            for (int t = 0; t < outDegree[j]; t++) {
+                inSources[next[targets[j][t]]++] = j;
+                outTargets[outStart[j] + t] = targets[j][t];
+            }
+        }
+        return new LinkGraph(n, outDegree, inStart, inSources, outStart, outTargets);
+    }
+
+    public int size() {
+        return numPages;
+    }
+
+    public int getEdgeCount() {
+        return inSources.length;
+    }
+
+    int outDegree(int page) {
+        return outDegree[page];
+    }
+
+    int inStart(int page) {
+        return inStart[page];
+    }
+
+    int inSource(int index) {
+        return inSources[index];
+    }
+
+    int outStart(int page) {
+        return outStart[page];
+    }
+
+    int outTarget(int index) {
+        return outTargets[index];
+    }
+}
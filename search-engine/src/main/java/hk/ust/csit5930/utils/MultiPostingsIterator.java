@@ -0,0 +1,133 @@
+package hk.ust.csit5930.utils;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Postings of one term across several segments, merged by docID. Documents
+ * deleted in a segment are skipped. A document may appear in more than one
+ * segment while an update is pending a merge, but it is live in at most one.
+ */
+final class MultiPostingsIterator extends PostingsIterator {
+    private final PostingsIterator[] subs;
+    private final BitSet[] deleted;
+    private final int docFreq;
+    private final int maxFreq;
+
+    private PostingsIterator current;
+    private int doc = -1;
+
+    /**
+     * @param subs    iterators of the segments containing the term
+     * @param deleted deleted docs of each segment, null if it has none
+     */
+    MultiPostingsIterator(List<PostingsIterator> subs, List<BitSet> deleted) {
+        this.subs = subs.toArray(new PostingsIterator[0]);
+        this.deleted = deleted.toArray(new BitSet[0]);
+
+        int docFreq = 0;
+        int maxFreq = 0;
+        for (PostingsIterator sub : subs) {
+            docFreq += sub.docFreq();
+            maxFreq = Math.max(maxFreq, sub.maxFreq());
+        }
+        // Deleted documents are still counted until their segment is merged
+        this.docFreq = docFreq;
+        this.maxFreq = maxFreq;
+    }
+
+    @Override
+    public int docFreq() {
+        return docFreq;
+    }
+
+    @Override
+    public int maxFreq() {
+        return maxFreq;
+    }
+
+    /**
+     * The smallest block end of the segments, so that every segment's current
+     * block covers the documents up to it.
+     */
+    @Override
+    public int blockLastDoc() {
+        int lastDoc = NO_MORE_DOCS;
+        for (PostingsIterator sub : subs) {
+            if (sub.docId() != NO_MORE_DOCS) {
+                lastDoc = Math.min(lastDoc, sub.blockLastDoc());
+            }
+        }
+        return lastDoc;
+    }
+
+    @Override
+    public int blockMaxFreq() {
+        int blockMaxFreq = 0;
+        for (PostingsIterator sub : subs) {
+            if (sub.docId() != NO_MORE_DOCS) {
+                blockMaxFreq = Math.max(blockMaxFreq, sub.blockMaxFreq());
+            }
+        }
+        return blockMaxFreq;
+    }
+
+    @Override
+    public int nextDoc() {
+        return doc == NO_MORE_DOCS ? doc : advance(doc + 1);
+    }
+
+    @Override
+    public int advance(int target) {
+        if (doc >= target) {
+            return doc;
+        }
+
+        while (true) {
+            int min = NO_MORE_DOCS;
+            int minIndex = -1;
+            for (int i = 0; i < subs.length; i++) {
+                int subDoc = subs[i].advance(target);
+                // On a tie prefer the segment where the document is live
+                if (subDoc < min || (subDoc == min && subDoc != NO_MORE_DOCS && isDeleted(minIndex, min))) {
+                    min = subDoc;
+                    minIndex = i;
+                }
+            }
+
+            if (min == NO_MORE_DOCS) {
+                current = null;
+                return doc = NO_MORE_DOCS;
+            }
+            if (!isDeleted(minIndex, min)) {
+                current = subs[minIndex];
+                return doc = min;
+            }
+            target = min + 1;
+        }
+    }
+
+    private boolean isDeleted(int sub, int docId) {
+        return deleted[sub] != null && deleted[sub].get(docId);
+    }
+
+    @Override
+    public int docId() {
+        return doc;
+    }
+
+    @Override
+    public int freq() {
+        return current.freq();
+    }
+
+    @Override
+    public int positionCount() {
+        return current.positionCount();
+    }
+
+    @Override
+    public int nextPosition() {
+        return current.nextPosition();
+    }
+}
@@ -1,39 +1,387 @@
 package hk.ust.csit5930.utils;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+/**
+ * PageRank over the sparse link graph. Every iteration visits each page and
+ * each link once, O(N + E), with the out-degrees counted once up front.
+ *
+ * The rank of dangling pages, which have no links to pass it along, is
+ * spread evenly over all pages, so no rank leaks out of the graph. Iterations
+ * stop once the L1 change of the rank vector drops below a tolerance.
+ * Gauss-Seidel iterations use the ranks already updated in the same pass and
+ * usually need fewer passes than the default Jacobi iterations. Jacobi
+ * iterations can rank blocks of pages in parallel.
+ *
+ * After a recrawl the ranks can start from the previous ranks, and when only
+ * a few links changed they can be updated around the change alone.
+ */
 public class PageRank {
-    private int[][] linkMatrix;
+    // Pages ranked by one task; fixed so that the sums do not depend on the thread count
+    private static final int BLOCK_SIZE = 4096;
+    // Work of a local update before it falls back to full iterations, in full iterations
+    private static final long LOCAL_UPDATE_ITERATIONS = 4;
+
+    private LinkGraph graph;
     private int numPages;
     private double[] ranks;
+    private int iterations = 0;
+    private double residual = Double.NaN;
+    // Pages without an earlier rank after warmStart, recomputed first by updatePageRank
+    private List<Integer> unranked;
+    // Rank of the earlier dangling pages, whose share the warm-started ranks include
+    private double warmStartDanglingRank;
 
-    public PageRank(int[][] linkMatrix) {
-        this.linkMatrix = linkMatrix;
-        this.numPages = linkMatrix.length;
+    public PageRank(LinkGraph graph) {
+        this.graph = graph;
+        this.numPages = graph.size();
         this.ranks = new double[numPages];
         Arrays.fill(ranks, 1.0 / numPages); // Initialize rank vector
     }
 
+    /**
+     * Start from the ranks of an earlier computation instead of uniform
+     * ranks. Pages are matched by URL, since a recrawl may number them
+     * differently; pages without an earlier rank start at 1 / N. Earlier
+     * ranks are scaled by N' / N for the N' pages they were computed over, so
+     * that they include the teleport share of the N pages now.
+     *
+     * @param previousRanks   earlier ranks by URL
+     * @param previousDangling URLs of the pages that had no links in the
+     *                        earlier graph
+     * @param urls            URL of every docID of the graph
+     * @return number of pages that had an earlier rank
+     */
+    public int warmStart(Map<String, Double> previousRanks, Set<String> previousDangling,
+                         Map<Integer, String> urls) {
+        double scale = (double) previousRanks.size() / numPages;
+        unranked = new ArrayList<>();
+        for (int i = 0; i < numPages; i++) {
+            String url = urls.get(i + 1);
+            Double previous = url == null ? null : previousRanks.get(url);
+            if (previous != null) {
+                ranks[i] = previous * scale;
+            } else {
+                ranks[i] = 1.0 / numPages;
+                unranked.add(i);
+            }
+        }
+
+        // Earlier ranks include d * D / N' of the earlier dangling rank D, scaled ones d * D / N
+        double previousDanglingRank = 0.0;
+        for (String url : previousDangling) {
+            previousDanglingRank += previousRanks.getOrDefault(url, 0.0);
+        }
+        warmStartDanglingRank = previousDanglingRank;
+        return numPages - unranked.size();
+    }
+
+    /**
+     * Bring warm-started ranks up to date after the links of a few pages
+     * changed, recomputing only the pages the change reaches. The affected
+     * pages and the pages without an earlier rank are recomputed from their
+     * in-links first; a page whose rank moves by more than a threshold
+     * passes the change on to the pages it links to. The rest of the graph
+     * is not visited.
+     *
+     * Every page is recomputed with the dangling share the earlier ranks
+     * were computed with, rather than with the current rank of the dangling
+     * pages, so the pages that are not visited stay consistent with the
+     * visited ones however the dangling pages changed. The ranks then solve
+     * the PageRank equations with another constant share for every page,
+     * which makes them the PageRank up to a factor that normalizing removes.
+     * The changes too small to pass on are what is left; the threshold keeps
+     * them below half the tolerance as long as no more than N of them are
+     * dropped.
+     *
+     * If the change reaches so far that recomputing it costs more than
+     * {@value #LOCAL_UPDATE_ITERATIONS} full iterations, Jacobi iterations
+     * from the partly updated ranks finish the job. These need fewer
+     * iterations than from the earlier ranks, so little of the work is lost.
+     *
+     * @param affectedDocs docIDs whose in-links changed, or whose in-linking
+     *                     pages gained or lost links
+     * @return true if the local update was enough, false if the ranks were
+     *         computed over the whole graph, also when they were not
+     *         warm-started
+     */
+    public boolean updatePageRank(Collection<Integer> affectedDocs, int maxIterations, double dampingFactor,
+                                  double tolerance, ForkJoinPool pool) {
+        if (unranked == null) {
+            computePageRank(maxIterations, dampingFactor, tolerance, false, pool);
+            return false;
+        }
+        double share = (1 - dampingFactor + dampingFactor * warmStartDanglingRank) / numPages;
+        // L1 residual of the normalized ranks per unit of change left unpropagated
+        double residualPerChange = dampingFactor / (share * numPages);
+        double threshold = tolerance / (2 * numPages * residualPerChange);
+
+        // Pages waiting to be recomputed, each queued at most once at a time
+        boolean[] queued = new boolean[numPages];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int docId : affectedDocs) {
+            if (docId >= 1 && docId <= numPages && !queued[docId - 1]) {
+                queued[docId - 1] = true;
+                queue.add(docId - 1);
+            }
+        }
+        for (int i : unranked) {
+            if (!queued[i]) {
+                queued[i] = true;
+                queue.add(i);
+            }
+        }
+        unranked = null;
+
+        long budget = LOCAL_UPDATE_ITERATIONS * (graph.getEdgeCount() + numPages);
+        long work = 0;
+        double unpropagated = 0.0;
+        while (!queue.isEmpty() && work <= budget && unpropagated * residualPerChange < tolerance) {
+            int i = queue.poll();
+            queued[i] = false;
+            double rankSum = 0.0;
+            for (int e = graph.inStart(i); e < graph.inStart(i + 1); e++) {
+                int source = graph.inSource(e);
+                rankSum += ranks[source] / graph.outDegree(source);
+            }
+            double rank = share + dampingFactor * rankSum;
+            double change = rank - ranks[i];
+            ranks[i] = rank;
+            work += 1 + graph.inStart(i + 1) - graph.inStart(i);
+
+            if (Math.abs(change) <= threshold) {
+                unpropagated += Math.abs(change);
+                continue;
+            }
+            for (int e = graph.outStart(i); e < graph.outStart(i + 1); e++) {
+                int target = graph.outTarget(e);
+                if (!queued[target]) {
+                    queued[target] = true;
+                    queue.add(target);
+                }
+            }
+        }
+
+        normalizeRanks();
+        iterations = 0;
+        residual = unpropagated * residualPerChange;
+        if (queue.isEmpty() && residual < tolerance) {
+            return true;
+        }
+        computePageRank(maxIterations, dampingFactor, tolerance, false, pool);
+        return false;
+    }
+
+    /**
+     * Run a fixed number of Jacobi iterations.
+     */
     public void computePageRank(int iterations, double dampingFactor) {
-        double[] prevRanks = new double[numPages];
+        computePageRank(iterations, dampingFactor, 0, false);
+    }
+
+    /**
+     * Iterate until the L1 change of the ranks in one iteration is below the
+     * tolerance, or for at most maxIterations iterations, on the calling
+     * thread.
+     *
+     * @param tolerance   L1 change at which the ranks count as converged, 0 to
+     *                    always run maxIterations iterations
+     * @param gaussSeidel update the ranks in place instead of from the
+     *                    previous iteration's ranks
+     */
+    public void computePageRank(int maxIterations, double dampingFactor, double tolerance, boolean gaussSeidel) {
+        computePageRank(maxIterations, dampingFactor, tolerance, gaussSeidel, null);
+    }
+
+    /**
+     * Iterate as above, with the pages split into fixed blocks that are
+     * ranked in parallel on the pool. Every block sums its own dangling rank
+     * and residual, and the block sums are added up in block order, so the
+     * ranks do not depend on the number of threads. Gauss-Seidel sweeps are
+     * sequential by nature and only copy the previous ranks in parallel.
+     *
+     * @param pool pool to rank the blocks on, null to rank them on the
+     *             calling thread
+     */
+    public void computePageRank(int maxIterations, double dampingFactor, double tolerance, boolean gaussSeidel,
+                                ForkJoinPool pool) {
+        int blocks = (numPages + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        Iteration iteration = new Iteration(dampingFactor, blocks);
+
+        iterations = 0;
+        residual = Double.NaN;
+        while (iterations < maxIterations) {
+            iteration.run(pool, Iteration.CONTRIBUTE);
+            iteration.danglingRank = sum(iteration.blockDangling);
+
+            if (gaussSeidel) {
+                iteration.sweep();
+                // In-place passes do not keep the total rank at 1, and a drifting total decays only slowly
+                normalizeRanks();
+                iteration.run(pool, Iteration.RESIDUAL);
+            } else {
+                iteration.run(pool, Iteration.RANK);
+            }
+
+            iterations++;
+            residual = sum(iteration.blockResidual);
+            if (residual < tolerance) {
+                break;
+            }
+        }
+
+        // Ranks already sum to 1 up to rounding
+        normalizeRanks();
+    }
+
+    private static double sum(double[] blockSums) {
+        double sum = 0.0;
+        for (double blockSum : blockSums) {
+            sum += blockSum;
+        }
+        return sum;
+    }
 
-        for (int iter = 0; iter < iterations; iter++) {
-            System.arraycopy(ranks, 0, prevRanks, 0, numPages); // Copy previous ranks
+    /**
+     * The state of one computation. Blocks write only their own pages and
+     * their own slot of the block sums, so they need no locks.
+     */
+    private class Iteration {
+        static final int CONTRIBUTE = 0;
+        static final int RANK = 1;
+        static final int RESIDUAL = 2;
 
+        final double dampingFactor;
+        final double teleport;
+        final double[] prevRanks = new double[numPages];
+        // Rank each page passes along every one of its links
+        final double[] contributions = new double[numPages];
+        final double[] blockDangling;
+        final double[] blockResidual;
+        // Rank of the pages without links, passed to every page
+        double danglingRank;
+
+        Iteration(double dampingFactor, int blocks) {
+            this.dampingFactor = dampingFactor;
+            this.teleport = (1 - dampingFactor) / numPages;
+            this.blockDangling = new double[blocks];
+            this.blockResidual = new double[blocks];
+        }
+
+        void run(ForkJoinPool pool, int phase) {
+            int blocks = blockDangling.length;
+            if (pool == null || blocks == 1) {
+                for (int block = 0; block < blocks; block++) {
+                    runBlock(phase, block);
+                }
+            } else {
+                pool.invoke(new BlockTask(this, phase, 0, blocks));
+            }
+        }
+
+        void runBlock(int phase, int block) {
+            int from = block * BLOCK_SIZE;
+            int to = Math.min(numPages, from + BLOCK_SIZE);
+            if (phase == CONTRIBUTE) {
+                double dangling = 0.0;
+                for (int j = from; j < to; j++) {
+                    prevRanks[j] = ranks[j];
+                    int outgoingLinks = graph.outDegree(j);
+                    if (outgoingLinks == 0) {
+                        dangling += prevRanks[j];
+                    }
+                    contributions[j] = outgoingLinks == 0 ? 0 : prevRanks[j] / outgoingLinks;
+                }
+                blockDangling[block] = dangling;
+            } else if (phase == RANK) {
+                double change = 0.0;
+                for (int i = from; i < to; i++) {
+                    double rankSum = 0.0;
+                    for (int e = graph.inStart(i); e < graph.inStart(i + 1); e++) {
+                        rankSum += contributions[graph.inSource(e)];
+                    }
+                    ranks[i] = teleport + dampingFactor * (rankSum + danglingRank / numPages);
+                    change += Math.abs(ranks[i] - prevRanks[i]);
+                }
+                blockResidual[block] = change;
+            } else {
+                double change = 0.0;
+                for (int i = from; i < to; i++) {
+                    change += Math.abs(ranks[i] - prevRanks[i]);
+                }
+                blockResidual[block] = change;
+            }
+        }
+
+        /**
+         * One Gauss-Seidel pass over all pages in order.
+         */
+        void sweep() {
+            double dangling = danglingRank;
             for (int i = 0; i < numPages; i++) {
                 double rankSum = 0.0;
-                for (int j = 0; j < numPages; j++) {
-                    if (linkMatrix[j][i] == 1) {
-                        int outgoingLinks = Arrays.stream(linkMatrix[j]).sum();
-                        rankSum += prevRanks[j] / outgoingLinks;
-                    }
+                for (int e = graph.inStart(i); e < graph.inStart(i + 1); e++) {
+                    int source = graph.inSource(e);
+                    // Pages before i already have their rank of this pass
+                    rankSum += source < i ? ranks[source] / graph.outDegree(source) : contributions[source];
+                }
+                ranks[i] = teleport + dampingFactor * (rankSum + dangling / numPages);
+                if (graph.outDegree(i) == 0) {
+                    dangling += ranks[i] - prevRanks[i];
                 }
-                ranks[i] = (1 - dampingFactor) / numPages + dampingFactor * rankSum;
             }
         }
+    }
 
-        normalizeRanks();
+    /**
+     * Runs a phase over a range of blocks, halving the range until a single
+     * block is left.
+     */
+    private static class BlockTask extends RecursiveAction {
+        private final Iteration iteration;
+        private final int phase;
+        private final int fromBlock;
+        private final int toBlock;
+
+        BlockTask(Iteration iteration, int phase, int fromBlock, int toBlock) {
+            this.iteration = iteration;
+            this.phase = phase;
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+        }
+
+        @Override
+        protected void compute() {
+            if (toBlock - fromBlock == 1) {
+                iteration.runBlock(phase, fromBlock);
+                return;
+            }
+            int middle = (fromBlock + toBlock) >>> 1;
+            invokeAll(new BlockTask(iteration, phase, fromBlock, middle),
+                    new BlockTask(iteration, phase, middle, toBlock));
+        }
+    }
+
+    /**
+     * Iterations run by the last computation.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * L1 change of the ranks in the last iteration of the last computation.
+     */
+    public double getResidual() {
+        return residual;
     }
 
     private void normalizeRanks() {
@@ -42,6 +390,18 @@ public class PageRank {
             ranks[i] /= sum;
         }
     }
+    /**
+     * Ranks as a dense array indexed by docID, with entry 0 unused, for
+     * {@link StaticRanks}.
+     */
+    public float[] getRanksByDocId() {
+        float[] ranksByDocId = new float[numPages + 1];
+        for (int i = 0; i < numPages; i++) {
+            ranksByDocId[i + 1] = (float) ranks[i];
+        }
+        return ranksByDocId;
+    }
+
     public Map<Integer, Double> getPageRankScores() {
         Map<Integer, Double> pageRankScores = new HashMap<>();
         for (int i = 0; i < numPages; i++) {
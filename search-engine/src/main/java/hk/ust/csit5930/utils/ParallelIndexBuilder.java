@@ -0,0 +1,499 @@
+package hk.ust.csit5930.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hk.ust.csit5930.models.WordInfo;
+
+/**
+ * Builds an inverted index with a pool of worker threads.
+ *
+ * Documents are sorted by docID and cut into contiguous partitions. Each
+ * worker fetches and analyzes the documents of a partition and collects them
+ * in a private partial index, so workers share nothing. As in
+ * {@link BulkIndexBuilder}, a partial index that outgrows its share of the
+ * memory budget is spilled to a run file sorted by term. The runs and the
+ * partial indexes still in memory are then merged term by term in
+ * {@link TermDictionary#TERM_ORDER}, and the postings of a term are
+ * concatenated in partition and run order, which is docID order. The result
+ * does not depend on the number of threads or the budget and is identical to
+ * a serial build over the same documents.
+ */
+public class ParallelIndexBuilder {
+    // Partitions per thread, so that a few long documents do not leave the other threads idle
+    private static final int PARTITIONS_PER_THREAD = 4;
+    // Rough heap cost of a term in a partial index besides its postings
+    private static final int TERM_OVERHEAD_BYTES = 128;
+
+    /**
+     * Fetches a document and turns it into its terms. Called concurrently.
+     */
+    public interface DocumentAnalyzer {
+        Map<String, WordInfo> analyze(int docID) throws IOException;
+    }
+
+    /**
+     * Receives the merged posting lists in dictionary order.
+     */
+    interface TermConsumer {
+        void accept(String term, List<Posting> postings) throws IOException;
+    }
+
+    private final int threads;
+    private final long memoryBudget;
+    private final File runDirectory;
+
+    /**
+     * Build entirely in memory.
+     *
+     * @param threads number of worker threads, 0 for one per available processor
+     */
+    public ParallelIndexBuilder(int threads) {
+        this(threads, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param threads      number of worker threads, 0 for one per available processor
+     * @param memoryBudget approximate number of bytes of postings to hold in
+     *                     memory across all workers before spilling runs
+     */
+    public ParallelIndexBuilder(int threads, long memoryBudget) {
+        this(threads, memoryBudget, new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    public ParallelIndexBuilder(int threads, long memoryBudget, File runDirectory) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.memoryBudget = memoryBudget;
+        this.runDirectory = runDirectory;
+    }
+
+    /**
+     * Analyze and index the given documents.
+     */
+    public MergedIndex build(Collection<Integer> docIDs, DocumentAnalyzer analyzer) throws IOException {
+        int[] sortedDocs = new int[docIDs.size()];
+        int n = 0;
+        for (int docID : docIDs) {
+            sortedDocs[n++] = docID;
+        }
+        Arrays.sort(sortedDocs);
+
+        // Half the budget for the partial indexes being built, half for those kept until the merge
+        long workerBudget = Math.max(1, memoryBudget / 2 / threads);
+        AtomicLong keptBytes = new AtomicLong();
+        int partitionCount = Math.max(1, Math.min(sortedDocs.length, threads * PARTITIONS_PER_THREAD));
+        List<Partition> partitions = new ArrayList<>(partitionCount);
+        if (threads == 1) {
+            partitions.add(buildPartition(sortedDocs, 0, sortedDocs.length, analyzer, workerBudget, keptBytes));
+            return new MergedIndex(partitions);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "index-builder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<Partition>> futures = new ArrayList<>(partitionCount);
+        try {
+            for (int p = 0; p < partitionCount; p++) {
+                int from = (int) ((long) sortedDocs.length * p / partitionCount);
+                int to = (int) ((long) sortedDocs.length * (p + 1) / partitionCount);
+                futures.add(pool.submit(() -> buildPartition(sortedDocs, from, to, analyzer, workerBudget, keptBytes)));
+            }
+            for (Future<Partition> future : futures) {
+                partitions.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deleteRuns(futures);
+            throw new InterruptedIOException("Index build interrupted");
+        } catch (ExecutionException e) {
+            deleteRuns(futures);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Index build failed", cause);
+        } finally {
+            pool.shutdownNow();
+        }
+        return new MergedIndex(partitions);
+    }
+
+    private Partition buildPartition(int[] docs, int from, int to, DocumentAnalyzer analyzer,
+                                     long workerBudget, AtomicLong keptBytes) throws IOException {
+        Partition partition = new Partition();
+        try {
+            PartialIndex partial = new PartialIndex();
+            for (int i = from; i < to; i++) {
+                for (Map.Entry<String, WordInfo> entry : analyzer.analyze(docs[i]).entrySet()) {
+                    partial.add(entry.getKey(), docs[i], entry.getValue());
+                }
+                if (partial.bytes > workerBudget) {
+                    partition.runs.add(partial.spill(runDirectory));
+                    partial = new PartialIndex();
+                }
+            }
+
+            if (Thread.currentThread().isInterrupted()) {
+                // Cancelled after another partition failed, nobody will merge the runs
+                throw new InterruptedIOException("Index build interrupted");
+            }
+
+            // The rest stays in memory while the kept partial indexes fit in their half of the budget
+            if (partial.terms.isEmpty()) {
+                return partition;
+            }
+            if (keptBytes.addAndGet(partial.bytes) <= memoryBudget - memoryBudget / 2) {
+                partition.rest = partial;
+            } else {
+                keptBytes.addAndGet(-partial.bytes);
+                partition.runs.add(partial.spill(runDirectory));
+            }
+            return partition;
+        } catch (IOException | RuntimeException e) {
+            partition.delete();
+            throw e;
+        }
+    }
+
+    private static void deleteRuns(List<Future<Partition>> futures) {
+        for (Future<Partition> future : futures) {
+            future.cancel(true);
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    future.get().delete();
+                } catch (InterruptedException | ExecutionException e) {
+                    // Nothing was written by a failed partition
+                }
+            }
+        }
+    }
+
+    /**
+     * Output of one partition: its spilled runs in order, then the partial
+     * index still in memory, if any.
+     */
+    private static class Partition {
+        final List<File> runs = new ArrayList<>();
+        PartialIndex rest;
+
+        void delete() {
+            for (File run : runs) {
+                run.delete();
+            }
+        }
+    }
+
+    /**
+     * Index of part of a partition. Postings are kept in flat int arrays per
+     * term rather than as Posting objects.
+     */
+    private static class PartialIndex {
+        private final Map<String, Integer> termIds = new HashMap<>();
+        private final List<String> terms = new ArrayList<>();
+        private final List<TermPostings> postings = new ArrayList<>();
+        private long bytes = 0;
+
+        void add(String term, int docID, WordInfo wordInfo) {
+            Integer localId = termIds.get(term);
+            if (localId == null) {
+                localId = terms.size();
+                termIds.put(term, localId);
+                terms.add(term);
+                postings.add(new TermPostings());
+                bytes += TERM_OVERHEAD_BYTES + 2L * term.length() + 4L * 8;
+            }
+            TermPostings termPostings = postings.get(localId);
+            int capacity = termPostings.data.length;
+            termPostings.add(docID, wordInfo);
+            bytes += 4L * (termPostings.data.length - capacity);
+        }
+
+        /**
+         * Local term IDs in dictionary order.
+         */
+        int[] sortedTermIds() {
+            byte[][] keys = new byte[terms.size()][];
+            Integer[] order = new Integer[terms.size()];
+            for (int i = 0; i < order.length; i++) {
+                keys[i] = terms.get(i).getBytes(StandardCharsets.UTF_8);
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(keys[a], keys[b]));
+            int[] sorted = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                sorted[i] = order[i];
+            }
+            return sorted;
+        }
+
+        /**
+         * Write the postings, sorted by term, to a new run file.
+         */
+        File spill(File runDirectory) throws IOException {
+            File run = File.createTempFile("postings-run", ".tmp", runDirectory);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+                for (int localId : sortedTermIds()) {
+                    TermPostings termPostings = postings.get(localId);
+                    out.writeUTF(terms.get(localId));
+                    out.writeInt(termPostings.docCount);
+                    out.writeInt(termPostings.length);
+                    for (int i = 0; i < termPostings.length; i++) {
+                        out.writeInt(termPostings.data[i]);
+                    }
+                }
+            } catch (IOException e) {
+                run.delete();
+                throw e;
+            }
+            return run;
+        }
+    }
+
+    /**
+     * Postings of one term in one partial index, stored as
+     * docCount x ( doc freq positionCount position* ).
+     */
+    private static class TermPostings {
+        private int[] data = new int[8];
+        private int length = 0;
+        private int docCount = 0;
+
+        void add(int docID, WordInfo wordInfo) {
+            List<Integer> positions = wordInfo.getPositions();
+            ensureCapacity(length + 3 + positions.size());
+            data[length++] = docID;
+            data[length++] = wordInfo.getFrequency();
+            data[length++] = positions.size();
+            for (int position : positions) {
+                data[length++] = position;
+            }
+            docCount++;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > data.length) {
+                data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+            }
+        }
+
+        void appendTo(List<Posting> out) {
+            int i = 0;
+            while (i < length) {
+                int doc = data[i++];
+                int freq = data[i++];
+                int positionCount = data[i++];
+                List<Integer> positions = new ArrayList<>(positionCount);
+                for (int p = 0; p < positionCount; p++) {
+                    positions.add(data[i++]);
+                }
+                out.add(new Posting(doc, freq, positions));
+            }
+        }
+    }
+
+    /**
+     * Sequential reader over a run file or a partial index in memory,
+     * holding the current term and its postings.
+     */
+    private abstract static class Source {
+        final int order;
+        String term;
+        byte[] key;
+        TermPostings postings;
+
+        Source(int order) {
+            this.order = order;
+        }
+
+        abstract boolean advance() throws IOException;
+
+        void close() throws IOException {
+        }
+    }
+
+    private static class RunSource extends Source {
+        private final DataInputStream in;
+
+        RunSource(File run, int order) throws IOException {
+            super(order);
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            try {
+                term = in.readUTF();
+            } catch (EOFException e) {
+                term = null;
+                postings = null;
+                return false;
+            }
+            key = term.getBytes(StandardCharsets.UTF_8);
+            postings = new TermPostings();
+            postings.docCount = in.readInt();
+            postings.length = in.readInt();
+            postings.data = new int[postings.length];
+            for (int i = 0; i < postings.length; i++) {
+                postings.data[i] = in.readInt();
+            }
+            return true;
+        }
+
+        @Override
+        void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class MemorySource extends Source {
+        private final PartialIndex partial;
+        private final int[] sortedTermIds;
+        private int next = 0;
+
+        MemorySource(PartialIndex partial, int order) {
+            super(order);
+            this.partial = partial;
+            this.sortedTermIds = partial.sortedTermIds();
+        }
+
+        @Override
+        boolean advance() {
+            if (next == sortedTermIds.length) {
+                term = null;
+                postings = null;
+                return false;
+            }
+            int localId = sortedTermIds[next++];
+            term = partial.terms.get(localId);
+            key = term.getBytes(StandardCharsets.UTF_8);
+            postings = partial.postings.get(localId);
+            return true;
+        }
+    }
+
+    /**
+     * Result of a build: the runs and partial indexes of all partitions,
+     * merged when the index is written. It can be written once; the runs are
+     * deleted afterwards.
+     */
+    public static class MergedIndex {
+        private final List<Partition> partitions;
+        private TermDictionary dictionary;
+
+        private MergedIndex(List<Partition> partitions) {
+            this.partitions = partitions;
+        }
+
+        /**
+         * Number of terms, known once the index has been written.
+         */
+        public int getTermCount() {
+            return getTermDictionary().size();
+        }
+
+        /**
+         * Term dictionary whose term IDs are the ranks of the terms in
+         * dictionary order, known once the index has been written.
+         */
+        public TermDictionary getTermDictionary() {
+            if (dictionary == null) {
+                throw new IllegalStateException("Index has not been written yet");
+            }
+            return dictionary;
+        }
+
+        /**
+         * K-way merge of all runs and partial indexes. Sources are ordered by
+         * partition, then run, so concatenating the postings of a term source
+         * by source keeps them in docID order.
+         */
+        void forEachTerm(TermConsumer consumer) throws IOException {
+            if (dictionary != null) {
+                throw new IllegalStateException("Index already written");
+            }
+            PriorityQueue<Source> queue = new PriorityQueue<>((a, b) -> {
+                int cmp = Arrays.compareUnsigned(a.key, b.key);
+                return cmp != 0 ? cmp : Integer.compare(a.order, b.order);
+            });
+
+            List<Source> sources = new ArrayList<>();
+            TermDictionary.Builder builder = new TermDictionary.Builder();
+            try {
+                for (Partition partition : partitions) {
+                    for (File run : partition.runs) {
+                        sources.add(new RunSource(run, sources.size()));
+                    }
+                    if (partition.rest != null) {
+                        sources.add(new MemorySource(partition.rest, sources.size()));
+                    }
+                }
+                for (Source source : sources) {
+                    if (source.advance()) {
+                        queue.add(source);
+                    }
+                }
+
+                while (!queue.isEmpty()) {
+                    String term = queue.peek().term;
+                    List<Posting> postings = new ArrayList<>();
+                    while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+                        Source source = queue.poll();
+                        source.postings.appendTo(postings);
+                        if (source.advance()) {
+                            queue.add(source);
+                        }
+                    }
+                    builder.setDocFreq(term, postings.size());
+                    consumer.accept(term, postings);
+                }
+            } finally {
+                for (Source source : sources) {
+                    source.close();
+                }
+                for (Partition partition : partitions) {
+                    partition.delete();
+                    partition.rest = null;
+                }
+            }
+            dictionary = builder.build();
+        }
+
+        /**
+         * Write every posting list to the index and commit once. Lists
+         * already stored for a term are replaced.
+         */
+        public void writeTo(InvertedIndex index) throws IOException {
+            forEachTerm(index::putPostingList);
+            index.commit();
+        }
+
+        /**
+         * Write every posting list to a segment and publish it.
+         */
+        public void writeTo(SegmentWriter writer) throws IOException {
+            forEachTerm(writer::addTerm);
+            writer.finish();
+        }
+    }
+}
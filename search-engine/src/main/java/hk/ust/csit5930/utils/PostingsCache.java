@@ -0,0 +1,178 @@
+package hk.ust.csit5930.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Keeps the posting lists of recently queried terms in memory, in front of a
+ * JDBM {@link InvertedIndex}. Without it every query term is fetched from
+ * JDBM and deserialized again, once for scoring and once more for the
+ * positions of the returned documents.
+ *
+ * A cached list is the docs and positions streams as stored, in the
+ * {@link PostingsCodec} encoding, so it costs no more memory than on disk
+ * and block skipping still works. Every lookup gets its own iterator over
+ * the shared arrays. Terms that are not indexed are remembered too.
+ *
+ * Lists are evicted least recently used first once their bytes exceed the
+ * capacity. A term missing from the cache is read from JDBM by the first
+ * query that asks for it; queries asking while that read is in progress wait
+ * for it instead of reading the term again.
+ */
+public class PostingsCache implements PostingsSource {
+    // Cached for a term that is not in the index
+    private static final Streams NOT_INDEXED = new Streams(null, null);
+
+    private final InvertedIndex index;
+    private final long capacityBytes;
+    // The fields below are guarded by this. Lists in access order, least recently used first
+    private final LinkedHashMap<String, Streams> lists = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Streams>> pendingReads = new HashMap<>();
+    private long usedBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param index         index the lists are read from
+     * @param capacityBytes most bytes of lists to keep
+     */
+    public PostingsCache(InvertedIndex index, long capacityBytes) {
+        this.index = index;
+        this.capacityBytes = capacityBytes;
+    }
+
+    @Override
+    public PostingsIterator getPostings(String term) throws IOException {
+        Streams streams = streams(term);
+        return streams == NOT_INDEXED ? null : streams.iterator();
+    }
+
+    private Streams streams(String term) throws IOException {
+        CompletableFuture<Streams> read;
+        boolean firstReader = false;
+        synchronized (this) {
+            Streams cached = lists.get(term);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+            read = pendingReads.get(term);
+            if (read == null) {
+                read = new CompletableFuture<>();
+                pendingReads.put(term, read);
+                firstReader = true;
+            }
+        }
+
+        if (firstReader) {
+            read(term, read);
+        }
+        try {
+            return read.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Cannot read postings of " + term, e.getCause());
+        }
+    }
+
+    /**
+     * Read a term from JDBM on behalf of every query waiting for it. The list
+     * is cached in the same step that ends the pending read, so later queries
+     * find it either being read or cached, never both missing.
+     */
+    private void read(String term, CompletableFuture<Streams> read) {
+        Streams streams;
+        try {
+            byte[][] stored = index.getStreams(term);
+            streams = stored == null ? NOT_INDEXED : new Streams(stored[0], stored[1]);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                pendingReads.remove(term);
+            }
+            read.completeExceptionally(e);
+            return;
+        }
+
+        synchronized (this) {
+            pendingReads.remove(term);
+            admit(term, streams);
+        }
+        read.complete(streams);
+    }
+
+    private void admit(String term, Streams streams) {
+        long bytes = streams.bytes(term);
+        if (bytes > capacityBytes) {
+            return; // Would push out everything else and still not fit
+        }
+        lists.put(term, streams);
+        usedBytes += bytes;
+
+        Iterator<Map.Entry<String, Streams>> leastRecent = lists.entrySet().iterator();
+        while (usedBytes > capacityBytes) {
+            Map.Entry<String, Streams> evicted = leastRecent.next();
+            usedBytes -= evicted.getValue().bytes(evicted.getKey());
+            leastRecent.remove();
+        }
+    }
+
+    /**
+     * Bytes of the cached lists, as counted against the capacity.
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Lookups answered from memory.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Lookups that read the term from JDBM or waited for another query's read.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * The encoded docs and positions streams of one term. Never modified, so
+     * any number of iterators can read them at once.
+     */
+    private static final class Streams {
+        private final byte[] docs;
+        private final byte[] positions;
+
+        Streams(byte[] docs, byte[] positions) {
+            this.docs = docs;
+            this.positions = positions;
+        }
+
+        PostingsIterator iterator() {
+            // Wrapped per iterator, which moves the buffer positions
+            return new BlockPostingsIterator(ByteBuffer.wrap(docs),
+                    positions == null ? null : () -> ByteBuffer.wrap(positions));
+        }
+
+        /**
+         * Estimated heap bytes of the entry under the given term: the stream
+         * arrays, the term's characters, and about 100 bytes of objects and
+         * map entry.
+         */
+        long bytes(String term) {
+            return 100 + 2L * term.length() + (docs == null ? 0 : docs.length)
+                    + (positions == null ? 0 : positions.length);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package hk.ust.csit5930.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Compact binary encoding of a posting list. A list is stored as two streams,
+ * so that scoring can read doc IDs and frequencies without touching positions.
+ *
+ * The docs stream is split into blocks of {@link #BLOCK_SIZE} postings, each
+ * preceded by a header that lets readers skip the block without decoding it
+ * (all numbers are varints):
+ * <pre>
+ *   docs:      docCount maxFreq
+ *              blockCount x ( lastDocDelta blockMaxFreq docBytes positionBytes
+ *                             blockDocs x ( docDelta freq ) )
+ *   positions: docCount x ( positionCount positionDelta* )
+ * </pre>
+ * Doc IDs and positions are delta-encoded against the previous value, so the
+ * common small gaps take a single byte. lastDocDelta is relative to the last
+ * doc of the previous block (the skip pointer), blockMaxFreq bounds the term
+ * weight of every document in the block, and positionBytes is the length of
+ * the block's entries in the positions stream.
+ *
+ * Serialized Posting lists written by older builds are still readable until
+ * they are migrated.
+ */
+public final class PostingsCodec {
+    public static final int BLOCK_SIZE = 128;
+
+    private PostingsCodec() {
+    }
+
+    /**
+     * Encode postings sorted by increasing docID.
+     *
+     * @return {docs, positions}
+     */
+    static byte[][] encode(List<Posting> postings) {
+        ByteArrayOutputStream docs = new ByteArrayOutputStream(16 + postings.size() * 3);
+        ByteArrayOutputStream positions = new ByteArrayOutputStream(postings.size() * 4);
+        ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE * 3);
+
+        int maxFreq = 0;
+        for (Posting posting : postings) {
+            maxFreq = Math.max(maxFreq, posting.freq);
+        }
+        writeVInt(docs, postings.size());
+        writeVInt(docs, maxFreq);
+
+        int lastDoc = 0;
+        for (int start = 0; start < postings.size(); start += BLOCK_SIZE) {
+            int end = Math.min(postings.size(), start + BLOCK_SIZE);
+            int previousBlockLastDoc = lastDoc;
+            int blockMaxFreq = 0;
+            int positionStart = positions.size();
+            block.reset();
+
+            for (int i = start; i < end; i++) {
+                Posting posting = postings.get(i);
+                writeVInt(block, posting.doc - lastDoc);
+                writeVInt(block, posting.freq);
+                lastDoc = posting.doc;
+                blockMaxFreq = Math.max(blockMaxFreq, posting.freq);
+                writePositions(positions, posting.position);
+            }
+
+            writeVInt(docs, lastDoc - previousBlockLastDoc);
+            writeVInt(docs, blockMaxFreq);
+            writeVInt(docs, block.size());
+            writeVInt(docs, positions.size() - positionStart);
+            docs.write(block.toByteArray(), 0, block.size());
+        }
+
+        return new byte[][]{docs.toByteArray(), positions.toByteArray()};
+    }
+
+    private static void writePositions(ByteArrayOutputStream out, List<Integer> positions) {
+        if (positions == null) {
+            positions = Collections.emptyList();
+        }
+        writeVInt(out, positions.size());
+        int lastPosition = 0;
+        for (int position : positions) {
+            writeVInt(out, position - lastPosition);
+            lastPosition = position;
+        }
+    }
+
+    /**
+     * Check whether an HTree value is a docs stream in the current format.
+     */
+    static boolean isStoredDocs(Object stored) {
+        return stored instanceof byte[];
+    }
+
+    /**
+     * Drain an iterator into Posting objects, including positions.
+     * Only used when a list has to be rewritten, queries use the iterator.
+     */
+    static List<Posting> decode(PostingsIterator iterator) {
+        List<Posting> postings = new ArrayList<>(iterator.docFreq());
+
+        while (iterator.nextDoc() != PostingsIterator.NO_MORE_DOCS) {
+            int positionCount = iterator.positionCount();
+            List<Integer> positions = new ArrayList<>(positionCount);
+            for (int i = 0; i < positionCount; i++) {
+                positions.add(iterator.nextPosition());
+            }
+            postings.add(new Posting(iterator.docId(), iterator.freq(), positions));
+        }
+
+        return postings;
+    }
+
+    /**
+     * Read an HTree value written by an older build, a serialized Posting list.
+     *
+     * @return the postings, or null if the value is not a posting list
+     */
+    static List<Posting> decodeLegacy(Object stored) {
+        return stored instanceof List ? (List<Posting>) stored : null;
+    }
+
+    /**
+     * Iterator over postings held in memory, encoded on the fly.
+     */
+    static PostingsIterator iterator(List<Posting> postings) {
+        byte[][] streams = encode(postings);
+        return iterator(ByteBuffer.wrap(streams[0]), ByteBuffer.wrap(streams[1]));
+    }
+
+    /**
+     * Iterator over separate doc and positions streams. The buffers are read
+     * in place, so they can be slices of a memory-mapped file.
+     */
+    public static PostingsIterator iterator(ByteBuffer docs, ByteBuffer positions) {
+        return new BlockPostingsIterator(docs, () -> positions);
+    }
+
+    /**
+     * Iterator over a docs stream stored in the HTree. The positions stream is
+     * only requested from the loader when positions are read.
+     */
+    static PostingsIterator storedDocsIterator(byte[] stored, Supplier<ByteBuffer> positionLoader) {
+        return new BlockPostingsIterator(ByteBuffer.wrap(stored), positionLoader);
+    }
+
+    static void writeVInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readVInt(ByteBuffer in) {
+        byte b = in.get();
+        int value = b & 0x7F;
+        for (int shift = 7; b < 0; shift += 7) {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,92 @@
+package hk.ust.csit5930.utils;
+
+/**
+ * Forward-only iterator over the postings of one term, in increasing docID order.
+ *
+ * Besides the current document, an iterator exposes the header of the block it
+ * is in: the last docID of the block and the highest frequency in it, so that
+ * callers can bound the score of every document up to {@link #blockLastDoc()}
+ * without decoding them.
+ */
+public abstract class PostingsIterator {
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    /**
+     * Number of documents in the posting list.
+     */
+    public abstract int docFreq();
+
+    /**
+     * Highest term frequency in the posting list.
+     */
+    public abstract int maxFreq();
+
+    /**
+     * Last docID of the current block. Every document up to it is in this or
+     * an earlier block.
+     */
+    public abstract int blockLastDoc();
+
+    /**
+     * Highest term frequency in the current block.
+     */
+    public abstract int blockMaxFreq();
+
+    /**
+     * Move to the next document.
+     *
+     * @return the docID, or {@link #NO_MORE_DOCS} when the list is exhausted
+     */
+    public abstract int nextDoc();
+
+    /**
+     * Move to the first document whose docID is at least the target. Does not
+     * move if the current document already is.
+     *
+     * @return the docID, or {@link #NO_MORE_DOCS} when the list is exhausted
+     */
+    public abstract int advance(int target);
+
+    public abstract int docId();
+
+    public abstract int freq();
+
+    /**
+     * Number of positions of the current document.
+     */
+    public abstract int positionCount();
+
+    /**
+     * Read the next position of the current document. Must be called at most
+     * {@link #positionCount()} times per document.
+     */
+    public abstract int nextPosition();
+
+    /**
+     * Index of the first element in a[from, to) that is not smaller than the
+     * target, or to if there is none. The array must be sorted. Probes at
+     * exponentially growing distances before a binary search, so short jumps
+     * cost only a few comparisons.
+     */
+    static int gallop(int[] a, int from, int to, int target) {
+        int low = from;
+        int step = 1;
+        int high = from;
+        while (high < to && a[high] < target) {
+            low = high + 1;
+            high = from + step;
+            step <<= 1;
+        }
+        high = Math.min(high, to);
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (a[mid] < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,218 @@
+package hk.ust.csit5930.utils;
+
+import jdbm.helper.FastIterator;
+import jdbm.htree.HTree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites an existing inverted index from Java-serialized Posting lists to the
+ * {@link PostingsCodec} blocked docs/positions format, and reports the stored size and decode latency of both formats.
+ *
+ * Usage: PostingsMigrationTool [recordmanager] [objectname] [--dry-run]
+ */
+public class PostingsMigrationTool {
+    private static final int COMMIT_INTERVAL = 1000;
+    private static final int BENCHMARK_ROUNDS = 5;
+
+    public static void main(String[] args) {
+        String recordManager = "recordmanager2";
+        String objectName = "bodyIndex";
+        boolean dryRun = false;
+
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--dry-run")) {
+                dryRun = true;
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (positional.size() > 0) {
+            recordManager = positional.get(0);
+        }
+        if (positional.size() > 1) {
+            objectName = positional.get(1);
+        }
+
+        try {
+            InvertedIndex index = new InvertedIndex(recordManager, objectName);
+            HTree hashtable = index.getHashtable();
+            List<String> terms = listTerms(hashtable);
+
+            System.out.println("Terms in " + recordManager + "/" + objectName + ": " + terms.size());
+            compareFormats(index, terms);
+
+            if (!dryRun) {
+                int migrated = migrate(index, terms);
+                System.out.println("Migrated " + migrated + " posting lists");
+            }
+            index.finalize();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private static List<String> listTerms(HTree hashtable) throws IOException {
+        List<String> terms = new ArrayList<>();
+        FastIterator iter = hashtable.keys();
+        String key;
+        while ((key = (String) iter.next()) != null) {
+            terms.add(key);
+        }
+        return terms;
+    }
+
+    /**
+     * Re-encode every legacy posting list, committing in batches to bound the
+     * size of the JDBM transaction.
+     */
+    private static int migrate(InvertedIndex index, List<String> terms) throws IOException {
+        HTree hashtable = index.getHashtable();
+        int migrated = 0;
+
+        for (String term : terms) {
+            if (PostingsCodec.isStoredDocs(hashtable.get(term))) {
+                continue;
+            }
+            List<Posting> postings = index.getPostingList(term);
+            if (postings != null) {
+                index.putPostingList(term, postings);
+                migrated++;
+                if (migrated % COMMIT_INTERVAL == 0) {
+                    index.commit();
+                }
+            }
+        }
+
+        index.commit();
+        return migrated;
+    }
+
+    /**
+     * Print the serialized size and decode time of every posting list in the
+     * legacy and the codec format. The codec is timed both for scoring (doc IDs
+     * and frequencies only) and for a full decode including positions.
+     */
+    private static void compareFormats(InvertedIndex index, List<String> terms) throws IOException {
+        List<byte[]> legacyRecords = new ArrayList<>();
+        List<byte[]> docRecords = new ArrayList<>();
+        List<byte[]> positionRecords = new ArrayList<>();
+        long postingCount = 0;
+
+        for (String term : terms) {
+            List<Posting> postings = index.getPostingList(term);
+            if (postings == null) {
+                continue;
+            }
+            postingCount += postings.size();
+            legacyRecords.add(serialize(postings));
+            byte[][] streams = PostingsCodec.encode(postings);
+            docRecords.add(serialize(streams[0]));
+            positionRecords.add(serialize(streams[1]));
+        }
+
+        long legacyBytes = totalLength(legacyRecords);
+        long codecBytes = totalLength(docRecords) + totalLength(positionRecords);
+        long legacyNanos = Long.MAX_VALUE;
+        long scoringNanos = Long.MAX_VALUE;
+        long codecNanos = Long.MAX_VALUE;
+        long checksum = 0;
+
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (byte[] record : legacyRecords) {
+                for (Posting posting : (List<Posting>) deserialize(record)) {
+                    checksum += posting.doc + posting.freq;
+                    for (int position : posting.position) {
+                        checksum += position;
+                    }
+                }
+            }
+            legacyNanos = Math.min(legacyNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (byte[] record : docRecords) {
+                PostingsIterator postings = PostingsCodec.storedDocsIterator((byte[]) deserialize(record), null);
+                while (postings.nextDoc() != PostingsIterator.NO_MORE_DOCS) {
+                    checksum += postings.docId() + postings.freq();
+                }
+            }
+            scoringNanos = Math.min(scoringNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < docRecords.size(); i++) {
+                byte[] positionRecord = positionRecords.get(i);
+                PostingsIterator postings = PostingsCodec.storedDocsIterator((byte[]) deserialize(docRecords.get(i)),
+                        () -> ByteBuffer.wrap((byte[]) deserializeUnchecked(positionRecord)));
+                while (postings.nextDoc() != PostingsIterator.NO_MORE_DOCS) {
+                    checksum += postings.docId() + postings.freq();
+                    for (int p = postings.positionCount(); p > 0; p--) {
+                        checksum += postings.nextPosition();
+                    }
+                }
+            }
+            codecNanos = Math.min(codecNanos, System.nanoTime() - start);
+        }
+
+        System.out.println("Postings: " + postingCount + " (checksum " + checksum + ")");
+        System.out.printf("%-28s %14s %16s%n", "Format", "Stored bytes", "Decode ns/post");
+        System.out.printf("%-28s %14d %16.1f%n", "Serialized Posting", legacyBytes,
+                perPosting(legacyNanos, postingCount));
+        System.out.printf("%-28s %14d %16.1f%n", "Codec docs only (scoring)", totalLength(docRecords),
+                perPosting(scoringNanos, postingCount));
+        System.out.printf("%-28s %14d %16.1f%n", "Codec docs + positions", codecBytes,
+                perPosting(codecNanos, postingCount));
+        if (codecBytes > 0 && codecNanos > 0) {
+            System.out.printf("Size ratio %.2fx, decode speedup %.2fx (%.2fx for scoring)%n",
+                    (double) legacyBytes / codecBytes, (double) legacyNanos / codecNanos,
+                    (double) legacyNanos / scoringNanos);
+        }
+    }
+
+    private static double perPosting(long nanos, long postingCount) {
+        return postingCount == 0 ? 0 : (double) nanos / postingCount;
+    }
+
+    private static long totalLength(List<byte[]> records) {
+        long total = 0;
+        for (byte[] record : records) {
+            total += record.length;
+        }
+        return total;
+    }
+
+    // JDBM stores values with Java serialization, so measure through the same path
+    private static byte[] serialize(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] record) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(record))) {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static Object deserializeUnchecked(byte[] record) {
+        try {
+            return deserialize(record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package hk.ust.csit5930.utils;
+
+import java.io.IOException;
+
+/**
+ * Read access to the posting lists of an index, implemented by the mutable
+ * JDBM {@link InvertedIndex} and the read-only {@link IndexSegment}.
+ */
+public interface PostingsSource {
+
+    /**
+     * Get an iterator over the postings of a term.
+     *
+     * @return the iterator, or null if the term is not indexed
+     */
+    PostingsIterator getPostings(String term) throws IOException;
+}
@@ -0,0 +1,284 @@
+package hk.ust.csit5930.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of query results with W-TinyLFU admission.
+ *
+ * New entries go into a small LRU window. An entry pushed out of the window
+ * only enters the main space if it was requested more often than the entry
+ * the main space would evict for it, so a burst of one-off queries cannot
+ * flush the popular ones. The main space is a segmented LRU: entries hit
+ * again while on probation move to the protected segment.
+ *
+ * Request frequencies are estimated by a count-min sketch of small counters
+ * that are all halved periodically, so popularity fades with time. All
+ * methods are synchronized; a lookup costs far less than the query it saves.
+ */
+public class QueryResultCache<K, V> {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final int maximumSize;
+    private final int windowMaximum;
+    private final int protectedMaximum;
+    private final Map<K, Node<K, V>> entries = new HashMap<>();
+    // Least recently used first
+    private final Queue<K, V> window = new Queue<>();
+    private final Queue<K, V> probation = new Queue<>();
+    private final Queue<K, V> protectedQueue = new Queue<>();
+    private final FrequencySketch sketch;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maximumSize maximum number of entries, at least 1
+     */
+    public QueryResultCache(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be at least 1: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        this.windowMaximum = Math.max(1, maximumSize / 100);
+        this.protectedMaximum = (maximumSize - windowMaximum) * 4 / 5;
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+
+    /**
+     * Look up a cached result. Every lookup counts towards the frequency of
+     * the key, whether it hits or not.
+     *
+     * @return the result, or null if it is not cached
+     */
+    public synchronized V get(K key) {
+        sketch.increment(key.hashCode());
+        Node<K, V> node = entries.get(key);
+        if (node == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        onHit(node);
+        return node.value;
+    }
+
+    /**
+     * Cache a result, evicting by frequency if the cache is full.
+     */
+    public synchronized void put(K key, V value) {
+        Node<K, V> node = entries.get(key);
+        if (node != null) {
+            node.value = value;
+            onHit(node);
+            return;
+        }
+
+        node = new Node<>(key, value);
+        entries.put(key, node);
+        node.queue = WINDOW;
+        window.add(node);
+        if (window.size > windowMaximum) {
+            admit(window.removeFirst());
+        }
+    }
+
+    private void onHit(Node<K, V> node) {
+        if (node.queue == WINDOW) {
+            window.moveToEnd(node);
+        } else if (node.queue == PROTECTED) {
+            protectedQueue.moveToEnd(node);
+        } else {
+            // A second hit earns a place in the protected segment
+            probation.remove(node);
+            node.queue = PROTECTED;
+            protectedQueue.add(node);
+            if (protectedQueue.size > protectedMaximum) {
+                Node<K, V> demoted = protectedQueue.removeFirst();
+                demoted.queue = PROBATION;
+                probation.add(demoted);
+            }
+        }
+    }
+
+    /**
+     * Move an entry from the window into the main space, if it is more
+     * popular than the entry it would replace.
+     */
+    private void admit(Node<K, V> candidate) {
+        candidate.queue = PROBATION;
+        if (entries.size() <= maximumSize) {
+            probation.add(candidate);
+            return;
+        }
+
+        Queue<K, V> victims = probation.size > 0 ? probation : protectedQueue;
+        Node<K, V> victim = victims.first;
+        if (victim != null
+                && sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+            victims.remove(victim);
+            entries.remove(victim.key);
+            probation.add(candidate);
+        } else {
+            entries.remove(candidate.key);
+        }
+        evictions++;
+    }
+
+    /**
+     * Drop every entry, e.g. when the index they were computed from is
+     * replaced. Frequencies are kept.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        window.clear();
+        probation.clear();
+        protectedQueue.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    private static class Node<K, V> {
+        final K key;
+        V value;
+        int queue;
+        Node<K, V> previous;
+        Node<K, V> next;
+
+        Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Doubly linked LRU list, least recently used first.
+     */
+    private static class Queue<K, V> {
+        Node<K, V> first;
+        Node<K, V> last;
+        int size = 0;
+
+        void add(Node<K, V> node) {
+            node.previous = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+            size++;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.previous == null) {
+                first = node.next;
+            } else {
+                node.previous.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.previous;
+            } else {
+                node.next.previous = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+            size--;
+        }
+
+        Node<K, V> removeFirst() {
+            Node<K, V> node = first;
+            remove(node);
+            return node;
+        }
+
+        void moveToEnd(Node<K, V> node) {
+            if (node != last) {
+                remove(node);
+                add(node);
+            }
+        }
+
+        void clear() {
+            first = null;
+            last = null;
+            size = 0;
+        }
+    }
+
+    /**
+     * Count-min sketch with four rows of counters that saturate at 15. After
+     * ten increments per cache entry all counters are halved.
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int maximumSize) {
+            int width = Integer.highestOneBit(Math.max(16, maximumSize - 1)) << 1;
+            this.counters = new byte[DEPTH][width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * maximumSize;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ (hash >>> 16)) * SEEDS[row];
+            return (h ^ (h >>> 15)) & mask;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int i = index(hash, row);
+                if (counters[row][i] < MAX_COUNT) {
+                    counters[row][i]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counters[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private void reset() {
+            for (byte[] row : counters) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+    }
+}
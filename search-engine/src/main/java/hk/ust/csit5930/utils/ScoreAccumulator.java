@@ -0,0 +1,130 @@
+package hk.ust.csit5930.utils;
+
+import java.util.Arrays;
+
+/**
+ * Sparse docID to score map used while scoring a query. Only documents that
+ * appear in a posting list get a slot, in an open-addressing table of
+ * primitive arrays with linear probing. Slots are remembered in the order
+ * they were taken, so iteration and {@link #reset()} cost O(matches), not
+ * O(capacity), and an accumulator can be reused for the next query without
+ * allocating.
+ */
+final class ScoreAccumulator {
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private float[] values;
+    private int[] slots;
+    private int size = 0;
+    private int mask;
+
+    ScoreAccumulator() {
+        this(64);
+    }
+
+    ScoreAccumulator(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new float[capacity];
+        slots = new int[capacity / 2];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Add to the score of a document, starting from 0 if it has none yet.
+     */
+    void add(int doc, float score) {
+        int slot = mix(doc) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == doc) {
+                values[slot] += score;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == slots.length) {
+            // Keep the load factor at most one half
+            grow();
+            add(doc, score);
+            return;
+        }
+        keys[slot] = doc;
+        values[slot] = score;
+        slots[size++] = slot;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        float[] oldValues = values;
+        int[] oldSlots = slots;
+        int oldSize = size;
+
+        allocate(keys.length * 2);
+        size = 0;
+        for (int i = 0; i < oldSize; i++) {
+            add(oldKeys[oldSlots[i]], oldValues[oldSlots[i]]);
+        }
+    }
+
+    private static int mix(int doc) {
+        // Doc IDs are dense and sequential, spread them over the table
+        int hash = doc * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Score of a document, 0 if it has none.
+     */
+    float get(int doc) {
+        int slot = mix(doc) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == doc) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * Number of documents with a score.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * DocID of the i-th scored document, in the order they were first added.
+     */
+    int docAt(int i) {
+        return keys[slots[i]];
+    }
+
+    float scoreAt(int i) {
+        return values[slots[i]];
+    }
+
+    /**
+     * Replace the score of the i-th scored document.
+     */
+    void setScoreAt(int i, float score) {
+        values[slots[i]] = score;
+    }
+
+    /**
+     * Forget all scores, keeping the capacity for the next query.
+     */
+    void reset() {
+        for (int i = 0; i < size; i++) {
+            keys[slots[i]] = EMPTY;
+        }
+        size = 0;
+    }
+}
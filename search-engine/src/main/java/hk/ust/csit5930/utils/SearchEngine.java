@@ -1,76 +1,348 @@
 package hk.ust.csit5930.utils;
-import jdbm.htree.HTree;
-
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import hk.ust.csit5930.models.TermInfo;
+import hk.ust.csit5930.models.RankedResults;
+import hk.ust.csit5930.models.ScoredDocument;
 
 public class SearchEngine {
+    /**
+     * How the documents matching a query are scored. EXHAUSTIVE scores every
+     * document containing a query term; WAND skips documents that cannot
+     * enter the top k, which are the same either way.
+     */
+    public enum ScoringStrategy {
+        EXHAUSTIVE,
+        WAND
+    }
+
+    public enum Ranking {
+        COSINE,
+        COMBINED
+    }
+
+    /**
+     * Last document of a page of one ranking. The next page holds the
+     * documents ranked after it: with a lower score, or with the same score
+     * and a higher docID.
+     */
+    public record SearchAfter(Ranking ranking, double score, int docId) {
+        boolean isFollowedBy(int otherDocId, double otherScore) {
+            return otherScore < score || (otherScore == score && otherDocId > docId);
+        }
+    }
+
+    private static final int DEFAULT_K = 10;
+
     private StopStem stopStem;
-    private Map<String, TermInfo> termToTermId;
-    private HTree bodyIndex;
-    private Map<Integer, Double> pageRankScores;
+    private TermDictionary termDictionary;
+    private PostingsSource bodyIndex;
+    private DocumentNorms norms;
+    private StaticRanks pageRanks;
     private int documentSize;
+    private ScoringStrategy scoringStrategy;
+    private double maxPageRank;
+    private int partitions = 1;
+    private int maxQueryParallelism = 1;
+    private ForkJoinPool pool;
+
+    public SearchEngine(StopStem stopStem, TermDictionary termDictionary, PostingsSource bodyInvertedIndex, DocumentNorms norms, StaticRanks pageRanks, int documentSize) {
+        this(stopStem, termDictionary, bodyInvertedIndex, norms, pageRanks, documentSize, ScoringStrategy.EXHAUSTIVE);
+    }
 
-    public SearchEngine(StopStem stopStem, Map<String, TermInfo> termToTermId, HTree bodyInvertedIndex, Map<Integer, Double> pageRankScores, int documentSize) {
+    public SearchEngine(StopStem stopStem, TermDictionary termDictionary, PostingsSource bodyInvertedIndex, DocumentNorms norms, StaticRanks pageRanks, int documentSize, ScoringStrategy scoringStrategy) {
         this.stopStem = stopStem;
-        this.termToTermId = termToTermId;
+        this.termDictionary = termDictionary;
         this.bodyIndex = bodyInvertedIndex;
-        this.pageRankScores = pageRankScores;
+        this.norms = norms;
+        this.pageRanks = pageRanks;
         this.documentSize = documentSize;
+        this.scoringStrategy = scoringStrategy;
+        // Bounds the combined score for pruning
+        this.maxPageRank = pageRanks.getMaxRank();
+    }
+
+    /**
+     * Score each query in docID range partitions, several of them at once.
+     * Results are the same as with a single partition: every partition uses
+     * the IDFs of the whole collection, and its top k are merged into the
+     * overall top k.
+     *
+     * @param partitions          number of docID ranges, 1 to score on the calling thread only
+     * @param maxQueryParallelism most threads one query may use, the calling thread included
+     * @param pool                pool running the partitions, shared by all queries
+     */
+    public SearchEngine(StopStem stopStem, TermDictionary termDictionary, PostingsSource bodyInvertedIndex, DocumentNorms norms, StaticRanks pageRanks, int documentSize, ScoringStrategy scoringStrategy,
+                        int partitions, int maxQueryParallelism, ForkJoinPool pool) {
+        this(stopStem, termDictionary, bodyInvertedIndex, norms, pageRanks, documentSize, scoringStrategy);
+        if (partitions < 1 || maxQueryParallelism < 1) {
+            throw new IllegalArgumentException("partitions and maxQueryParallelism must be at least 1: "
+                    + partitions + ", " + maxQueryParallelism);
+        }
+        this.partitions = partitions;
+        this.maxQueryParallelism = maxQueryParallelism;
+        this.pool = pool;
     }
 
-    public Map<String, Object> search(String userQuery) {
+    public RankedResults search(String userQuery) {
+        return search(userQuery, DEFAULT_K);
+    }
+
+    /**
+     * Rank the documents matching a query.
+     *
+     * @param k number of documents to return per ranking
+     */
+    public RankedResults search(String userQuery, int k) {
+        BooleanQuery query = analyze(userQuery);
+        return query == null ? RankedResults.empty() : search(query, k);
+    }
+
+    /**
+     * Parse a query: operators and grouping, stopword removal and stemming.
+     *
+     * @return the analyzed query, or null if it is empty, malformed or has
+     *         only stop words
+     */
+    public BooleanQuery analyze(String userQuery) {
         // Check for empty or blank queries
         if (userQuery == null || userQuery.trim().isEmpty()) {
             System.out.println("Empty query detected. Please enter a valid search term.");
-            return Collections.emptyMap();
+            return null;
         }
-        
-        // Process query: tokenize, remove stopwords, and stem
-        Vector<String> queryVector = new Vector<>(Arrays.asList(userQuery.split(" ")));
-        List<String> filterQuery = new ArrayList<>(TextProcessor.processWords(queryVector, stopStem).keySet());
-        
+
+        BooleanQuery query;
+        try {
+            query = BooleanQuery.parse(userQuery, stopStem);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid query: " + e.getMessage());
+            return null;
+        }
+
         // Check if any valid terms remained after processing
-        if (filterQuery.isEmpty()) {
+        if (query.getTerms().isEmpty()) {
             System.out.println("No valid search terms found after processing. Please try a different query.");
-            return Collections.emptyMap();
+            return null;
         }
+        return query;
+    }
+
+    /**
+     * Rank the documents matching an analyzed query.
+     *
+     * @param k number of documents to return per ranking
+     */
+    public RankedResults search(BooleanQuery query, int k) {
+        return search(query, k, null);
+    }
 
-        // Compute cosine similarity scores (Includes positions)
-        Map<Integer, Object[]> cosineScores = CosSim.calculateCosSim(filterQuery, termToTermId, bodyIndex, documentSize);
-        // REMOVE documents with zero CosSim score
-        cosineScores.entrySet().removeIf(entry -> (double) entry.getValue()[0] == 0.0);
+    /**
+     * Rank the documents matching an analyzed query that come after the
+     * given document of one ranking. Only the top k of the documents after
+     * it are selected, however deep the page is. The other ranking is left
+     * empty.
+     *
+     * @param after last document of the previous page, null for both first pages
+     */
+    public RankedResults search(BooleanQuery query, int k, SearchAfter after) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1: " + k);
+        }
+        List<String> filterQuery = query.getTerms();
+
+        TopDocuments top;
+        if (partitions > 1 && query.isDisjunction()) {
+            top = scorePartitions(query, k, after);
+        } else {
+            top = score(query, k, 0, PostingsIterator.NO_MORE_DOCS, after);
+        }
         // **Check if there are no matching documents**
-        if (cosineScores.isEmpty()) {
+        if (top.cosine.size() == 0 && top.combined.size() == 0) {
             System.out.println("No relevant documents found for your search query.");
-            return Collections.emptyMap(); // Exit early with an empty result
+            return RankedResults.empty(); // Exit early with an empty result
         }
+        top.cosine.sortBestFirst();
+        top.combined.sortBestFirst();
 
-        // Compute combined scores (CosSim * PageRank)
-        Map<Integer, Object[]> combinedScores = new HashMap<>();
-        for (Integer docId : cosineScores.keySet()) {
-            Object[] cosSimData = cosineScores.get(docId);
-            double cosSimScore = (double) cosSimData[0]; // Extract CosSim score
-            List<Integer> termPositions = (List<Integer>) cosSimData[1]; // Extract term positions
-            double pageRankScore = pageRankScores.getOrDefault(docId, 0.0);
-            double combinedScore = cosSimScore * pageRankScore;
+        // Read positions only for the documents that are returned
+        Set<Integer> topDocs = new HashSet<>();
+        for (int i = 0; i < top.cosine.size(); i++) {
+            topDocs.add(top.cosine.docAt(i));
+        }
+        for (int i = 0; i < top.combined.size(); i++) {
+            topDocs.add(top.combined.docAt(i));
+        }
+        Map<Integer, List<Integer>> termPositions = loadPositions(filterQuery, topDocs);
+
+        return new RankedResults(toDocuments(top.cosine, top.cosineScores, termPositions),
+                toDocuments(top.combined, top.cosineScores, termPositions));
+    }
 
-            combinedScores.put(docId, new Object[]{cosSimScore, pageRankScore, combinedScore, termPositions});
+    /**
+     * Score the documents in [fromDoc, toDoc) and select the top k of both
+     * rankings among them.
+     */
+    private TopDocuments score(BooleanQuery query, int k, int fromDoc, int toDoc, SearchAfter after) {
+        List<String> filterQuery = query.getTerms();
+        ScoreAccumulator scores = CosSim.ACCUMULATOR.get();
+        try {
+            // Compute cosine similarity scores (doc IDs and frequencies only)
+            if (!query.isDisjunction()) {
+                // Only the documents matching the operators are scored
+                query.score(termDictionary, bodyIndex, documentSize, norms, scores);
+            } else if (scoringStrategy == ScoringStrategy.WAND && after == null) {
+                // WAND prunes against the top k of all documents, later pages are scored exhaustively
+                WandScorer.score(filterQuery, termDictionary, bodyIndex, documentSize, norms, pageRanks,
+                        maxPageRank, k, fromDoc, toDoc, scores);
+            } else {
+                CosSim.score(filterQuery, termDictionary, bodyIndex, documentSize, norms, fromDoc, toDoc, scores);
+            }
+
+            // One pass selects the top k of both rankings. Documents with a zero CosSim score are left out.
+            TopDocuments top = new TopDocuments(k, after);
+            for (int i = 0; i < scores.size(); i++) {
+                float cosSimScore = scores.scoreAt(i);
+                if (cosSimScore > 0) {
+                    int docId = scores.docAt(i);
+                    top.offer(docId, cosSimScore, cosSimScore * (double) pageRanks.getRank(docId));
+                }
+            }
+            for (int i = 0; i < top.cosine.size(); i++) {
+                top.cosineScores.put(top.cosine.docAt(i), (double) scores.get(top.cosine.docAt(i)));
+            }
+            for (int i = 0; i < top.combined.size(); i++) {
+                top.cosineScores.put(top.combined.docAt(i), (double) scores.get(top.combined.docAt(i)));
+            }
+            return top;
+        } finally {
+            scores.reset();
         }
+    }
+
+    /**
+     * Score the partitions on at most maxQueryParallelism threads and merge
+     * their top k. The calling thread scores partitions too, so a query
+     * makes progress even when the pool is busy with other queries.
+     */
+    private TopDocuments scorePartitions(BooleanQuery query, int k, SearchAfter after) {
+        TopDocuments[] partitionTops = new TopDocuments[partitions];
+        AtomicInteger nextPartition = new AtomicInteger();
+        Runnable worker = () -> {
+            int p;
+            while ((p = nextPartition.getAndIncrement()) < partitions) {
+                partitionTops[p] = score(query, k, partitionStart(p), partitionStart(p + 1), after);
+            }
+        };
 
-        // Sort documents for both rankings
-        List<Map.Entry<Integer, Object[]>> cosineRanked = new ArrayList<>(cosineScores.entrySet());
-        List<Map.Entry<Integer, Object[]>> combinedRanked = new ArrayList<>(combinedScores.entrySet());
+        List<ForkJoinTask<?>> helpers = new ArrayList<>();
+        for (int i = 1; i < Math.min(maxQueryParallelism, partitions) && pool != null; i++) {
+            helpers.add(pool.submit(worker));
+        }
+        worker.run();
+        for (ForkJoinTask<?> helper : helpers) {
+            helper.join();
+        }
 
-        cosineRanked.sort((a, b) -> Double.compare((double) b.getValue()[0], (double) a.getValue()[0])); // Sort by CosSim descending
-        combinedRanked.sort((a, b) -> Double.compare((double) b.getValue()[2], (double) a.getValue()[2])); // Sort by Combined Score descending
+        // Ties go to the lower docID in every heap, so the merge picks what one heap over all documents would
+        TopDocuments top = new TopDocuments(k, after);
+        for (TopDocuments partitionTop : partitionTops) {
+            for (int i = 0; i < partitionTop.cosine.size(); i++) {
+                top.cosine.offer(partitionTop.cosine.docAt(i), partitionTop.cosine.scoreAt(i));
+            }
+            for (int i = 0; i < partitionTop.combined.size(); i++) {
+                top.combined.offer(partitionTop.combined.docAt(i), partitionTop.combined.scoreAt(i));
+            }
+            top.cosineScores.putAll(partitionTop.cosineScores);
+        }
+        return top;
+    }
 
-        // Store results correctly
-        Map<String, Object> results = new HashMap<>();
-        results.put("cosine", cosineRanked.subList(0, Math.min(10, cosineRanked.size()))); // CosSim ranking
-        results.put("combined", combinedRanked.subList(0, Math.min(10, combinedRanked.size()))); // Combined ranking
+    /**
+     * First docID of a partition. Partitions split the docIDs of the norms
+     * evenly, the last one also takes any docID beyond them.
+     */
+    private int partitionStart(int partition) {
+        if (partition == partitions) {
+            return PostingsIterator.NO_MORE_DOCS;
+        }
+        return (int) ((long) norms.size() * partition / partitions);
+    }
 
-        return results; // Return both rankings including term positions
+    private List<ScoredDocument> toDocuments(TopKHeap top, Map<Integer, Double> cosineScores,
+                                             Map<Integer, List<Integer>> termPositions) {
+        List<ScoredDocument> documents = new ArrayList<>(top.size());
+        for (int i = 0; i < top.size(); i++) {
+            int docId = top.docAt(i);
+            double cosSimScore = cosineScores.get(docId);
+            double pageRankScore = pageRanks.getRank(docId);
+            documents.add(new ScoredDocument(docId, cosSimScore, pageRankScore, cosSimScore * pageRankScore,
+                    Collections.unmodifiableList(termPositions.get(docId))));
+        }
+        // Results may be cached and shared between requests
+        return Collections.unmodifiableList(documents);
+    }
+
+    /**
+     * Collect the positions of the query terms in the given documents. Only
+     * these documents touch the positions stream of the index.
+     */
+    private Map<Integer, List<Integer>> loadPositions(List<String> terms, Set<Integer> docIds) {
+        Map<Integer, List<Integer>> termPositions = new HashMap<>();
+        for (Integer docId : docIds) {
+            termPositions.put(docId, new ArrayList<>());
+        }
+
+        for (String term : terms) {
+            try {
+                PostingsIterator postings = bodyIndex.getPostings(term);
+                if (postings == null) {
+                    continue;
+                }
+
+                while (postings.nextDoc() != PostingsIterator.NO_MORE_DOCS) {
+                    List<Integer> positions = termPositions.get(postings.docId());
+                    if (positions == null) {
+                        continue;
+                    }
+                    for (int p = postings.positionCount(); p > 0; p--) {
+                        positions.add(postings.nextPosition());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+        }
+
+        return termPositions;
+    }
+
+    /**
+     * Top k documents of both rankings, with the cosine similarity of each.
+     * With a search-after position, only its ranking is filled, from the
+     * documents after it.
+     */
+    private static final class TopDocuments {
+        final TopKHeap cosine;
+        final TopKHeap combined;
+        final Map<Integer, Double> cosineScores = new HashMap<>();
+        final SearchAfter after;
+
+        TopDocuments(int k, SearchAfter after) {
+            this.cosine = new TopKHeap(k);
+            this.combined = new TopKHeap(k);
+            this.after = after;
+        }
+
+        void offer(int docId, double cosineScore, double combinedScore) {
+            if (after == null || (after.ranking() == Ranking.COSINE && after.isFollowedBy(docId, cosineScore))) {
+                cosine.offer(docId, cosineScore);
+            }
+            if (after == null || (after.ranking() == Ranking.COMBINED && after.isFollowedBy(docId, combinedScore))) {
+                combined.offer(docId, combinedScore);
+            }
+        }
     }
 }
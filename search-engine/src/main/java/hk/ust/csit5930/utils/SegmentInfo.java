@@ -0,0 +1,55 @@
+package hk.ust.csit5930.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * A committed segment together with the documents it holds and those of them
+ * that have been deleted or replaced since it was written. The segment files
+ * never change, deletions only live in the manifest.
+ */
+class SegmentInfo {
+    final String name;
+    final IndexSegment segment;
+    final BitSet docs;
+    final BitSet deleted;
+    final long sizeInBytes;
+
+    SegmentInfo(String name, IndexSegment segment, BitSet docs, BitSet deleted, long sizeInBytes) {
+        this.name = name;
+        this.segment = segment;
+        this.docs = docs;
+        this.deleted = deleted;
+        this.sizeInBytes = sizeInBytes;
+    }
+
+    static SegmentInfo open(File directory, String name, BitSet docs, BitSet deleted) throws IOException {
+        long size = 0;
+        for (String extension : IndexSegment.EXTENSIONS) {
+            size += new File(directory, name + extension).length();
+        }
+        return new SegmentInfo(name, IndexSegment.open(directory, name), docs, deleted, size);
+    }
+
+    int docCount() {
+        return docs.cardinality();
+    }
+
+    int deletedCount() {
+        return deleted.cardinality();
+    }
+
+    int liveDocCount() {
+        return docCount() - deletedCount();
+    }
+
+    /**
+     * Size of the segment without its deleted documents, assuming they take
+     * an average share of the files.
+     */
+    long liveSizeInBytes() {
+        int docCount = docCount();
+        return docCount == 0 ? 0 : sizeInBytes * liveDocCount() / docCount;
+    }
+}
@@ -0,0 +1,575 @@
+package hk.ust.csit5930.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import hk.ust.csit5930.models.WordInfo;
+
+/**
+ * Incremental index made of immutable {@link IndexSegment}s, in the style of
+ * Lucene. Added documents are buffered in memory and written as a new small
+ * segment, either when the memory budget is exceeded or on {@link #commit()}.
+ * An update is an add of a document that is already indexed: the commit marks
+ * its older copy deleted, the segment files themselves never change.
+ *
+ * The committed segments, their deletions and the version of every document
+ * are listed in a manifest that is replaced atomically on each commit. A
+ * background thread merges segments chosen by a {@link TieredMergePolicy},
+ * dropping deleted documents, and writes no faster than the configured I/O
+ * budget so that merging does not starve queries.
+ *
+ * Documents are added by a single indexing thread. Readers from
+ * {@link #getReader()} may be used from any thread.
+ */
+public class SegmentManager implements Closeable {
+    static final String MANIFEST_FILE = "segments";
+    static final String SEGMENT_PREFIX = "_";
+
+    private static final int MAGIC = 0x53454753; // "SEGS"
+    private static final int VERSION = 1;
+
+    // Rough heap cost of the buffered objects, as in BulkIndexBuilder
+    private static final int TERM_OVERHEAD_BYTES = 96;
+    private static final int POSTING_OVERHEAD_BYTES = 48;
+    private static final int POSITION_BYTES = 20;
+
+    private final File directory;
+    private final TieredMergePolicy mergePolicy;
+    private final long memoryBudget;
+    private final long mergeBytesPerSecond;
+    private final ExecutorService mergeExecutor;
+    private final Consumer<Exception> mergeFailureHandler;
+
+    // Committed state, guarded by this
+    private final List<SegmentInfo> segments = new ArrayList<>();
+    private final Set<SegmentInfo> merging = new HashSet<>();
+    private final Map<Integer, Long> docVersions = new HashMap<>();
+    private long generation;
+    private int nextSegmentNumber;
+    private volatile SegmentReader reader;
+    private boolean closed = false;
+
+    // Changes since the last commit, only touched by the indexing thread
+    private Map<String, List<Posting>> buffer = new HashMap<>();
+    private final BitSet bufferedDocs = new BitSet();
+    private long bufferedBytes = 0;
+    private final List<SegmentInfo> flushed = new ArrayList<>();
+    private final Map<Integer, Long> pendingVersions = new HashMap<>();
+    private final BitSet pendingDeletes = new BitSet();
+
+    /**
+     * @param directory           directory holding the segments and the manifest
+     * @param mergePolicy         policy choosing the segments to merge
+     * @param memoryBudget        approximate number of bytes to buffer before writing a segment
+     * @param mergeBytesPerSecond write rate of merges, 0 for no limit
+     */
+    public SegmentManager(File directory, TieredMergePolicy mergePolicy, long memoryBudget,
+                          long mergeBytesPerSecond) throws IOException {
+        this(directory, mergePolicy, memoryBudget, mergeBytesPerSecond,
+                e -> System.err.println("Segment merge failed: " + e.getMessage()));
+    }
+
+    /**
+     * @param mergeFailureHandler receives the error of a failed background
+     *                            merge; the segments are left as they were
+     *                            before the merge
+     */
+    public SegmentManager(File directory, TieredMergePolicy mergePolicy, long memoryBudget,
+                          long mergeBytesPerSecond, Consumer<Exception> mergeFailureHandler) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create segment directory " + directory);
+        }
+        this.directory = directory;
+        this.mergePolicy = mergePolicy;
+        this.memoryBudget = memoryBudget;
+        this.mergeBytesPerSecond = mergeBytesPerSecond;
+        this.mergeFailureHandler = mergeFailureHandler;
+        this.mergeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-merge");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        readManifest();
+        deleteUnreferencedFiles();
+        reader = new SegmentReader(segments, generation);
+        maybeMerge();
+    }
+
+    /**
+     * Whether any documents have been committed, i.e. the index is not new.
+     */
+    public synchronized boolean hasSegments() {
+        return !segments.isEmpty();
+    }
+
+    /**
+     * Version recorded for a document by its last committed add.
+     *
+     * @return the version, or -1 if the document is not indexed
+     */
+    public synchronized long getVersion(int docId) {
+        return docVersions.getOrDefault(docId, -1L);
+    }
+
+    /**
+     * IDs of all committed documents.
+     */
+    public synchronized Set<Integer> getDocIds() {
+        return new HashSet<>(docVersions.keySet());
+    }
+
+    /**
+     * Add a document, replacing any indexed copy once committed.
+     *
+     * @param version caller-defined version, e.g. a last-modified stamp, returned by {@link #getVersion}
+     */
+    public void addDocument(int docId, long version, Map<String, WordInfo> wordFreq) throws IOException {
+        ensureOpen();
+        if (bufferedDocs.get(docId)) {
+            // The buffered copy is replaced by writing it out first
+            flush();
+        }
+
+        bufferedDocs.set(docId);
+        pendingVersions.put(docId, version);
+        pendingDeletes.clear(docId);
+
+        for (Map.Entry<String, WordInfo> entry : wordFreq.entrySet()) {
+            String term = entry.getKey();
+            List<Posting> postings = buffer.get(term);
+            if (postings == null) {
+                postings = new ArrayList<>();
+                buffer.put(term, postings);
+                bufferedBytes += TERM_OVERHEAD_BYTES + 2L * term.length();
+            }
+
+            List<Integer> positions = entry.getValue().getPositions();
+            postings.add(new Posting(docId, entry.getValue().getFrequency(), positions));
+            bufferedBytes += POSTING_OVERHEAD_BYTES + (long) POSITION_BYTES * positions.size();
+        }
+
+        if (bufferedBytes >= memoryBudget) {
+            flush();
+        }
+    }
+
+    /**
+     * Delete documents once committed. A later add of the same document in
+     * this commit indexes it again.
+     */
+    public void deleteDocuments(Collection<Integer> docIds) throws IOException {
+        ensureOpen();
+        for (int docId : docIds) {
+            if (bufferedDocs.get(docId)) {
+                flush();
+            }
+            pendingDeletes.set(docId);
+            pendingVersions.remove(docId);
+        }
+    }
+
+    /**
+     * Write the buffered documents to a segment that becomes visible on commit.
+     */
+    private void flush() throws IOException {
+        if (bufferedDocs.isEmpty()) {
+            return;
+        }
+
+        String name = newSegmentName();
+        SegmentWriter writer = new SegmentWriter(directory, name);
+        List<String> terms = new ArrayList<>(buffer.keySet());
+        terms.sort(TermDictionary.TERM_ORDER);
+        for (String term : terms) {
+            List<Posting> postings = buffer.get(term);
+            // Documents may be added in any order
+            postings.sort(Comparator.comparingInt(posting -> posting.doc));
+            writer.addTerm(term, postings);
+        }
+        writer.finish();
+
+        flushed.add(SegmentInfo.open(directory, name, (BitSet) bufferedDocs.clone(), new BitSet()));
+        buffer = new HashMap<>();
+        bufferedDocs.clear();
+        bufferedBytes = 0;
+    }
+
+    /**
+     * Publish all changes since the last commit: apply deletions, add the new
+     * segments, replace the manifest and open a new reader. Then look for
+     * merges in the background.
+     */
+    public void commit() throws IOException {
+        ensureOpen();
+        flush();
+
+        synchronized (this) {
+            for (SegmentInfo info : segments) {
+                markDeleted(info, pendingDeletes);
+            }
+            for (SegmentInfo info : flushed) {
+                markDeleted(info, pendingDeletes);
+            }
+            for (int docId = pendingDeletes.nextSetBit(0); docId >= 0; docId = pendingDeletes.nextSetBit(docId + 1)) {
+                docVersions.remove(docId);
+            }
+
+            // Segments were flushed in order, each one replaces the copies in all earlier ones
+            for (SegmentInfo info : flushed) {
+                for (SegmentInfo older : segments) {
+                    markDeleted(older, info.docs);
+                }
+                segments.add(info);
+            }
+            docVersions.putAll(pendingVersions);
+
+            generation++;
+            writeManifest();
+            reader = new SegmentReader(segments, generation);
+        }
+
+        flushed.clear();
+        pendingVersions.clear();
+        pendingDeletes.clear();
+        maybeMerge();
+    }
+
+    private static void markDeleted(SegmentInfo info, BitSet docIds) {
+        BitSet replaced = (BitSet) info.docs.clone();
+        replaced.and(docIds);
+        info.deleted.or(replaced);
+    }
+
+    /**
+     * Point-in-time reader over the last commit.
+     */
+    public SegmentReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Schedule a background pass that merges segments until the policy is
+     * satisfied.
+     */
+    private synchronized void maybeMerge() {
+        if (!closed) {
+            mergeExecutor.execute(this::runMerges);
+        }
+    }
+
+    private void runMerges() {
+        try {
+            while (true) {
+                OneMerge merge = nextMerge();
+                if (merge == null) {
+                    return;
+                }
+                try {
+                    merge(merge);
+                } finally {
+                    synchronized (this) {
+                        merging.removeAll(merge.sources);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!isClosed()) {
+                mergeFailureHandler.accept(e);
+            }
+        }
+    }
+
+    /**
+     * Pick the next merge and snapshot the deletions of its segments.
+     */
+    private synchronized OneMerge nextMerge() {
+        if (closed) {
+            return null;
+        }
+        List<SegmentInfo> candidates = new ArrayList<>(segments);
+        candidates.removeAll(merging);
+        List<SegmentInfo> sources = mergePolicy.findMerge(candidates);
+        if (sources == null) {
+            return null;
+        }
+
+        merging.addAll(sources);
+        List<BitSet> deleted = new ArrayList<>();
+        for (SegmentInfo info : sources) {
+            deleted.add((BitSet) info.deleted.clone());
+        }
+        return new OneMerge(sources, deleted, newSegmentName());
+    }
+
+    /**
+     * Write the live documents of the source segments to a new segment and
+     * swap it in. Deletions made while the merge ran are carried over.
+     */
+    private void merge(OneMerge merge) throws IOException {
+        BitSet docs = new BitSet();
+        TreeSet<String> terms = new TreeSet<>(TermDictionary.TERM_ORDER);
+        for (int i = 0; i < merge.sources.size(); i++) {
+            SegmentInfo info = merge.sources.get(i);
+            BitSet live = (BitSet) info.docs.clone();
+            live.andNot(merge.deleted.get(i));
+            docs.or(live);
+
+            TermDictionary dictionary = info.segment.getTermDictionary();
+            for (int termId = 0; termId < dictionary.size(); termId++) {
+                terms.add(dictionary.getTerm(termId));
+            }
+        }
+
+        if (docs.isEmpty()) {
+            // Every document was deleted, the segments are dropped without writing a new one
+            swap(merge, null);
+            return;
+        }
+
+        SegmentWriter writer = new SegmentWriter(directory, merge.name);
+        long start = System.nanoTime();
+        for (String term : terms) {
+            List<PostingsIterator> subs = new ArrayList<>();
+            List<BitSet> subDeleted = new ArrayList<>();
+            for (int i = 0; i < merge.sources.size(); i++) {
+                PostingsIterator postings = merge.sources.get(i).segment.getPostings(term);
+                if (postings != null) {
+                    subs.add(postings);
+                    subDeleted.add(merge.deleted.get(i));
+                }
+            }
+
+            List<Posting> postings = PostingsCodec.decode(new MultiPostingsIterator(subs, subDeleted));
+            if (!postings.isEmpty()) {
+                writer.addTerm(term, postings);
+                throttle(writer.bytesWritten(), start);
+            }
+        }
+        writer.finish();
+
+        swap(merge, SegmentInfo.open(directory, merge.name, docs, new BitSet()));
+    }
+
+    /**
+     * Replace the source segments of a merge with the merged segment, or just
+     * remove them if merged is null.
+     */
+    private void swap(OneMerge merge, SegmentInfo merged) throws IOException {
+        synchronized (this) {
+            if (closed) {
+                deleteSegmentFiles(merge.name);
+                return;
+            }
+
+            segments.removeAll(merge.sources);
+            if (merged != null) {
+                for (int i = 0; i < merge.sources.size(); i++) {
+                    BitSet deletedSince = (BitSet) merge.sources.get(i).deleted.clone();
+                    deletedSince.andNot(merge.deleted.get(i));
+                    merged.deleted.or(deletedSince);
+                }
+                segments.add(merged);
+            }
+            generation++;
+            writeManifest();
+            reader = new SegmentReader(segments, generation);
+        }
+
+        // Open readers keep the old files mapped, the data stays valid after deletion
+        for (SegmentInfo info : merge.sources) {
+            deleteSegmentFiles(info.name);
+        }
+    }
+
+    /**
+     * Sleep as long as needed to keep the merge within the I/O budget.
+     */
+    private void throttle(long bytesWritten, long startNanos) throws IOException {
+        if (mergeBytesPerSecond <= 0) {
+            return;
+        }
+        long targetNanos = (long) (bytesWritten * 1e9 / mergeBytesPerSecond);
+        long aheadNanos = targetNanos - (System.nanoTime() - startNanos);
+        if (aheadNanos > 1_000_000) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Merge interrupted");
+            }
+        }
+    }
+
+    private synchronized String newSegmentName() {
+        return SEGMENT_PREFIX + Integer.toString(nextSegmentNumber++, Character.MAX_RADIX);
+    }
+
+    private void readManifest() throws IOException {
+        File manifest = new File(directory, MANIFEST_FILE);
+        if (!manifest.isFile()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(manifest), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a supported segment manifest: " + manifest);
+            }
+            generation = in.readLong();
+            nextSegmentNumber = in.readInt();
+
+            int segmentCount = in.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                String name = in.readUTF();
+                BitSet docs = readBits(in);
+                BitSet deleted = readBits(in);
+                segments.add(SegmentInfo.open(directory, name, docs, deleted));
+            }
+
+            int docCount = in.readInt();
+            for (int i = 0; i < docCount; i++) {
+                docVersions.put(in.readInt(), in.readLong());
+            }
+        }
+    }
+
+    /**
+     * Replace the manifest with the current committed state. The new manifest
+     * is written under a temporary name and renamed, so a crash leaves either
+     * the old or the new one.
+     */
+    private void writeManifest() throws IOException {
+        File temp = new File(directory, MANIFEST_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(nextSegmentNumber);
+
+            out.writeInt(segments.size());
+            for (SegmentInfo info : segments) {
+                out.writeUTF(info.name);
+                writeBits(out, info.docs);
+                writeBits(out, info.deleted);
+            }
+
+            out.writeInt(docVersions.size());
+            for (Map.Entry<Integer, Long> entry : docVersions.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+        Files.move(temp.toPath(), new File(directory, MANIFEST_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static BitSet readBits(DataInputStream in) throws IOException {
+        long[] words = new long[in.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        return BitSet.valueOf(words);
+    }
+
+    private static void writeBits(DataOutputStream out, BitSet bits) throws IOException {
+        long[] words = bits.toLongArray();
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Remove segment files left behind by an interrupted flush or merge.
+     */
+    private void deleteUnreferencedFiles() {
+        Set<String> referenced = new HashSet<>();
+        for (SegmentInfo info : segments) {
+            referenced.add(info.name);
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String fileName = file.getName();
+            int dot = fileName.indexOf('.');
+            if (fileName.startsWith(SEGMENT_PREFIX) && dot > 0 && !referenced.contains(fileName.substring(0, dot))) {
+                file.delete();
+            }
+        }
+    }
+
+    private void deleteSegmentFiles(String name) {
+        for (String extension : IndexSegment.EXTENSIONS) {
+            new File(directory, name + extension).delete();
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private synchronized void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Segment manager is closed");
+        }
+    }
+
+    /**
+     * Stop merging. Uncommitted changes are discarded.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        mergeExecutor.shutdownNow();
+        try {
+            mergeExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SegmentInfo info : flushed) {
+            deleteSegmentFiles(info.name);
+        }
+        flushed.clear();
+    }
+
+    /**
+     * Segments being merged and their deletions when the merge started.
+     */
+    private static class OneMerge {
+        final List<SegmentInfo> sources;
+        final List<BitSet> deleted;
+        final String name;
+
+        OneMerge(List<SegmentInfo> sources, List<BitSet> deleted, String name) {
+            this.sources = sources;
+            this.deleted = deleted;
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package hk.ust.csit5930.utils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Point-in-time view of the segments of a {@link SegmentManager}. Queries read
+ * the postings of all live segments as one list, skipping deleted documents.
+ * Later commits and merges do not change an open reader.
+ */
+public class SegmentReader implements PostingsSource {
+    private final List<IndexSegment> segments = new ArrayList<>();
+    private final List<BitSet> deleted = new ArrayList<>();
+    private final TermDictionary dictionary;
+    private final int numDocs;
+    private final long generation;
+
+    SegmentReader(List<SegmentInfo> infos, long generation) {
+        this.generation = generation;
+
+        int numDocs = 0;
+        for (SegmentInfo info : infos) {
+            segments.add(info.segment);
+            deleted.add(info.deleted.isEmpty() ? null : (BitSet) info.deleted.clone());
+            numDocs += info.liveDocCount();
+        }
+        this.numDocs = numDocs;
+        this.dictionary = buildDictionary();
+    }
+
+    /**
+     * Combine the segment dictionaries. Document frequencies only count live
+     * documents, so scores match an index rebuilt from scratch.
+     */
+    private TermDictionary buildDictionary() {
+        TermDictionary.Builder builder = new TermDictionary.Builder();
+        for (int i = 0; i < segments.size(); i++) {
+            IndexSegment segment = segments.get(i);
+            TermDictionary segmentDictionary = segment.getTermDictionary();
+            BitSet segmentDeleted = deleted.get(i);
+
+            for (int termId = 0; termId < segmentDictionary.size(); termId++) {
+                String term = segmentDictionary.getTerm(termId);
+                int docFreq = segmentDeleted == null
+                        ? segmentDictionary.getDocFreq(termId)
+                        : countLive(segment.getPostings(term), segmentDeleted);
+                if (docFreq > 0) {
+                    builder.addDocFreq(term, docFreq);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private static int countLive(PostingsIterator postings, BitSet deleted) {
+        int count = 0;
+        while (postings.nextDoc() != PostingsIterator.NO_MORE_DOCS) {
+            if (!deleted.get(postings.docId())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public PostingsIterator getPostings(String term) {
+        List<PostingsIterator> subs = new ArrayList<>();
+        List<BitSet> subDeleted = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            PostingsIterator postings = segments.get(i).getPostings(term);
+            if (postings != null) {
+                subs.add(postings);
+                subDeleted.add(deleted.get(i));
+            }
+        }
+
+        if (subs.isEmpty()) {
+            return null;
+        }
+        if (subs.size() == 1 && subDeleted.get(0) == null) {
+            return subs.get(0);
+        }
+        return new MultiPostingsIterator(subs, subDeleted);
+    }
+
+    /**
+     * Dictionary of all live terms with their document frequencies.
+     */
+    public TermDictionary getTermDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Number of live documents.
+     */
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+}
@@ -0,0 +1,133 @@
+package hk.ust.csit5930.utils;
+
+import jdbm.helper.FastIterator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes an immutable {@link IndexSegment}. Terms must be added in
+ * {@link TermDictionary#TERM_ORDER}.
+ * The files are written under temporary names and renamed by {@link #finish()},
+ * the term dictionary last, so a reader never sees a partial segment.
+ */
+public class SegmentWriter {
+    private final File directory;
+    private final String name;
+
+    private final DataOutputStream docsOut;
+    private final DataOutputStream positionsOut;
+    private final List<String> terms = new ArrayList<>();
+    private final TermDictionary.Builder dictionary = new TermDictionary.Builder();
+    private final List<long[]> offsets = new ArrayList<>();
+    private long docsOffset = 0;
+    private long positionsOffset = 0;
+
+    public SegmentWriter(File directory, String name) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create segment directory " + directory);
+        }
+        this.directory = directory;
+        this.name = name;
+        this.docsOut = open(IndexSegment.DOCS_EXTENSION);
+        this.positionsOut = open(IndexSegment.POSITIONS_EXTENSION);
+    }
+
+    /**
+     * Freeze the posting lists stored in a JDBM inverted index into a segment.
+     */
+    public static void freeze(InvertedIndex index, File directory, String name) throws IOException {
+        List<String> terms = new ArrayList<>();
+        FastIterator iter = index.getHashtable().keys();
+        String key;
+        while ((key = (String) iter.next()) != null) {
+            terms.add(key);
+        }
+        terms.sort(TermDictionary.TERM_ORDER);
+
+        SegmentWriter writer = new SegmentWriter(directory, name);
+        for (String term : terms) {
+            List<Posting> postings = index.getPostingList(term);
+            if (postings != null) {
+                writer.addTerm(term, postings);
+            }
+        }
+        writer.finish();
+    }
+
+    /**
+     * Append the postings of a term. Terms must arrive in increasing order.
+     */
+    void addTerm(String term, List<Posting> postings) throws IOException {
+        if (!terms.isEmpty() && TermDictionary.TERM_ORDER.compare(terms.get(terms.size() - 1), term) >= 0) {
+            throw new IllegalArgumentException("Terms must be added in sorted order: " + term);
+        }
+
+        byte[][] streams = PostingsCodec.encode(postings);
+        byte[] docs = streams[0];
+        byte[] positions = streams[1];
+        docsOut.write(docs);
+        positionsOut.write(positions);
+
+        terms.add(term);
+        dictionary.setDocFreq(term, postings.size());
+        offsets.add(new long[]{docsOffset, docs.length, positionsOffset, positions.length});
+        docsOffset += docs.length;
+        positionsOffset += positions.length;
+    }
+
+    /**
+     * Bytes written to the postings and positions files so far.
+     */
+    long bytesWritten() {
+        return docsOffset + positionsOffset;
+    }
+
+    /**
+     * Write the term dictionary and publish the segment files.
+     */
+    public void finish() throws IOException {
+        docsOut.close();
+        positionsOut.close();
+
+        try (DataOutputStream out = open(IndexSegment.DICTIONARY_EXTENSION)) {
+            out.writeInt(IndexSegment.MAGIC);
+            out.writeInt(IndexSegment.VERSION);
+            // Terms were added in dictionary order, so term IDs match the offset order
+            dictionary.build().write(out);
+            for (int i = 0; i < terms.size(); i++) {
+                long[] termOffsets = offsets.get(i);
+                out.writeLong(termOffsets[0]);
+                out.writeInt((int) termOffsets[1]);
+                out.writeLong(termOffsets[2]);
+                out.writeInt((int) termOffsets[3]);
+            }
+        }
+
+        publish(IndexSegment.DOCS_EXTENSION);
+        publish(IndexSegment.POSITIONS_EXTENSION);
+        publish(IndexSegment.DICTIONARY_EXTENSION);
+    }
+
+    private DataOutputStream open(String extension) throws IOException {
+        OutputStream out = new FileOutputStream(tempFile(extension));
+        return new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    }
+
+    private void publish(String extension) throws IOException {
+        Files.move(tempFile(extension).toPath(), new File(directory, name + extension).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private File tempFile(String extension) {
+        return new File(directory, name + extension + ".tmp");
+    }
+}
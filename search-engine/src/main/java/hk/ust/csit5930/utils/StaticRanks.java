@@ -0,0 +1,127 @@
+package hk.ust.csit5930.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The query-independent score of every document, its PageRank, as a dense
+ * float array indexed by docID. Scoring reads it in O(1) without boxing, and
+ * it is never modified after creation, so all query threads share it.
+ *
+ * The file layout is the header followed by the array:
+ * <pre>
+ *   MAGIC VERSION generation size maxRank (float)
+ *   rank[size] (float)
+ * </pre>
+ * Opened files are memory-mapped and read in place.
+ */
+public class StaticRanks {
+    public static final String FILE_EXTENSION = ".ranks";
+
+    private static final int MAGIC = 0x524e4b53; // "RNKS"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+
+    private final long generation;
+    private final int size;
+    private final float maxRank;
+    private final ByteBuffer data;
+
+    private StaticRanks(long generation, int size, float maxRank, ByteBuffer data) {
+        this.generation = generation;
+        this.size = size;
+        this.maxRank = maxRank;
+        this.data = data;
+    }
+
+    /**
+     * @param generation generation of the index the ranks belong to
+     * @param ranks      rank of every docID, as from
+     *                   {@link PageRank#getRanksByDocId()}
+     */
+    public static StaticRanks create(long generation, float[] ranks) {
+        float maxRank = 0;
+        for (float rank : ranks) {
+            maxRank = Math.max(maxRank, rank);
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(HEADER_BYTES + 4 * ranks.length);
+        data.putInt(MAGIC).putInt(VERSION).putLong(generation).putInt(ranks.length).putFloat(maxRank);
+        for (float rank : ranks) {
+            data.putFloat(rank);
+        }
+        return new StaticRanks(generation, ranks.length, maxRank, data);
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Number of docIDs covered, one more than the highest docID.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Rank of the document, 0 for unknown documents.
+     */
+    public float getRank(int docId) {
+        return docId >= 0 && docId < size ? data.getFloat(HEADER_BYTES + 4 * docId) : 0;
+    }
+
+    /**
+     * Highest rank of any document, for score bounds.
+     */
+    public float getMaxRank() {
+        return maxRank;
+    }
+
+    /**
+     * Persist the ranks, replacing the file atomically.
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        // A duplicate has its own position, concurrent readers are not disturbed
+        ByteBuffer out = data.duplicate();
+        out.clear();
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Map a file written by {@link #write(File)}.
+     *
+     * @return the ranks, or null if the file does not exist
+     */
+    public static StaticRanks open(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        // The mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (channel.size() < HEADER_BYTES || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+                throw new IOException("Not a supported ranks file: " + file);
+            }
+            long generation = data.getLong(8);
+            int size = data.getInt(16);
+            if (channel.size() != HEADER_BYTES + 4L * size) {
+                throw new IOException("Truncated ranks file: " + file);
+            }
+            return new StaticRanks(generation, size, data.getFloat(20), data);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package hk.ust.csit5930.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, sorted term dictionary built once at index time.
+ *
+ * Terms are sorted by their UTF-8 bytes and stored front-coded in blocks of
+ * {@link #BLOCK_SIZE}: the first term of a block is stored in full, every other
+ * term as the length of the prefix it shares with the previous term plus the
+ * remaining suffix. A term ID is the term's rank in sort order, and document
+ * frequencies are kept in an int[] indexed by term ID.
+ */
+public class TermDictionary {
+    public static final int BLOCK_SIZE = 16;
+    public static final String FILE_EXTENSION = ".terms";
+
+    /**
+     * Sort order of the dictionary, unsigned comparison of the UTF-8 bytes.
+     */
+    public static final Comparator<String> TERM_ORDER = (a, b) ->
+            compareBytes(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+
+    private static final int MAGIC = 0x54444943; // "TDIC"
+    private static final int VERSION = 1;
+
+    private final int size;
+    private final int[] docFreqs;
+    private final int[] blockOffsets;
+    private final byte[] blocks;
+
+    private TermDictionary(int size, int[] docFreqs, int[] blockOffsets, byte[] blocks) {
+        this.size = size;
+        this.docFreqs = docFreqs;
+        this.blockOffsets = blockOffsets;
+        this.blocks = blocks;
+    }
+
+    /**
+     * Number of terms in the dictionary.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Look up the ID of a term.
+     *
+     * @return the term ID, or -1 if the term is not in the dictionary
+     */
+    public int getTermId(String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        int termId = lowerBound(key, false);
+        if (termId < size && compareBytes(termAt(termId), key) == 0) {
+            return termId;
+        }
+        return -1;
+    }
+
+    public String getTerm(int termId) {
+        return new String(termAt(termId), StandardCharsets.UTF_8);
+    }
+
+    public int getDocFreq(int termId) {
+        return docFreqs[termId];
+    }
+
+    /**
+     * Range of term IDs whose terms start with the given prefix.
+     *
+     * @return {from, to} with from inclusive and to exclusive, empty if from == to
+     */
+    public int[] getPrefixRange(String prefix) {
+        byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        return new int[]{lowerBound(key, false), lowerBound(key, true)};
+    }
+
+    /**
+     * All terms starting with the given prefix, in dictionary order.
+     */
+    public List<String> getTermsWithPrefix(String prefix) {
+        int[] range = getPrefixRange(prefix);
+        List<String> terms = new ArrayList<>(range[1] - range[0]);
+        for (int termId = range[0]; termId < range[1]; termId++) {
+            terms.add(getTerm(termId));
+        }
+        return terms;
+    }
+
+    /**
+     * First term ID whose term is not smaller than the key. With afterPrefix,
+     * the first term ID whose term is greater than every term starting with key.
+     */
+    private int lowerBound(byte[] key, boolean afterPrefix) {
+        // Find the last block whose first term precedes the key
+        int low = 0;
+        int high = blockOffsets.length - 1;
+        int block = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compare(firstTermOfBlock(mid), key, afterPrefix) < 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        // Scan the block for the first term that does not precede the key
+        ByteBuffer in = ByteBuffer.wrap(blocks, blockOffsets.length == 0 ? 0 : blockOffsets[block],
+                blocks.length - (blockOffsets.length == 0 ? 0 : blockOffsets[block]));
+        int end = Math.min(size, (block + 1) * BLOCK_SIZE);
+        byte[] term = new byte[0];
+        for (int termId = block * BLOCK_SIZE; termId < end; termId++) {
+            term = nextTerm(in, term, termId % BLOCK_SIZE == 0);
+            if (compare(term, key, afterPrefix) >= 0) {
+                return termId;
+            }
+        }
+        return end;
+    }
+
+    private static int compare(byte[] term, byte[] key, boolean afterPrefix) {
+        if (afterPrefix && term.length > key.length) {
+            // Terms that start with the key compare equal to it, so they precede the bound
+            int cmp = Arrays.compareUnsigned(term, 0, key.length, key, 0, key.length);
+            return cmp == 0 ? -1 : cmp;
+        }
+        int cmp = compareBytes(term, key);
+        return afterPrefix && cmp == 0 ? -1 : cmp;
+    }
+
+    private byte[] firstTermOfBlock(int block) {
+        ByteBuffer in = ByteBuffer.wrap(blocks, blockOffsets[block], blocks.length - blockOffsets[block]);
+        return nextTerm(in, null, true);
+    }
+
+    private byte[] termAt(int termId) {
+        if (termId < 0 || termId >= size) {
+            throw new IndexOutOfBoundsException("Term ID " + termId + " out of range");
+        }
+        int block = termId / BLOCK_SIZE;
+        ByteBuffer in = ByteBuffer.wrap(blocks, blockOffsets[block], blocks.length - blockOffsets[block]);
+        byte[] term = null;
+        for (int i = block * BLOCK_SIZE; i <= termId; i++) {
+            term = nextTerm(in, term, i == block * BLOCK_SIZE);
+        }
+        return term;
+    }
+
+    private static byte[] nextTerm(ByteBuffer in, byte[] previous, boolean blockStart) {
+        int prefixLength = blockStart ? 0 : PostingsCodec.readVInt(in);
+        int suffixLength = PostingsCodec.readVInt(in);
+        byte[] term = new byte[prefixLength + suffixLength];
+        if (prefixLength > 0) {
+            System.arraycopy(previous, 0, term, 0, prefixLength);
+        }
+        in.get(term, prefixLength, suffixLength);
+        return term;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    /**
+     * Persist the dictionary to a file.
+     */
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            write(out);
+        }
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(size);
+        for (int docFreq : docFreqs) {
+            out.writeInt(docFreq);
+        }
+        out.writeInt(blockOffsets.length);
+        for (int offset : blockOffsets) {
+            out.writeInt(offset);
+        }
+        out.writeInt(blocks.length);
+        out.write(blocks);
+    }
+
+    /**
+     * Load a dictionary written by {@link #write(File)}.
+     */
+    public static TermDictionary read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            return read(in);
+        }
+    }
+
+    static TermDictionary read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a supported term dictionary");
+        }
+        int size = in.readInt();
+        int[] docFreqs = new int[size];
+        for (int i = 0; i < size; i++) {
+            docFreqs[i] = in.readInt();
+        }
+        int[] blockOffsets = new int[in.readInt()];
+        for (int i = 0; i < blockOffsets.length; i++) {
+            blockOffsets[i] = in.readInt();
+        }
+        byte[] blocks = new byte[in.readInt()];
+        in.readFully(blocks);
+        return new TermDictionary(size, docFreqs, blockOffsets, blocks);
+    }
+
+    /**
+     * Collects terms and their document frequencies during indexing.
+     */
+    public static class Builder {
+        private final Map<String, int[]> docFreqs = new HashMap<>();
+
+        /**
+         * Count one more document containing the term.
+         */
+        public void addDocument(String term) {
+            docFreqs.computeIfAbsent(term, k -> new int[1])[0]++;
+        }
+
+        /**
+         * Add to the document frequency of a term.
+         */
+        public void addDocFreq(String term, int docFreq) {
+            docFreqs.computeIfAbsent(term, k -> new int[1])[0] += docFreq;
+        }
+
+        /**
+         * Set the document frequency of a term.
+         */
+        public void setDocFreq(String term, int docFreq) {
+            docFreqs.computeIfAbsent(term, k -> new int[1])[0] = docFreq;
+        }
+
+        public TermDictionary build() {
+            int size = docFreqs.size();
+            byte[][] terms = new byte[size][];
+            int i = 0;
+            for (String term : docFreqs.keySet()) {
+                terms[i++] = term.getBytes(StandardCharsets.UTF_8);
+            }
+            Arrays.sort(terms, TermDictionary::compareBytes);
+
+            int[] sortedDocFreqs = new int[size];
+            int[] blockOffsets = new int[(size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] previous = null;
+
+            for (int termId = 0; termId < size; termId++) {
+                byte[] term = terms[termId];
+                sortedDocFreqs[termId] = docFreqs.get(new String(term, StandardCharsets.UTF_8))[0];
+
+                if (termId % BLOCK_SIZE == 0) {
+                    blockOffsets[termId / BLOCK_SIZE] = out.size();
+                    PostingsCodec.writeVInt(out, term.length);
+                    out.write(term, 0, term.length);
+                } else {
+                    int prefixLength = Arrays.mismatch(previous, term);
+                    PostingsCodec.writeVInt(out, prefixLength);
+                    PostingsCodec.writeVInt(out, term.length - prefixLength);
+                    out.write(term, prefixLength, term.length - prefixLength);
+                }
+                previous = term;
+            }
+
+            return new TermDictionary(size, sortedDocFreqs, blockOffsets, out.toByteArray());
+        }
+    }
+}
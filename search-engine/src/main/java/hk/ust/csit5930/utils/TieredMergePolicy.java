@@ -0,0 +1,141 @@
+package hk.ust.csit5930.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses which segments to merge, following Lucene's tiered merge policy.
+ *
+ * Segments are sorted by live size. The index may hold about
+ * segmentsPerTier segments of each size tier, where every tier is
+ * maxMergeAtOnce times larger than the one below it and the smallest tier
+ * starts at floorSegmentBytes. When there are more segments than that, the
+ * policy merges up to maxMergeAtOnce segments of similar size, preferring
+ * merges that are balanced, small, and reclaim deleted documents. A segment
+ * whose share of deleted documents exceeds deletesPctAllowed is rewritten.
+ */
+public class TieredMergePolicy {
+    private final int segmentsPerTier;
+    private final int maxMergeAtOnce;
+    private final long floorSegmentBytes;
+    private final long maxMergedSegmentBytes;
+    private final double deletesPctAllowed;
+
+    public TieredMergePolicy() {
+        this(10, 10, 2L * 1024 * 1024, 1024L * 1024 * 1024, 33);
+    }
+
+    public TieredMergePolicy(int segmentsPerTier, int maxMergeAtOnce, long floorSegmentBytes,
+                             long maxMergedSegmentBytes, double deletesPctAllowed) {
+        if (segmentsPerTier < 2 || maxMergeAtOnce < 2) {
+            throw new IllegalArgumentException("segmentsPerTier and maxMergeAtOnce must be at least 2");
+        }
+        this.segmentsPerTier = segmentsPerTier;
+        this.maxMergeAtOnce = maxMergeAtOnce;
+        this.floorSegmentBytes = floorSegmentBytes;
+        this.maxMergedSegmentBytes = maxMergedSegmentBytes;
+        this.deletesPctAllowed = deletesPctAllowed;
+    }
+
+    /**
+     * Pick the next merge among segments that are not being merged already.
+     *
+     * @return the segments to merge, or null if the index is in shape
+     */
+    List<SegmentInfo> findMerge(Collection<SegmentInfo> segments) {
+        List<SegmentInfo> eligible = new ArrayList<>();
+        for (SegmentInfo info : segments) {
+            double deletedPct = info.docCount() == 0 ? 100 : 100.0 * info.deletedCount() / info.docCount();
+            if (deletedPct > deletesPctAllowed) {
+                // Rewriting the segment alone drops its deleted documents
+                List<SegmentInfo> merge = new ArrayList<>();
+                merge.add(info);
+                return merge;
+            }
+            // Segments close to the maximum size only shrink through deletions
+            if (info.liveSizeInBytes() <= maxMergedSegmentBytes / 2) {
+                eligible.add(info);
+            }
+        }
+        eligible.sort(Comparator.comparingLong(SegmentInfo::liveSizeInBytes).reversed()
+                .thenComparing(info -> info.name));
+
+        if (eligible.size() <= allowedSegmentCount(eligible)) {
+            return null;
+        }
+
+        List<SegmentInfo> best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (int start = 0; start < eligible.size(); start++) {
+            List<SegmentInfo> candidate = new ArrayList<>();
+            long candidateBytes = 0;
+            for (int i = start; i < eligible.size() && candidate.size() < maxMergeAtOnce; i++) {
+                SegmentInfo info = eligible.get(i);
+                if (candidateBytes + info.liveSizeInBytes() > maxMergedSegmentBytes) {
+                    continue;
+                }
+                candidate.add(info);
+                candidateBytes += info.liveSizeInBytes();
+            }
+
+            if (candidate.size() >= 2) {
+                double score = score(candidate);
+                if (score < bestScore) {
+                    best = candidate;
+                    bestScore = score;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Number of segments the index may hold given its total size.
+     */
+    private int allowedSegmentCount(List<SegmentInfo> sortedBySize) {
+        long totalBytes = 0;
+        long minBytes = Long.MAX_VALUE;
+        for (SegmentInfo info : sortedBySize) {
+            totalBytes += info.liveSizeInBytes();
+            minBytes = Math.min(minBytes, info.liveSizeInBytes());
+        }
+
+        long levelBytes = Math.max(floorSegmentBytes, Math.max(minBytes, 1));
+        long remainingBytes = totalBytes;
+        double allowed = 0;
+        while (true) {
+            double segmentsInLevel = (double) remainingBytes / levelBytes;
+            if (segmentsInLevel < segmentsPerTier) {
+                allowed += Math.ceil(segmentsInLevel);
+                break;
+            }
+            allowed += segmentsPerTier;
+            remainingBytes -= segmentsPerTier * levelBytes;
+            levelBytes *= maxMergeAtOnce;
+        }
+        return (int) Math.max(allowed, segmentsPerTier);
+    }
+
+    /**
+     * Lower is better: balanced merges of small segments with many deletions.
+     */
+    private double score(List<SegmentInfo> candidate) {
+        long totalBytes = 0;
+        long totalFlooredBytes = 0;
+        long largestFlooredBytes = 0;
+        long rawBytes = 0;
+        for (SegmentInfo info : candidate) {
+            long floored = Math.max(floorSegmentBytes, info.liveSizeInBytes());
+            totalBytes += info.liveSizeInBytes();
+            totalFlooredBytes += floored;
+            largestFlooredBytes = Math.max(largestFlooredBytes, floored);
+            rawBytes += info.sizeInBytes;
+        }
+
+        double skew = (double) largestFlooredBytes / totalFlooredBytes;
+        double liveRatio = rawBytes == 0 ? 1 : (double) totalBytes / rawBytes;
+        return skew * Math.pow(Math.max(totalBytes, 1), 0.05) * liveRatio * liveRatio;
+    }
+}
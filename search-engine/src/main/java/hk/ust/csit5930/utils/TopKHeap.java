@@ -0,0 +1,124 @@
+package hk.ust.csit5930.utils;
+
+/**
+ * Bounded min-heap of (docID, score) pairs in primitive arrays, keeping the k
+ * best documents seen so far. A higher score is better; between equal scores
+ * the lower docID is better, so the selection does not depend on the order in
+ * which documents are offered.
+ */
+final class TopKHeap {
+    private final int[] docs;
+    private final double[] scores;
+    private int size = 0;
+
+    TopKHeap(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1: " + k);
+        }
+        this.docs = new int[k];
+        this.scores = new double[k];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size == docs.length;
+    }
+
+    /**
+     * Score of the worst kept document, which a new document has to beat once
+     * the heap is full.
+     */
+    double minScore() {
+        return size == 0 ? Double.NEGATIVE_INFINITY : scores[0];
+    }
+
+    /**
+     * Offer a document, keeping it if it is among the k best so far.
+     *
+     * @return whether the document was kept
+     */
+    boolean offer(int doc, double score) {
+        if (size < docs.length) {
+            docs[size] = doc;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if (!worse(docs[0], scores[0], doc, score)) {
+            return false;
+        }
+        docs[0] = doc;
+        scores[0] = score;
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * Sort the kept documents best first, after which they are read with
+     * {@link #docAt(int)} and {@link #scoreAt(int)}. No document can be
+     * offered afterwards.
+     */
+    void sortBestFirst() {
+        // Heapsort: the worst remaining document moves behind the shrinking heap
+        int kept = size;
+        while (size > 1) {
+            swap(0, --size);
+            siftDown(0);
+        }
+        size = kept;
+    }
+
+    int docAt(int i) {
+        return docs[i];
+    }
+
+    double scoreAt(int i) {
+        return scores[i];
+    }
+
+    /**
+     * Whether (docA, scoreA) ranks below (docB, scoreB).
+     */
+    private static boolean worse(int docA, double scoreA, int docB, double scoreB) {
+        return scoreA < scoreB || (scoreA == scoreB && docA > docB);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(docs[i], scores[i], docs[parent], scores[parent])) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) {
+                return;
+            }
+            int child = left + 1 < size && worse(docs[left + 1], scores[left + 1], docs[left], scores[left])
+                    ? left + 1 : left;
+            if (!worse(docs[child], scores[child], docs[i], scores[i])) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int doc = docs[i];
+        docs[i] = docs[j];
+        docs[j] = doc;
+        double score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+}
@@ -0,0 +1,181 @@
+package hk.ust.csit5930.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Document-at-a-time cosine scoring with WAND pruning.
+ *
+ * Every query term gets an upper bound on its contribution to a cosine score,
+ * the term's highest weight / norm from {@link DocumentNorms}. The cursors of
+ * the terms are kept sorted by their current document. Adding up the bounds
+ * in that order, the pivot is the first cursor at which the sum could still
+ * put a document into the cosine or the combined top k. Documents before the
+ * pivot's document cannot, so the lagging cursors jump straight to it.
+ *
+ * A document that is scored gets exactly the score of {@link CosSim}: the
+ * same weights are added in the same order and in the same precision. Every
+ * document of either top k is scored, so selecting the top k from the
+ * returned scores gives the same result as exhaustive scoring.
+ */
+final class WandScorer {
+    // Bounds are widened a little so that rounding of the real scores can never exceed them
+    private static final double BOUND_SLACK = 1e-5;
+
+    private WandScorer() {
+    }
+
+    /**
+     * Score the documents that may enter the top k by cosine similarity or by
+     * cosine similarity times PageRank.
+     *
+     * @param maxPageRank highest PageRank score of any document
+     * @param scores      empty accumulator that receives the cosine similarity
+     *                    of every scored document with a non-zero score
+     */
+    static void score(List<String> query, TermDictionary termDictionary, PostingsSource bodyIndex,
+                      int documentSize, DocumentNorms norms, StaticRanks pageRanks,
+                      double maxPageRank, int k, ScoreAccumulator scores) {
+        score(query, termDictionary, bodyIndex, documentSize, norms, pageRanks, maxPageRank, k,
+                0, PostingsIterator.NO_MORE_DOCS, scores);
+    }
+
+    /**
+     * Score the documents in [fromDoc, toDoc) that may enter the top k of
+     * that range. The top k of the whole collection is among the top k of
+     * its ranges.
+     */
+    static void score(List<String> query, TermDictionary termDictionary, PostingsSource bodyIndex,
+                      int documentSize, DocumentNorms norms, StaticRanks pageRanks,
+                      double maxPageRank, int k, int fromDoc, int toDoc, ScoreAccumulator scores) {
+        int L = query.size();
+        if (L == 0 || documentSize <= 0) {
+            return;
+        }
+        double queryNorm = Math.sqrt(L);
+
+        // Cursors in query order, which is also the order the weights are summed in
+        List<Cursor> cursors = new ArrayList<>();
+        for (String term : query) {
+            int termId = termDictionary.getTermId(term);
+            if (termId < 0) {
+                continue;
+            }
+            int df = termDictionary.getDocFreq(termId);
+            if (df == 0) {
+                continue;
+            }
+
+            try {
+                PostingsIterator postings = bodyIndex.getPostings(term);
+                if (postings == null || postings.docFreq() == 0) {
+                    continue;
+                }
+                double bound = norms.getTermMaxScore(termId) / queryNorm * (1 + BOUND_SLACK);
+                postings.advance(fromDoc);
+                cursors.add(new Cursor(postings, DocumentNorms.idf(documentSize, df), bound));
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+        }
+
+        Cursor[] inQueryOrder = cursors.toArray(new Cursor[0]);
+        Cursor[] byDoc = inQueryOrder.clone();
+        int active = byDoc.length;
+        TopKHeap cosineTop = new TopKHeap(k);
+        TopKHeap combinedTop = new TopKHeap(k);
+
+        while (true) {
+            sortByDoc(byDoc, active);
+            while (active > 0 && byDoc[active - 1].postings.docId() >= toDoc) {
+                active--;
+            }
+            if (active == 0) {
+                break;
+            }
+
+            int pivot = -1;
+            double bound = 0;
+            for (int i = 0; i < active; i++) {
+                bound += byDoc[i].bound;
+                if (mayEnter(bound, maxPageRank, cosineTop, combinedTop)) {
+                    pivot = i;
+                    break;
+                }
+            }
+            if (pivot < 0) {
+                // Not even a document containing every remaining term could make it
+                break;
+            }
+
+            int pivotDoc = byDoc[pivot].postings.docId();
+            if (byDoc[0].postings.docId() == pivotDoc) {
+                float cosine = cosine(pivotDoc, inQueryOrder, norms, queryNorm);
+                if (cosine > 0) {
+                    scores.add(pivotDoc, cosine);
+                    cosineTop.offer(pivotDoc, cosine);
+                    combinedTop.offer(pivotDoc, cosine * (double) pageRanks.getRank(pivotDoc));
+                }
+                for (int i = 0; i < active && byDoc[i].postings.docId() == pivotDoc; i++) {
+                    byDoc[i].postings.nextDoc();
+                }
+            } else {
+                // Documents before the pivot's cannot make it
+                for (int i = 0; i < pivot; i++) {
+                    byDoc[i].postings.advance(pivotDoc);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether a document scoring at most the bound may still enter a top k.
+     * Documents come in increasing docID order and lose ties to the documents
+     * already kept, so the bound has to exceed the worst kept score.
+     */
+    private static boolean mayEnter(double bound, double maxPageRank, TopKHeap cosineTop, TopKHeap combinedTop) {
+        return !cosineTop.isFull() || bound > cosineTop.minScore()
+                || !combinedTop.isFull() || bound * maxPageRank > combinedTop.minScore();
+    }
+
+    /**
+     * Cosine similarity of a document, computed as {@link CosSim#score} does.
+     */
+    private static float cosine(int doc, Cursor[] inQueryOrder, DocumentNorms norms, double queryNorm) {
+        float dotProduct = 0;
+        for (Cursor cursor : inQueryOrder) {
+            if (cursor.postings.docId() == doc) {
+                double weight = cursor.postings.freq() * cursor.idf / norms.getMaxFreq(doc);
+                dotProduct += (float) weight;
+            }
+        }
+        double docNorm = norms.getNorm(doc);
+        return (float) (docNorm == 0 ? 0 : dotProduct / (docNorm * queryNorm));
+    }
+
+    private static void sortByDoc(Cursor[] cursors, int length) {
+        // Few cursors that are mostly in order already
+        for (int i = 1; i < length; i++) {
+            Cursor cursor = cursors[i];
+            int j = i - 1;
+            while (j >= 0 && cursors[j].postings.docId() > cursor.postings.docId()) {
+                cursors[j + 1] = cursors[j];
+                j--;
+            }
+            cursors[j + 1] = cursor;
+        }
+    }
+
+    private static class Cursor {
+        final PostingsIterator postings;
+        final double idf;
+        final double bound;
+
+        Cursor(PostingsIterator postings, double idf, double bound) {
+            this.postings = postings;
+            this.idf = idf;
+            this.bound = bound;
+        }
+    }
+}
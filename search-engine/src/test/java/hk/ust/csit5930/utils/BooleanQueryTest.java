@@ -0,0 +1,224 @@
+package hk.ust.csit5930.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import hk.ust.csit5930.models.WordInfo;
+
+/**
+ * Unit tests for Boolean query matching against set operations on the
+ * documents of each word.
+ */
+public class BooleanQueryTest
+{
+    private static final int DOCS = 600;
+    private static final String[] WORDS = {"apple", "banana", "cherry", "grape", "lemon", "mango", "the"};
+
+    private StopStem stopStem;
+    private IndexSegment segment;
+    private DocumentNorms norms;
+    // Words of every document in order, stop words included
+    private final Map<Integer, String[]> texts = new HashMap<>();
+
+    /**
+     * Positions count every word, but stop words are not indexed.
+     */
+    private Map<String, WordInfo> analyze(int docID)
+    {
+        Map<String, WordInfo> words = new HashMap<>();
+        String[] text = texts.get(docID);
+        for (int i = 0; i < text.length; i++) {
+            if (stopStem.isStopWord(text[i])) {
+                continue;
+            }
+            String term = stopStem.stem(text[i]);
+            WordInfo wordInfo = words.getOrDefault(term, new WordInfo());
+            wordInfo.addPositionAndIncrementFrequency(i + 1);
+            words.put(term, wordInfo);
+        }
+        return words;
+    }
+
+    private void newStopStem(File directory) throws Exception
+    {
+        File stopwords = new File(directory, "stopwords.txt");
+        Files.write(stopwords.toPath(), "the\n".getBytes());
+        stopStem = new StopStem(stopwords.getPath());
+    }
+
+    /**
+     * Index the given documents, numbered from 1.
+     */
+    private void buildIndex(List<String[]> documents) throws Exception
+    {
+        File directory = Files.createTempDirectory("boolean-query").toFile();
+        directory.deleteOnExit();
+        newStopStem(directory);
+
+        List<Integer> docIDs = new ArrayList<>();
+        for (String[] text : documents) {
+            docIDs.add(docIDs.size() + 1);
+            texts.put(docIDs.size(), text);
+        }
+        new ParallelIndexBuilder(4).build(docIDs, this::analyze).writeTo(new SegmentWriter(directory, "body"));
+        for (File file : directory.listFiles()) {
+            file.deleteOnExit();
+        }
+        segment = IndexSegment.open(directory, "body");
+        norms = DocumentNorms.compute(1, 0, segment.getTermDictionary(), segment, documents.size());
+    }
+
+    private static List<String[]> randomDocuments()
+    {
+        Random random = new Random(7);
+        List<String[]> documents = new ArrayList<>();
+        for (int docID = 1; docID <= DOCS; docID++) {
+            String[] text = new String[1 + random.nextInt(15)];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = WORDS[random.nextInt(WORDS.length)];
+            }
+            documents.add(text);
+        }
+        return documents;
+    }
+
+    /**
+     * Documents the parsed query matches.
+     */
+    private Set<Integer> matches(String query)
+    {
+        ScoreAccumulator scores = new ScoreAccumulator();
+        BooleanQuery.parse(query, stopStem).score(segment.getTermDictionary(), segment, texts.size(), norms,
+                scores);
+        Set<Integer> docs = new TreeSet<>();
+        for (int i = 0; i < scores.size(); i++) {
+            docs.add(scores.docAt(i));
+        }
+        return docs;
+    }
+
+    private Set<Integer> containing(String word)
+    {
+        Set<Integer> docs = new TreeSet<>();
+        texts.forEach((docID, text) -> {
+            if (List.of(text).contains(word)) {
+                docs.add(docID);
+            }
+        });
+        return docs;
+    }
+
+    private static Set<Integer> and(Set<Integer> a, Set<Integer> b)
+    {
+        Set<Integer> result = new TreeSet<>(a);
+        result.retainAll(b);
+        return result;
+    }
+
+    private static Set<Integer> or(Set<Integer> a, Set<Integer> b)
+    {
+        Set<Integer> result = new TreeSet<>(a);
+        result.addAll(b);
+        return result;
+    }
+
+    private static Set<Integer> not(Set<Integer> a, Set<Integer> b)
+    {
+        Set<Integer> result = new TreeSet<>(a);
+        result.removeAll(b);
+        return result;
+    }
+
+    @Test
+    public void operatorsMatchSetOperations() throws Exception
+    {
+        buildIndex(randomDocuments());
+        Set<Integer> apple = containing("apple");
+        Set<Integer> banana = containing("banana");
+        Set<Integer> cherry = containing("cherry");
+        Set<Integer> grape = containing("grape");
+        Set<Integer> lemon = containing("lemon");
+
+        Map<String, Set<Integer>> expected = new HashMap<>();
+        expected.put("apple", apple);
+        expected.put("apple AND banana", and(apple, banana));
+        expected.put("apple OR banana", or(apple, banana));
+        expected.put("apple banana", or(apple, banana));
+        expected.put("apple NOT banana", not(apple, banana));
+        expected.put("apple AND NOT banana", not(apple, banana));
+        expected.put("apple OR banana AND cherry", or(apple, and(banana, cherry)));
+        expected.put("(apple OR banana) AND cherry", and(or(apple, banana), cherry));
+        expected.put("(apple OR banana) NOT (cherry AND grape)", not(or(apple, banana), and(cherry, grape)));
+        expected.put("apple AND banana AND cherry NOT lemon", not(and(and(apple, banana), cherry), lemon));
+        expected.put("((apple AND grape) OR (banana AND lemon)) NOT cherry",
+                not(or(and(apple, grape), and(banana, lemon)), cherry));
+        expected.put("the AND apple", apple);
+
+        for (Map.Entry<String, Set<Integer>> entry : expected.entrySet()) {
+            assertFalse(entry.getKey(), entry.getValue().isEmpty());
+            assertEquals(entry.getKey(), entry.getValue(), matches(entry.getKey()));
+        }
+        // A word that is not indexed matches nothing
+        assertEquals(new TreeSet<>(), matches("apple AND durian"));
+        assertEquals(apple, matches("apple OR durian"));
+    }
+
+    @Test
+    public void phrasesMatchWordsInOrder() throws Exception
+    {
+        buildIndex(List.of(
+                "apple banana cherry".split(" "),
+                "banana apple cherry".split(" "),
+                "apple cherry banana".split(" "),
+                "apple the banana".split(" "),
+                "apple apple banana".split(" "),
+                "apple banana apple".split(" "),
+                "cherry apple grape grape grape banana".split(" ")));
+
+        assertEquals(Set.of(1, 5, 6), matches("\"apple banana\""));
+        assertEquals(Set.of(2, 6), matches("\"banana apple\""));
+        // Every word may be one position off, so the order of two neighbours does not matter
+        assertEquals(Set.of(1, 2, 3, 4, 5, 6), matches("\"apple banana\"~1"));
+        assertEquals(Set.of(1, 2, 3, 4, 5, 6, 7), matches("\"apple banana\"~2"));
+        // The stop word keeps its place, any word may fill it
+        assertEquals(Set.of(3, 4, 5), matches("\"apple the banana\""));
+        assertEquals(Set.of(5), matches("\"apple apple\""));
+        assertEquals(Set.of(5), matches("\"apple apple banana\""));
+        assertEquals(Set.of(1), matches("\"apple banana\" AND cherry"));
+        assertEquals(Set.of(5, 6), matches("\"apple banana\" NOT cherry"));
+    }
+
+    @Test
+    public void malformedQueriesAreRejected() throws Exception
+    {
+        File directory = Files.createTempDirectory("boolean-query").toFile();
+        directory.deleteOnExit();
+        newStopStem(directory);
+        new File(directory, "stopwords.txt").deleteOnExit();
+        String[] malformed = {
+            "apple AND", "AND apple", "apple OR OR banana", "(apple OR banana", "apple)", "()",
+            "NOT apple", "apple OR NOT banana", "\"apple banana"
+        };
+        for (String query : malformed) {
+            try {
+                BooleanQuery.parse(query, stopStem);
+                fail("Accepted " + query);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+}
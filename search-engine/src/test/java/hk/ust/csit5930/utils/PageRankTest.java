@@ -0,0 +1,368 @@
+package hk.ust.csit5930.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for PageRank over the sparse link graph.
+ */
+public class PageRankTest
+{
+    /**
+     * Random links by parent docID, with repeated links and self links.
+     */
+    private static Map<Integer, List<Integer>> randomRelationships(int numPages, boolean dangling, long seed)
+    {
+        Random random = new Random(seed);
+        Map<Integer, List<Integer>> relationships = new HashMap<>();
+        for (int parent = 1; parent <= numPages; parent++) {
+            if (dangling && random.nextInt(5) == 0) {
+                continue; // No outgoing links
+            }
+            List<Integer> children = new ArrayList<>();
+            for (int i = random.nextInt(8); i >= 0; i--) {
+                children.add(1 + random.nextInt(numPages));
+            }
+            relationships.put(parent, children);
+        }
+        return relationships;
+    }
+
+    private static int[][] toMatrix(Map<Integer, List<Integer>> relationships, int numPages)
+    {
+        int[][] linkMatrix = new int[numPages][numPages];
+        for (Map.Entry<Integer, List<Integer>> entry : relationships.entrySet()) {
+            for (int child : entry.getValue()) {
+                linkMatrix[entry.getKey() - 1][child - 1] = 1;
+            }
+        }
+        return linkMatrix;
+    }
+
+    /**
+     * The dense computation the sparse one replaced, which is the same for
+     * graphs without dangling pages.
+     */
+    private static double[] densePageRank(int[][] linkMatrix, int iterations, double dampingFactor)
+    {
+        int n = linkMatrix.length;
+        double[] ranks = new double[n];
+        Arrays.fill(ranks, 1.0 / n);
+        double[] prevRanks = new double[n];
+        for (int iter = 0; iter < iterations; iter++) {
+            System.arraycopy(ranks, 0, prevRanks, 0, n);
+            for (int i = 0; i < n; i++) {
+                double rankSum = 0.0;
+                for (int j = 0; j < n; j++) {
+                    if (linkMatrix[j][i] == 1) {
+                        rankSum += prevRanks[j] / Arrays.stream(linkMatrix[j]).sum();
+                    }
+                }
+                ranks[i] = (1 - dampingFactor) / n + dampingFactor * rankSum;
+            }
+        }
+        double sum = Arrays.stream(ranks).sum();
+        for (int i = 0; i < n; i++) {
+            ranks[i] /= sum;
+        }
+        return ranks;
+    }
+
+    @Test
+    public void graphCountsRepeatedLinksOnce()
+    {
+        Map<Integer, List<Integer>> relationships = new HashMap<>();
+        relationships.put(1, Arrays.asList(2, 3, 2, 1));
+        relationships.put(3, Arrays.asList(2));
+        LinkGraph graph = LinkGraph.fromRelationships(relationships, 4);
+
+        assertEquals(4, graph.size());
+        assertEquals(4, graph.getEdgeCount());
+        assertEquals(3, graph.outDegree(0));
+        assertEquals(0, graph.outDegree(1));
+        // Links into page 2 come from pages 1 and 3, in page order
+        assertEquals(2, graph.inStart(2) - graph.inStart(1));
+        assertEquals(0, graph.inSource(graph.inStart(1)));
+        assertEquals(2, graph.inSource(graph.inStart(1) + 1));
+    }
+
+    @Test
+    public void sparseMatchesDenseComputation()
+    {
+        int numPages = 300;
+        Map<Integer, List<Integer>> relationships = randomRelationships(numPages, false, 42);
+        double[] expected = densePageRank(toMatrix(relationships, numPages), 5, 0.8);
+
+        PageRank pageRank = new PageRank(LinkGraph.fromRelationships(relationships, numPages));
+        pageRank.computePageRank(5, 0.8);
+        Map<Integer, Double> scores = pageRank.getPageRankScores();
+
+        assertEquals(numPages, scores.size());
+        for (int i = 0; i < numPages; i++) {
+            assertEquals(expected[i], scores.get(i + 1), 0.0);
+        }
+    }
+
+    @Test
+    public void danglingRankIsRedistributed()
+    {
+        // Page 2 links nowhere, without redistribution page 1 would get only the teleport share
+        Map<Integer, List<Integer>> relationships = new HashMap<>();
+        relationships.put(1, Arrays.asList(2));
+        PageRank pageRank = new PageRank(LinkGraph.fromRelationships(relationships, 2));
+        pageRank.computePageRank(1000, 0.85, 1e-12, false);
+        Map<Integer, Double> scores = pageRank.getPageRankScores();
+
+        // r1 = 0.15 / 2 + 0.85 * r2 / 2 and r1 + r2 = 1
+        double r2 = 0.925 / 1.425;
+        assertEquals(1 - r2, scores.get(1), 1e-9);
+        assertEquals(r2, scores.get(2), 1e-9);
+        assertTrue(pageRank.getResidual() < 1e-12);
+        assertTrue(pageRank.getIterations() < 1000);
+    }
+
+    @Test
+    public void gaussSeidelConvergesToSameRanksInFewerIterations()
+    {
+        int numPages = 500;
+        LinkGraph graph = LinkGraph.fromRelationships(randomRelationships(numPages, true, 7), numPages);
+        PageRank jacobi = new PageRank(graph);
+        jacobi.computePageRank(1000, 0.85, 1e-10, false);
+        PageRank gaussSeidel = new PageRank(graph);
+        gaussSeidel.computePageRank(1000, 0.85, 1e-10, true);
+
+        assertTrue(jacobi.getResidual() < 1e-10);
+        assertTrue(gaussSeidel.getResidual() < 1e-10);
+        assertTrue(gaussSeidel.getIterations() < jacobi.getIterations());
+        double sum = 0;
+        for (int docId = 1; docId <= numPages; docId++) {
+            assertEquals(jacobi.getPageRankScores().get(docId), gaussSeidel.getPageRankScores().get(docId), 1e-8);
+            sum += jacobi.getPageRankScores().get(docId);
+        }
+        assertEquals(1.0, sum, 1e-12);
+    }
+
+    @Test
+    public void parallelRanksDoNotDependOnThreadCount() throws InterruptedException
+    {
+        int numPages = 20000;
+        LinkGraph graph = LinkGraph.fromRelationships(randomRelationships(numPages, true, 11), numPages);
+        PageRank sequential = new PageRank(graph);
+        sequential.computePageRank(1000, 0.85, 1e-9, false);
+
+        for (int threads : new int[] {1, 3, 8}) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                PageRank parallel = new PageRank(graph);
+                parallel.computePageRank(1000, 0.85, 1e-9, false, pool);
+
+                assertEquals(sequential.getIterations(), parallel.getIterations());
+                assertEquals(sequential.getResidual(), parallel.getResidual(), 0.0);
+                assertEquals(sequential.getPageRankScores(), parallel.getPageRankScores());
+            } finally {
+                pool.shutdown();
+                pool.awaitTermination(1, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static Map<String, Double> ranksByUrl(PageRank pageRank, Map<Integer, String> urls)
+    {
+        Map<String, Double> ranks = new HashMap<>();
+        pageRank.getPageRankScores().forEach((docId, rank) -> ranks.put(urls.get(docId), rank));
+        return ranks;
+    }
+
+    /**
+     * URLs of the pages without links.
+     */
+    private static Set<String> danglingUrls(Map<Integer, List<Integer>> relationships, Map<Integer, String> urls)
+    {
+        Set<String> dangling = new HashSet<>();
+        urls.forEach((docId, url) -> {
+            if (relationships.getOrDefault(docId, new ArrayList<>()).isEmpty()) {
+                dangling.add(url);
+            }
+        });
+        return dangling;
+    }
+
+    private static Map<Integer, String> urls(int numPages, int offset)
+    {
+        Map<Integer, String> urls = new HashMap<>();
+        for (int docId = 1; docId <= numPages; docId++) {
+            urls.put(docId, "page" + ((docId - 1 + offset) % numPages));
+        }
+        return urls;
+    }
+
+    @Test
+    public void warmStartMatchesPagesByUrl()
+    {
+        int numPages = 1000;
+        Map<Integer, List<Integer>> relationships = randomRelationships(numPages, true, 5);
+        Map<Integer, String> urls = urls(numPages, 0);
+        PageRank previous = new PageRank(LinkGraph.fromRelationships(relationships, numPages));
+        previous.computePageRank(1000, 0.85, 1e-12, false);
+
+        // The same graph with every page renumbered
+        int shift = 17;
+        Map<Integer, List<Integer>> renumbered = new HashMap<>();
+        relationships.forEach((parent, children) -> {
+            List<Integer> shifted = new ArrayList<>();
+            for (int child : children) {
+                shifted.add((child - 1 + numPages - shift) % numPages + 1);
+            }
+            renumbered.put((parent - 1 + numPages - shift) % numPages + 1, shifted);
+        });
+        Map<Integer, String> renumberedUrls = urls(numPages, shift);
+        PageRank pageRank = new PageRank(LinkGraph.fromRelationships(renumbered, numPages));
+
+        assertEquals(numPages, pageRank.warmStart(ranksByUrl(previous, urls),
+                danglingUrls(relationships, urls), renumberedUrls));
+        assertTrue(pageRank.updatePageRank(new ArrayList<>(), 1000, 0.85, 1e-9, null));
+        assertEquals(0, pageRank.getIterations());
+        Map<String, Double> expected = ranksByUrl(previous, urls);
+        ranksByUrl(pageRank, renumberedUrls).forEach((url, rank) -> assertEquals(expected.get(url), rank, 1e-12));
+    }
+
+    /**
+     * Pages grouped into sites of consecutive docIDs. Most links stay within
+     * the site, a few lead to other sites.
+     */
+    private static Map<Integer, List<Integer>> siteRelationships(int sites, int pagesPerSite, long seed)
+    {
+        Random random = new Random(seed);
+        Map<Integer, List<Integer>> relationships = new HashMap<>();
+        for (int first = 1; first <= sites * pagesPerSite; first += pagesPerSite) {
+            for (int parent = first; parent < first + pagesPerSite; parent++) {
+                if (random.nextInt(10) == 0) {
+                    continue; // No outgoing links
+                }
+                List<Integer> children = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    children.add(first + random.nextInt(pagesPerSite));
+                }
+                if (random.nextInt(20) == 0) {
+                    children.add(1 + random.nextInt(sites * pagesPerSite));
+                }
+                relationships.put(parent, children);
+            }
+        }
+        return relationships;
+    }
+
+    /**
+     * Warm-start from the ranks of the graph before the change and update
+     * them, then compare with a computation from scratch.
+     *
+     * @return whether the update stayed local
+     */
+    private static boolean assertUpdateMatchesFullComputation(Map<Integer, List<Integer>> before,
+                                                              Map<Integer, List<Integer>> after,
+                                                              List<Integer> affected, int numPages,
+                                                              double tolerance)
+    {
+        Map<Integer, String> urls = urls(numPages, 0);
+        PageRank previous = new PageRank(LinkGraph.fromRelationships(before, numPages - 1));
+        previous.computePageRank(1000, 0.85, 1e-12, false);
+        LinkGraph graph = LinkGraph.fromRelationships(after, numPages);
+
+        PageRank expected = new PageRank(graph);
+        expected.computePageRank(1000, 0.85, 1e-12, false);
+        PageRank updated = new PageRank(graph);
+        assertEquals(numPages - 1, updated.warmStart(ranksByUrl(previous, urls), danglingUrls(before, urls), urls));
+        boolean local = updated.updatePageRank(affected, 1000, 0.85, tolerance, null);
+
+        assertTrue(updated.getResidual() < tolerance);
+        Map<Integer, Double> expectedScores = expected.getPageRankScores();
+        Map<Integer, Double> updatedScores = updated.getPageRankScores();
+        double error = 0;
+        for (int docId = 1; docId <= numPages; docId++) {
+            error += Math.abs(expectedScores.get(docId) - updatedScores.get(docId));
+        }
+        // The residual bounds the error up to a factor of 1 / (1 - d)
+        assertTrue("error " + error, error < tolerance / 0.15);
+        return local;
+    }
+
+    @Test
+    public void localUpdateMatchesFullComputation()
+    {
+        int sites = 100;
+        int pagesPerSite = 50;
+        int numPages = sites * pagesPerSite;
+        Map<Integer, List<Integer>> before = siteRelationships(sites, pagesPerSite, 9);
+        Map<Integer, List<Integer>> after = new HashMap<>(before);
+
+        // Page 1 links elsewhere, a dangling page gets a link, and a new page links to page 2
+        List<Integer> affected = new ArrayList<>(before.getOrDefault(1, new ArrayList<>()));
+        after.put(1, Arrays.asList(3, 4));
+        int dangling = 2;
+        while (before.containsKey(dangling)) {
+            dangling++;
+        }
+        after.put(dangling, Arrays.asList(5));
+        after.put(numPages + 1, Arrays.asList(2));
+        affected.addAll(Arrays.asList(2, 3, 4, 5));
+
+        // The dangling share changed for every page, and the update still stays within the first site
+        assertTrue(assertUpdateMatchesFullComputation(before, after, affected, numPages + 1, 1e-6));
+    }
+
+    @Test
+    public void farReachingChangeFallsBackToFullComputation()
+    {
+        int numPages = 2000;
+        Map<Integer, List<Integer>> before = randomRelationships(numPages, true, 9);
+        Map<Integer, List<Integer>> after = new HashMap<>(before);
+
+        List<Integer> affected = new ArrayList<>(before.getOrDefault(1, new ArrayList<>()));
+        after.put(1, Arrays.asList(3, 4));
+        after.put(numPages + 1, Arrays.asList(2));
+        affected.addAll(Arrays.asList(2, 3, 4));
+
+        // Every page is a few links away from the change
+        assertFalse(assertUpdateMatchesFullComputation(before, after, affected, numPages + 1, 1e-10));
+    }
+
+    @Test
+    public void staticRanksRoundTripThroughFile() throws Exception
+    {
+        int numPages = 300;
+        PageRank pageRank = new PageRank(LinkGraph.fromRelationships(randomRelationships(numPages, true, 13), numPages));
+        pageRank.computePageRank(1000, 0.85, 1e-9, false);
+        File file = File.createTempFile("pagerank", StaticRanks.FILE_EXTENSION);
+        file.deleteOnExit();
+
+        StaticRanks.create(4, pageRank.getRanksByDocId()).write(file);
+        StaticRanks ranks = StaticRanks.open(file);
+
+        assertEquals(4, ranks.getGeneration());
+        assertEquals(numPages + 1, ranks.size());
+        float maxRank = 0;
+        for (Map.Entry<Integer, Double> entry : pageRank.getPageRankScores().entrySet()) {
+            assertEquals((float) (double) entry.getValue(), ranks.getRank(entry.getKey()), 0.0f);
+            maxRank = Math.max(maxRank, ranks.getRank(entry.getKey()));
+        }
+        assertEquals(maxRank, ranks.getMaxRank(), 0.0f);
+        // Unknown documents have no rank
+        assertEquals(0.0f, ranks.getRank(0), 0.0f);
+        assertEquals(0.0f, ranks.getRank(numPages + 1), 0.0f);
+    }
+}
@@ -0,0 +1,196 @@
+package hk.ust.csit5930.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import hk.ust.csit5930.models.WordInfo;
+
+/**
+ * Unit tests for the parallel index build.
+ */
+public class ParallelIndexBuilderTest
+{
+    private static final int DOCS = 500;
+
+    private static Map<String, WordInfo> analyze(int docID)
+    {
+        Random random = new Random(docID);
+        Map<String, WordInfo> words = new HashMap<>();
+        int length = 1 + random.nextInt(200);
+        for (int position = 1; position <= length; position++) {
+            String term = "t" + random.nextInt(300);
+            WordInfo wordInfo = words.getOrDefault(term, new WordInfo());
+            wordInfo.addPositionAndIncrementFrequency(position);
+            words.put(term, wordInfo);
+        }
+        return words;
+    }
+
+    private static List<Integer> docIDs()
+    {
+        // Unsorted, as they come from a HashMap key set
+        List<Integer> docIDs = new ArrayList<>();
+        for (int i = 0; i < DOCS; i++) {
+            docIDs.add((i * 7919) % DOCS + 1);
+        }
+        return docIDs;
+    }
+
+    private static File newDirectory() throws Exception
+    {
+        File directory = Files.createTempDirectory("parallel-build").toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private static void deleteOnExit(File directory)
+    {
+        for (File file : directory.listFiles()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Segment frozen from a JDBM index built serially by BulkIndexBuilder.
+     */
+    private static File writeSerialSegment() throws Exception
+    {
+        File directory = newDirectory();
+        InvertedIndex index = new InvertedIndex(new File(directory, "serial").getPath(), "body");
+        BulkIndexBuilder builder = new BulkIndexBuilder(index, 64 * 1024, directory);
+        for (int docID = 1; docID <= DOCS; docID++) {
+            builder.addDocument(docID, analyze(docID));
+        }
+        builder.finish();
+        SegmentWriter.freeze(index, directory, "body");
+        index.finalize();
+        deleteOnExit(directory);
+        return directory;
+    }
+
+    private static File writeSegment(int threads, long memoryBudget) throws Exception
+    {
+        File directory = newDirectory();
+        ParallelIndexBuilder.MergedIndex index = new ParallelIndexBuilder(threads, memoryBudget, directory)
+                .build(docIDs(), ParallelIndexBuilderTest::analyze);
+        index.writeTo(new SegmentWriter(directory, "body"));
+        deleteOnExit(directory);
+        return directory;
+    }
+
+    private static void assertSameSegment(File expected, File actual) throws Exception
+    {
+        for (String extension : IndexSegment.EXTENSIONS) {
+            byte[] expectedBytes = Files.readAllBytes(new File(expected, "body" + extension).toPath());
+            byte[] actualBytes = Files.readAllBytes(new File(actual, "body" + extension).toPath());
+            assertArrayEquals(extension, expectedBytes, actualBytes);
+        }
+    }
+
+    @Test
+    public void parallelBuildMatchesSerialBuild() throws Exception
+    {
+        File serial = writeSerialSegment();
+
+        assertSameSegment(serial, writeSegment(1, Long.MAX_VALUE));
+        assertSameSegment(serial, writeSegment(8, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void spilledRunsMergeToSameIndex() throws Exception
+    {
+        File serial = writeSerialSegment();
+        File spilled = writeSegment(8, 64 * 1024);
+
+        assertSameSegment(serial, spilled);
+        // Every run was merged and deleted, only the segment files are left
+        assertEquals(IndexSegment.EXTENSIONS.length, spilled.listFiles().length);
+    }
+
+    @Test
+    public void postingsAreInDocOrderWithDocFrequencies() throws Exception
+    {
+        ParallelIndexBuilder.MergedIndex index = new ParallelIndexBuilder(4, 64 * 1024, newDirectory())
+                .build(docIDs(), ParallelIndexBuilderTest::analyze);
+        List<Posting> postings = new ArrayList<>();
+        index.forEachTerm((term, termPostings) -> {
+            if (term.equals("t42")) {
+                postings.addAll(termPostings);
+            }
+        });
+        TermDictionary dictionary = index.getTermDictionary();
+        assertEquals(index.getTermCount(), dictionary.size());
+
+        int expectedDocFreq = 0;
+        for (int docID = 1; docID <= DOCS; docID++) {
+            if (analyze(docID).containsKey("t42")) {
+                expectedDocFreq++;
+            }
+        }
+        int termId = dictionary.getTermId("t42");
+        assertEquals(expectedDocFreq, dictionary.getDocFreq(termId));
+
+        assertEquals(expectedDocFreq, postings.size());
+        for (int i = 1; i < postings.size(); i++) {
+            assertTrue(postings.get(i - 1).doc < postings.get(i).doc);
+        }
+    }
+
+    /**
+     * The analysis of a recrawl, which numbered the pages the other way round.
+     */
+    private static Map<String, WordInfo> analyzeRecrawled(int docID)
+    {
+        return analyze(DOCS + 1 - docID);
+    }
+
+    private static File freeze(InvertedIndex index) throws Exception
+    {
+        File directory = newDirectory();
+        SegmentWriter.freeze(index, directory, "body");
+        deleteOnExit(directory);
+        return directory;
+    }
+
+    @Test
+    public void rebuildReplacesEarlierBuild() throws Exception
+    {
+        File directory = newDirectory();
+        String db = new File(directory, "rebuild").getPath();
+        InvertedIndex index = new InvertedIndex(db, "body");
+        new ParallelIndexBuilder(4).build(docIDs(), docID -> {
+            Map<String, WordInfo> words = analyze(docID);
+            words.put("stale", new WordInfo());
+            return words;
+        }).writeTo(index);
+        index.finalize();
+
+        // Rebuild in the same database, as after a recrawl
+        index = new InvertedIndex(db, "body");
+        index.clear();
+        new ParallelIndexBuilder(4).build(docIDs(), ParallelIndexBuilderTest::analyzeRecrawled).writeTo(index);
+
+        File fresh = newDirectory();
+        InvertedIndex single = new InvertedIndex(new File(fresh, "single").getPath(), "body");
+        new ParallelIndexBuilder(4).build(docIDs(), ParallelIndexBuilderTest::analyzeRecrawled).writeTo(single);
+
+        assertNull(index.getPostings("stale"));
+        assertSameSegment(freeze(single), freeze(index));
+        index.finalize();
+        single.finalize();
+        deleteOnExit(directory);
+        deleteOnExit(fresh);
+    }
+}
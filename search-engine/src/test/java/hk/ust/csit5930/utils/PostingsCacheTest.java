@@ -0,0 +1,91 @@
+package hk.ust.csit5930.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import hk.ust.csit5930.models.WordInfo;
+
+/**
+ * Unit tests for the postings cache in front of the JDBM index.
+ */
+public class PostingsCacheTest
+{
+    private static final int TERMS = 50;
+
+    private static InvertedIndex newIndex() throws Exception
+    {
+        File directory = Files.createTempDirectory("postings-cache").toFile();
+        directory.deleteOnExit();
+        InvertedIndex index = new InvertedIndex(new File(directory, "cache").getPath(), "body");
+        for (int docID = 1; docID <= 300; docID++) {
+            for (int t = 0; t < TERMS; t++) {
+                if (docID % (t + 1) == 0) {
+                    WordInfo wordInfo = new WordInfo();
+                    for (int position = 1; position <= 1 + docID % 3; position++) {
+                        wordInfo.addPositionAndIncrementFrequency(position * (t + 1));
+                    }
+                    index.addEntry("t" + t, docID, wordInfo);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Docs, frequencies and positions of a list, in one flat sequence.
+     */
+    private static List<Integer> drain(PostingsIterator postings)
+    {
+        List<Integer> values = new ArrayList<>();
+        while (postings.nextDoc() != PostingsIterator.NO_MORE_DOCS) {
+            values.add(postings.docId());
+            values.add(postings.freq());
+            int count = postings.positionCount();
+            for (int i = 0; i < count; i++) {
+                values.add(postings.nextPosition());
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void cachedListsMatchIndex() throws Exception
+    {
+        InvertedIndex index = newIndex();
+        PostingsCache cache = new PostingsCache(index, Long.MAX_VALUE);
+
+        for (int round = 0; round < 2; round++) {
+            for (int t = 0; t < TERMS; t++) {
+                assertEquals("t" + t, drain(index.getPostings("t" + t)), drain(cache.getPostings("t" + t)));
+            }
+            assertNull(cache.getPostings("missing"));
+        }
+        assertEquals(TERMS + 1, cache.getMissCount());
+        assertEquals(TERMS + 1, cache.getHitCount());
+        index.finalize();
+    }
+
+    @Test
+    public void weightStaysWithinBudget() throws Exception
+    {
+        InvertedIndex index = newIndex();
+        PostingsCache cache = new PostingsCache(index, 1024);
+
+        for (int t = 0; t < TERMS; t++) {
+            assertEquals("t" + t, drain(index.getPostings("t" + t)), drain(cache.getPostings("t" + t)));
+            assertTrue(cache.getUsedBytes() <= 1024);
+        }
+        // The smallest lists were the last ones read, so they are still resident
+        cache.getPostings("t" + (TERMS - 1));
+        assertEquals(1, cache.getHitCount());
+        index.finalize();
+    }
+}
@@ -0,0 +1,82 @@
+package hk.ust.csit5930.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the front-coded term dictionary.
+ */
+public class TermDictionaryTest
+{
+    private static TermDictionary build(String... terms)
+    {
+        TermDictionary.Builder builder = new TermDictionary.Builder();
+        for (String term : terms) {
+            builder.addDocument(term);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void termIdsFollowSortOrder()
+    {
+        List<String> terms = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            terms.add("term" + i);
+        }
+        TermDictionary dictionary = build(terms.toArray(new String[0]));
+        terms.sort(TermDictionary.TERM_ORDER);
+
+        assertEquals(terms.size(), dictionary.size());
+        for (int termId = 0; termId < terms.size(); termId++) {
+            assertEquals(termId, dictionary.getTermId(terms.get(termId)));
+            assertEquals(terms.get(termId), dictionary.getTerm(termId));
+        }
+        assertEquals(-1, dictionary.getTermId("missing"));
+        assertEquals(-1, dictionary.getTermId(""));
+    }
+
+    @Test
+    public void countsDocumentFrequency()
+    {
+        TermDictionary dictionary = build("kong", "hong", "kong", "kong");
+
+        assertEquals(1, dictionary.getDocFreq(dictionary.getTermId("hong")));
+        assertEquals(3, dictionary.getDocFreq(dictionary.getTermId("kong")));
+    }
+
+    @Test
+    public void prefixRangeScan()
+    {
+        TermDictionary dictionary = build("comput", "compil", "com", "comet", "co", "data", "cp");
+
+        assertEquals(Arrays.asList("com", "comet", "compil", "comput"), dictionary.getTermsWithPrefix("com"));
+        assertEquals(Arrays.asList("compil", "comput"), dictionary.getTermsWithPrefix("comp"));
+        assertTrue(dictionary.getTermsWithPrefix("x").isEmpty());
+        assertEquals(7, dictionary.getTermsWithPrefix("").size());
+    }
+
+    @Test
+    public void roundTripsThroughFile() throws Exception
+    {
+        TermDictionary dictionary = build("search", "engine", "index", "index");
+        File file = File.createTempFile("dictionary", TermDictionary.FILE_EXTENSION);
+        file.deleteOnExit();
+
+        dictionary.write(file);
+        TermDictionary loaded = TermDictionary.read(file);
+
+        assertEquals(dictionary.size(), loaded.size());
+        for (int termId = 0; termId < dictionary.size(); termId++) {
+            assertEquals(dictionary.getTerm(termId), loaded.getTerm(termId));
+            assertEquals(dictionary.getDocFreq(termId), loaded.getDocFreq(termId));
+        }
+    }
+}
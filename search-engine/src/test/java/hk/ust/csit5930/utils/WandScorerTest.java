@@ -0,0 +1,123 @@
+package hk.ust.csit5930.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import hk.ust.csit5930.models.RankedResults;
+import hk.ust.csit5930.models.ScoredDocument;
+import hk.ust.csit5930.models.WordInfo;
+
+/**
+ * Unit tests for WAND top-k pruning against exhaustive scoring.
+ */
+public class WandScorerTest
+{
+    private static final int DOCS = 2000;
+    private static final String[] WORDS = {
+        "apple", "banana", "cherry", "grape", "lemon", "mango", "melon", "orange", "peach", "pear",
+        "plum", "kiwi", "lime", "fig", "date", "guava", "papaya", "quince", "olive", "berry"
+    };
+    private static final String[] QUERIES = {
+        "apple", "fig", "apple banana", "quince olive berry", "apple fig papaya",
+        "banana cherry grape lemon mango", "pear plum kiwi lime date guava"
+    };
+    private static final int[] K = {1, 3, 10, 50, 500};
+
+    private static StopStem stopStem;
+
+    /**
+     * Words drawn with a skewed distribution, so frequent and rare terms
+     * have different score bounds.
+     */
+    private static Map<String, WordInfo> analyze(int docID)
+    {
+        Random random = new Random(docID);
+        Map<String, WordInfo> words = new HashMap<>();
+        int length = 1 + random.nextInt(100);
+        for (int position = 1; position <= length; position++) {
+            double r = random.nextDouble();
+            String term = stopStem.stem(WORDS[(int) (WORDS.length * r * r)]);
+            WordInfo wordInfo = words.getOrDefault(term, new WordInfo());
+            wordInfo.addPositionAndIncrementFrequency(position);
+            words.put(term, wordInfo);
+        }
+        return words;
+    }
+
+    private static SearchEngine[] searchEngines() throws Exception
+    {
+        File directory = Files.createTempDirectory("wand").toFile();
+        directory.deleteOnExit();
+        File stopwords = new File(directory, "stopwords.txt");
+        Files.write(stopwords.toPath(), "the\n".getBytes());
+        stopStem = new StopStem(stopwords.getPath());
+
+        List<Integer> docIDs = new ArrayList<>();
+        for (int docID = 1; docID <= DOCS; docID++) {
+            docIDs.add(docID);
+        }
+        new ParallelIndexBuilder(4).build(docIDs, WandScorerTest::analyze)
+                .writeTo(new SegmentWriter(directory, "body"));
+        for (File file : directory.listFiles()) {
+            file.deleteOnExit();
+        }
+        IndexSegment segment = IndexSegment.open(directory, "body");
+        TermDictionary dictionary = segment.getTermDictionary();
+        DocumentNorms norms = DocumentNorms.compute(1, 0, dictionary, segment, DOCS);
+
+        Random random = new Random(42);
+        float[] ranks = new float[DOCS + 1];
+        for (int docID = 1; docID <= DOCS; docID++) {
+            ranks[docID] = random.nextFloat();
+        }
+        StaticRanks pageRanks = StaticRanks.create(1, ranks);
+
+        return new SearchEngine[] {
+            new SearchEngine(stopStem, dictionary, segment, norms, pageRanks, DOCS,
+                    SearchEngine.ScoringStrategy.EXHAUSTIVE),
+            new SearchEngine(stopStem, dictionary, segment, norms, pageRanks, DOCS,
+                    SearchEngine.ScoringStrategy.WAND)
+        };
+    }
+
+    private static void assertSameRanking(String message, List<ScoredDocument> expected,
+                                          List<ScoredDocument> actual)
+    {
+        assertEquals(message, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(message + " #" + i, expected.get(i).docId(), actual.get(i).docId());
+            assertEquals(message + " #" + i, expected.get(i).cosineScore(), actual.get(i).cosineScore(), 0);
+            assertEquals(message + " #" + i, expected.get(i).combinedScore(), actual.get(i).combinedScore(), 0);
+        }
+    }
+
+    @Test
+    public void wandMatchesExhaustiveTopK() throws Exception
+    {
+        SearchEngine[] engines = searchEngines();
+        SearchEngine exhaustive = engines[0];
+        SearchEngine wand = engines[1];
+
+        for (String query : QUERIES) {
+            for (int k : K) {
+                RankedResults expected = exhaustive.search(query, k);
+                RankedResults actual = wand.search(query, k);
+                String message = "\"" + query + "\" k=" + k;
+
+                assertFalse(message, expected.isEmpty());
+                assertSameRanking(message + " cosine", expected.cosine(), actual.cosine());
+                assertSameRanking(message + " combined", expected.combined(), actual.combined());
+            }
+        }
+    }
+}